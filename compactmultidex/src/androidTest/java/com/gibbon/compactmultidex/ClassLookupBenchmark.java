@@ -0,0 +1,201 @@
+package com.gibbon.compactmultidex;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import dalvik.system.DexFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+
+/**
+ * Measures the first load of classes through a class loader with secondary dexes installed by
+ * {@link MultiDex}, with and without the {@link IndexedDexClassLoader} hook, end to end through
+ * {@link Class#forName(String, boolean, ClassLoader)} as the VM resolves them. The hook loads a
+ * class of a secondary dex from its dex instead of the scan of the dexes before it, and makes a
+ * class of the main dex miss once more before the class loader finds it. Framework classes are
+ * only delegated by the hook.
+ * <p>
+ * A class is loaded once per class loader, so the classes of each kind are loaded in runs of
+ * {@link #RUN_LENGTH}, with and without the hook in turn. They are defined by the class loader but
+ * not initialized.
+ *
+ * @author zhipeng.zhuo
+ * @date 2020-03-07
+ */
+final class ClassLookupBenchmark {
+
+    private static final String TAG = MultiDex.TAG;
+
+    private static final int RUN_LENGTH = 8;
+
+    /* classes of the boot class path rarely loaded by a test, the ones already loaded are skipped */
+    private static final String[] FRAMEWORK_CLASSES = {
+            "android.animation.LayoutTransition", "android.app.AlarmManager",
+            "android.app.DownloadManager", "android.appwidget.AppWidgetManager",
+            "android.bluetooth.BluetoothAdapter", "android.gesture.GestureLibraries",
+            "android.hardware.SensorManager", "android.inputmethodservice.Keyboard",
+            "android.location.Geocoder", "android.media.MediaRecorder", "android.media.SoundPool",
+            "android.net.http.SslError", "android.nfc.NfcAdapter", "android.opengl.GLSurfaceView",
+            "android.preference.PreferenceActivity", "android.provider.ContactsContract",
+            "android.sax.RootElement", "android.speech.tts.TextToSpeech",
+            "android.telephony.SmsManager", "android.text.util.Linkify",
+            "android.view.animation.BounceInterpolator", "android.webkit.MimeTypeMap",
+            "android.widget.Chronometer", "android.widget.QuickContactBadge",
+            "java.util.concurrent.Exchanger", "java.util.zip.Adler32", "java.util.logging.Logger",
+            "java.security.KeyStore", "java.text.ChoiceFormat", "javax.crypto.KeyAgreement",
+            "javax.xml.parsers.SAXParserFactory", "org.json.JSONTokener",
+    };
+
+    private ClassLookupBenchmark() {}
+
+    /**
+     * @return the {@link DexFile} of each element of {@code loader}, the main dex first.
+     */
+    static List<DexFile> getDexFiles(ClassLoader loader) throws IOException {
+        List<DexFile> dexFiles = new ArrayList<DexFile>();
+        try {
+            Object dexPathList = MultiDex.findField(loader, "pathList").get(loader);
+            Object[] elements = (Object[]) MultiDex.findField(dexPathList, "dexElements")
+                    .get(dexPathList);
+            for (Object element : elements) {
+                DexFile dexFile = (DexFile) MultiDex.findField(element, "dexFile").get(element);
+                if (dexFile != null) {
+                    dexFiles.add(dexFile);
+                }
+            }
+        } catch (Exception e) {
+            IOException ioe = new IOException("No dex elements in " + loader);
+            ioe.initCause(e);
+            throw ioe;
+        }
+        return dexFiles;
+    }
+
+    /**
+     * Load classes of the secondary dexes, of the main dex and of the framework not loaded yet
+     * by {@code loader}, half of them with the hook. A hook the application installed is removed
+     * during the run and put back as a class index hook.
+     *
+     * @param maxClasses the number of classes loaded from each dex at most.
+     * @return the timings, one line per kind of class, also written to the log.
+     * @throws IOException if {@code loader} has no secondary dex.
+     */
+    static String run(ClassLoader loader, int maxClasses) throws Exception {
+        List<DexFile> dexFiles = getDexFiles(loader);
+        if (dexFiles.size() < 2) {
+            throw new IOException("No secondary dex installed");
+        }
+        List<File> files = new ArrayList<File>();
+        for (int i = 1; i < dexFiles.size(); i++) {
+            files.add(new File(dexFiles.get(i).getName()));
+        }
+        long start = SystemClock.uptimeMillis();
+        DexClassIndex index = DexClassIndex.build(files);
+        long buildTime = SystemClock.uptimeMillis() - start;
+
+        Method findLoadedClass = MultiDex.findMethod(loader, "findLoadedClass", String.class);
+        List<String> secondaryClasses = new ArrayList<String>();
+        for (int i = 1; i < dexFiles.size(); i++) {
+            addNotLoaded(secondaryClasses, loader, findLoadedClass, dexFiles.get(i).entries(),
+                    maxClasses);
+        }
+        List<String> mainClasses = new ArrayList<String>();
+        addNotLoaded(mainClasses, loader, findLoadedClass, dexFiles.get(0).entries(), maxClasses);
+        List<String> frameworkClasses = new ArrayList<String>();
+        for (String name : FRAMEWORK_CLASSES) {
+            if (findLoadedClass.invoke(loader, name) == null) {
+                frameworkClasses.add(name);
+            }
+        }
+
+        boolean applicationHook = IndexedDexClassLoader.uninstall(loader);
+        StringBuilder result = new StringBuilder();
+        try {
+            append(result, "index of " + index.size() + " classes of " + files.size()
+                    + " dexes built in " + buildTime + "ms");
+            append(result, "secondary dexes: "
+                    + load(loader, files, index, secondaryClasses));
+            append(result, "main dex: " + load(loader, files, index, mainClasses));
+            append(result, "framework: " + load(loader, files, index, frameworkClasses));
+        } finally {
+            IndexedDexClassLoader.uninstall(loader);
+            if (applicationHook) {
+                IndexedDexClassLoader.install(loader, files, index);
+            }
+        }
+        return result.toString();
+    }
+
+    private static void addNotLoaded(List<String> names, ClassLoader loader,
+                                     Method findLoadedClass, Enumeration<String> entries,
+                                     int maxClasses) throws Exception {
+        int count = 0;
+        while (entries.hasMoreElements() && count < maxClasses) {
+            String name = entries.nextElement();
+            if (findLoadedClass.invoke(loader, name) == null) {
+                names.add(name);
+                count++;
+            }
+        }
+    }
+
+    /**
+     * Load {@code names}, the runs of even rank with the hook.
+     *
+     * @return the time per class with and without the hook.
+     */
+    private static String load(ClassLoader loader, List<File> files, DexClassIndex index,
+                               List<String> names) {
+        long[] times = new long[2];
+        int[] counts = new int[2];
+        int failures = 0;
+        boolean hooked = false;
+        for (int i = 0; i < names.size(); i++) {
+            boolean hook = (i / RUN_LENGTH) % 2 == 0;
+            if (hook != hooked) {
+                if (hook) {
+                    IndexedDexClassLoader.install(loader, files, index);
+                } else {
+                    IndexedDexClassLoader.uninstall(loader);
+                }
+                hooked = hook;
+            }
+            long start = System.nanoTime();
+            try {
+                Class.forName(names.get(i), false, loader);
+            } catch (ClassNotFoundException e) {
+                failures++;
+                continue;
+            } catch (LinkageError e) {
+                // a class referring to classes missing from the apk
+                failures++;
+                continue;
+            }
+            long time = System.nanoTime() - start;
+            int slot = hook ? 0 : 1;
+            times[slot] += time;
+            counts[slot]++;
+        }
+        if (hooked) {
+            IndexedDexClassLoader.uninstall(loader);
+        }
+        return counts[0] + " classes with the hook " + times[0] / 1000 + "us ("
+                + perClass(times[0], counts[0]) + "ns each), " + counts[1] + " without "
+                + times[1] / 1000 + "us (" + perClass(times[1], counts[1]) + "ns each), "
+                + failures + " not loaded";
+    }
+
+    private static long perClass(long time, int count) {
+        return count == 0 ? 0 : time / count;
+    }
+
+    private static void append(StringBuilder result, String line) {
+        Log.i(TAG, "ClassLookupBenchmark " + line);
+        result.append(line).append('\n');
+    }
+}
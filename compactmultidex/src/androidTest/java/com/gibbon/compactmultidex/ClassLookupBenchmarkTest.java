@@ -0,0 +1,28 @@
+package com.gibbon.compactmultidex;
+
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * The first load of classes with and without the class index hook, results in logcat under the
+ * ClassLookupBenchmarkTest tag. Skipped unless the test apk has secondary dexes installed by
+ * {@link MultiDex}, on a VM without multidex support.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ClassLookupBenchmarkTest {
+
+    @Test
+    public void loadClass() throws Exception {
+        ClassLoader loader = InstrumentationRegistry.getInstrumentation().getTargetContext()
+                .getClassLoader();
+        Assume.assumeTrue("No secondary dex installed in " + loader,
+                ClassLookupBenchmark.getDexFiles(loader).size() > 1);
+        Log.i("ClassLookupBenchmarkTest", "\n" + ClassLookupBenchmark.run(loader, 200));
+    }
+}
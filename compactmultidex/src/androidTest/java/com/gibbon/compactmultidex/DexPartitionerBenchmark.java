@@ -0,0 +1,93 @@
+package com.gibbon.compactmultidex;
+
+import android.util.Log;
+
+import java.util.Random;
+
+/**
+ * Measures both {@link DexPartitioner} strategies on apks of tens to thousands of dexes, with the
+ * largest group of each against the lower bound {@code max(total / k, largest dex)}.
+ *
+ * @author zhipeng.zhuo
+ * @date 2020-03-07
+ */
+final class DexPartitionerBenchmark {
+
+    private static final String TAG = MultiDex.TAG;
+
+    private DexPartitionerBenchmark() {}
+
+    /**
+     * Time LPT, the differencing method and {@link DexPartitioner#partition}, which runs one of
+     * them, on random dex sizes.
+     *
+     * @return the timings, one line per dex and group count, also written to the log.
+     */
+    static String run(int rounds) {
+        Random random = new Random(18);
+        StringBuilder result = new StringBuilder();
+        for (int n : new int[]{10, 100, 300, 1000}) {
+            for (int k : new int[]{4, 8}) {
+                long[] sizes = new long[n];
+                long total = 0;
+                long largest = 0;
+                for (int i = 0; i < n; i++) {
+                    // 100 KB to 9 MB, most of them close to full
+                    sizes[i] = random.nextInt(4) == 0 ? 100000 + random.nextInt(9000000)
+                            : 7000000 + random.nextInt(2000000);
+                    total += sizes[i];
+                    largest = Math.max(largest, sizes[i]);
+                }
+                long lowerBound = Math.max((total + k - 1) / k, largest);
+
+                // warm up before timing
+                for (int i = 0; i < rounds / 4; i++) {
+                    DexPartitioner.lpt(sizes, k);
+                    DexPartitioner.karmarkarKarp(sizes, k);
+                    DexPartitioner.partition(sizes, k);
+                }
+                long start = System.nanoTime();
+                for (int i = 0; i < rounds; i++) {
+                    DexPartitioner.lpt(sizes, k);
+                }
+                long lptTime = (System.nanoTime() - start) / rounds;
+                start = System.nanoTime();
+                for (int i = 0; i < rounds; i++) {
+                    DexPartitioner.karmarkarKarp(sizes, k);
+                }
+                long karmarkarKarpTime = (System.nanoTime() - start) / rounds;
+                start = System.nanoTime();
+                for (int i = 0; i < rounds; i++) {
+                    DexPartitioner.partition(sizes, k);
+                }
+                long partitionTime = (System.nanoTime() - start) / rounds;
+
+                String line = n + " dexes, " + k + " groups: lpt " + lptTime / 1000 + "us +"
+                        + excess(makespan(sizes, k, DexPartitioner.lpt(sizes, k)), lowerBound)
+                        + ", karmarkar-karp " + karmarkarKarpTime / 1000 + "us +"
+                        + excess(makespan(sizes, k, DexPartitioner.karmarkarKarp(sizes, k)),
+                        lowerBound)
+                        + ", partition " + partitionTime / 1000 + "us";
+                Log.i(TAG, "DexPartitionerBenchmark " + line);
+                result.append(line).append('\n');
+            }
+        }
+        return result.toString();
+    }
+
+    private static long makespan(long[] sizes, int k, int[] groupOfDex) {
+        long[] sums = new long[Math.min(k, sizes.length)];
+        for (int i = 0; i < groupOfDex.length; i++) {
+            sums[groupOfDex[i]] += sizes[i];
+        }
+        long max = 0;
+        for (long sum : sums) {
+            max = Math.max(max, sum);
+        }
+        return max;
+    }
+
+    private static String excess(long makespan, long lowerBound) {
+        return String.format("%.3f%%", (makespan - lowerBound) * 100.0 / lowerBound);
+    }
+}
@@ -0,0 +1,21 @@
+package com.gibbon.compactmultidex;
+
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * {@link DexPartitioner} timings on the device, results in logcat under the
+ * DexPartitionerBenchmarkTest tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DexPartitionerBenchmarkTest {
+
+    @Test
+    public void partition() {
+        Log.i("DexPartitionerBenchmarkTest", "\n" + DexPartitionerBenchmark.run(200));
+    }
+}
@@ -0,0 +1,262 @@
+package com.gibbon.compactmultidex;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.ZipFile;
+
+/**
+ * Measures how reading the secondary dexes of an apk scales from 1 to N threads, with one shared
+ * {@link ZipFile} as the extractors used to do and with {@link ApkReader}. Every run inflates the
+ * same work, each secondary dex N times, so the times of the runs compare directly. Nothing is
+ * written to disk.
+ * <p>
+ * {@link #schedules} compares the dexes grouped up front with {@link MultiDex#FLAG_DYNAMIC_SCHEDULE}
+ * on the real extraction and verification of an apk.
+ *
+ * @author zhipeng.zhuo
+ * @date 2020-03-07
+ */
+final class ExtractBenchmark {
+
+    private static final String TAG = MultiDex.TAG;
+
+    private ExtractBenchmark() {}
+
+    /**
+     * @return the timings, one line per thread count, also written to the log.
+     * @throws IOException if the secondary dexes {@link ApkReader} reads do not have the crcs of
+     *                     {@link ZipFile}, or if the two readers do not read the same number of
+     *                     bytes.
+     */
+    static String run(File apk, int maxThreads) throws IOException {
+        List<ZipUtil.DexEntry> entries = new ArrayList<ZipUtil.DexEntry>();
+        for (ZipUtil.DexEntry entry : ZipUtil.getDexEntries(apk)) {
+            if (!(IHookMultiDexExtractor.DEX_PREFIX + IHookMultiDexExtractor.DEX_SUFFIX)
+                    .equals(entry.name)) {
+                entries.add(entry);
+            }
+        }
+        checkCrcs(apk, entries);
+        List<ZipUtil.DexEntry> jobs = new ArrayList<ZipUtil.DexEntry>();
+        for (int i = 0; i < maxThreads; i++) {
+            jobs.addAll(entries);
+        }
+
+        StringBuilder result = new StringBuilder();
+        for (int threads = 1; threads <= maxThreads; threads++) {
+            long zipFileTime;
+            ReadCallable zipFileRead;
+            ZipFile zipFile = new ZipFile(apk);
+            try {
+                zipFileRead = new ReadCallable(jobs, zipFile, null);
+                zipFileTime = runJobs(threads, zipFileRead);
+            } finally {
+                zipFile.close();
+            }
+            long apkReaderTime;
+            ReadCallable apkReaderRead;
+            ApkReader apkReader = new ApkReader(apk);
+            try {
+                apkReaderRead = new ReadCallable(jobs, null, apkReader);
+                apkReaderTime = runJobs(threads, apkReaderRead);
+            } finally {
+                apkReader.close();
+            }
+            if (zipFileRead.read.get() != apkReaderRead.read.get()) {
+                throw new IOException(threads + " threads: shared ZipFile read "
+                        + zipFileRead.read.get() + " bytes, ApkReader " + apkReaderRead.read.get());
+            }
+            String line = threads + " threads: shared ZipFile " + zipFileTime + "ms, ApkReader "
+                    + apkReaderTime + "ms";
+            Log.i(TAG, "ExtractBenchmark " + entries.size() + " dexes x " + maxThreads + ", " + line);
+            result.append(line).append('\n');
+        }
+        return result.toString();
+    }
+
+    /**
+     * Time the extraction of the secondary dexes of {@code apk} to {@code dexDir} and their
+     * verification by the next load, with the dexes grouped up front and with
+     * {@link MultiDex#FLAG_DYNAMIC_SCHEDULE}. The schedules take turns to run first for
+     * {@code rounds} rounds. {@link MultiDex#DEFAULT_FLAG} is {@code flags} during the runs and
+     * restored after.
+     *
+     * @return the mean timings, one line per schedule, also written to the log.
+     * @throws IOException if a schedule does not extract the dexes of {@code apk}.
+     */
+    static String schedules(Context context, File apk, File dexDir, int flags, int rounds)
+            throws IOException {
+        List<Long> expectedCrcs = TestApk.readSecondaryDexCrcs(apk);
+        ApplicationInfo applicationInfo = new ApplicationInfo();
+        applicationInfo.sourceDir = apk.getPath();
+        String[] names = {"grouped", "dynamic"};
+        long[] extractTimes = new long[2];
+        long[] loadTimes = new long[2];
+        int savedFlags = MultiDex.DEFAULT_FLAG;
+        try {
+            for (int round = 0; round < rounds; round++) {
+                for (int i = 0; i < 2; i++) {
+                    int schedule = (round + i) % 2;
+                    MultiDex.DEFAULT_FLAG = schedule == 0
+                            ? flags & ~MultiDex.FLAG_DYNAMIC_SCHEDULE
+                            : flags | MultiDex.FLAG_DYNAMIC_SCHEDULE;
+                    TestApk.delete(dexDir);
+                    dexDir.mkdirs();
+
+                    long start = SystemClock.uptimeMillis();
+                    List<? extends File> files = MultiDexExtractor.load(context, applicationInfo,
+                            dexDir, true);
+                    extractTimes[schedule] += SystemClock.uptimeMillis() - start;
+                    checkDexes(names[schedule] + " extraction", files, expectedCrcs);
+
+                    start = SystemClock.uptimeMillis();
+                    files = MultiDexExtractor.load(context, applicationInfo, dexDir, false);
+                    loadTimes[schedule] += SystemClock.uptimeMillis() - start;
+                    checkDexes(names[schedule] + " load", files, expectedCrcs);
+                }
+            }
+        } finally {
+            MultiDex.DEFAULT_FLAG = savedFlags;
+            TestApk.delete(dexDir);
+        }
+
+        StringBuilder result = new StringBuilder();
+        for (int schedule = 0; schedule < 2; schedule++) {
+            String line = names[schedule] + ": extract " + extractTimes[schedule] / rounds
+                    + "ms, load " + loadTimes[schedule] / rounds + "ms";
+            Log.i(TAG, "ExtractBenchmark " + expectedCrcs.size() + " dexes x " + rounds + " rounds, "
+                    + line);
+            result.append(line).append('\n');
+        }
+        return result.toString();
+    }
+
+    private static void checkDexes(String run, List<? extends File> files, List<Long> expectedCrcs)
+            throws IOException {
+        if (files.size() != expectedCrcs.size()) {
+            throw new IOException(run + ": " + files.size() + " dexes instead of "
+                    + expectedCrcs.size());
+        }
+        for (int i = 0; i < files.size(); i++) {
+            long crc = TestApk.readDexCrc(files.get(i));
+            if (crc != expectedCrcs.get(i).longValue()) {
+                throw new IOException(run + ": " + files.get(i).getName() + " crc " + crc
+                        + " instead of " + expectedCrcs.get(i));
+            }
+        }
+    }
+
+    /**
+     * Check that the central directory records of {@code entries} and the content
+     * {@link ApkReader} reads have the crcs of the secondary dexes read with {@link ZipFile}.
+     */
+    private static void checkCrcs(File apk, List<ZipUtil.DexEntry> entries) throws IOException {
+        List<Long> expectedCrcs = TestApk.readSecondaryDexCrcs(apk);
+        if (entries.size() != expectedCrcs.size()) {
+            throw new IOException(entries.size() + " secondary dexes instead of "
+                    + expectedCrcs.size());
+        }
+        ApkReader apkReader = new ApkReader(apk);
+        try {
+            byte[] buffer = new byte[IHookMultiDexExtractor.BUFFER_SIZE];
+            for (int i = 0; i < entries.size(); i++) {
+                ZipUtil.DexEntry entry = entries.get(i);
+                CRC32 crc = new CRC32();
+                InputStream in = apkReader.getInputStream(entry);
+                try {
+                    int length = in.read(buffer);
+                    while (length != -1) {
+                        crc.update(buffer, 0, length);
+                        length = in.read(buffer);
+                    }
+                } finally {
+                    in.close();
+                }
+                long expected = expectedCrcs.get(i).longValue();
+                if (entry.crc != expected || crc.getValue() != expected) {
+                    throw new IOException(entry.name + ": crc " + entry.crc + ", read "
+                            + crc.getValue() + " instead of " + expected);
+                }
+            }
+        } finally {
+            apkReader.close();
+        }
+    }
+
+    private static long runJobs(int threads, ReadCallable callable) throws IOException {
+        long start = SystemClock.uptimeMillis();
+        FutureTask<Long>[] futureTasks = new FutureTask[threads];
+        for (int i = 0; i < threads; i++) {
+            futureTasks[i] = new FutureTask<Long>(callable);
+        }
+        for (int i = 1; i < threads; i++) {
+            new Thread(futureTasks[i]).start();
+        }
+        futureTasks[0].run();
+        try {
+            for (FutureTask<Long> futureTask : futureTasks) {
+                futureTask.get();
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("Benchmark failed: " + e.getCause());
+        }
+        return SystemClock.uptimeMillis() - start;
+    }
+
+    /**
+     * Inflates jobs until none is left, from zipFile if not null else from apkReader.
+     */
+    private static class ReadCallable implements Callable<Long> {
+        private final List<ZipUtil.DexEntry> jobs;
+        private final ZipFile zipFile;
+        private final ApkReader apkReader;
+        private final AtomicInteger next = new AtomicInteger();
+        /* bytes inflated by all the threads */
+        final AtomicLong read = new AtomicLong();
+
+        ReadCallable(List<ZipUtil.DexEntry> jobs, ZipFile zipFile, ApkReader apkReader) {
+            this.jobs = jobs;
+            this.zipFile = zipFile;
+            this.apkReader = apkReader;
+        }
+
+        @Override
+        public Long call() throws IOException {
+            byte[] buffer = new byte[IHookMultiDexExtractor.BUFFER_SIZE];
+            long read = 0;
+            for (int i = next.getAndIncrement(); i < jobs.size(); i = next.getAndIncrement()) {
+                ZipUtil.DexEntry entry = jobs.get(i);
+                InputStream in = zipFile != null
+                        ? zipFile.getInputStream(zipFile.getEntry(entry.name))
+                        : apkReader.getInputStream(entry);
+                try {
+                    int length = in.read(buffer);
+                    while (length != -1) {
+                        read += length;
+                        length = in.read(buffer);
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+            this.read.addAndGet(read);
+            return read;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.gibbon.compactmultidex;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.List;
+import java.util.zip.ZipEntry;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Extraction through {@link ApkReader} from several threads against the dexes read with one
+ * {@link java.util.zip.ZipFile}, and the read scaling of both, results in logcat under the
+ * ExtractBenchmarkTest tag. The extraction schedules are timed on the same apk.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ExtractBenchmarkTest {
+
+    private Context context;
+    private File dir;
+    private int flags;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        dir = new File(context.getCacheDir(), "ExtractBenchmarkTest");
+        TestApk.delete(dir);
+        dir.mkdirs();
+        flags = MultiDex.DEFAULT_FLAG;
+    }
+
+    @After
+    public void tearDown() {
+        MultiDex.DEFAULT_FLAG = flags;
+        TestApk.delete(dir);
+    }
+
+    @Test
+    public void readScaling() throws Exception {
+        File apk = TestApk.write(new File(dir, "scaling.apk"), 8, 1 << 20, ZipEntry.DEFLATED, null);
+
+        Log.i("ExtractBenchmarkTest", "\n" + ExtractBenchmark.run(apk, 8));
+    }
+
+    @Test
+    public void schedules() throws Exception {
+        File apk = TestApk.write(new File(dir, "schedules.apk"), 12, 1 << 20, ZipEntry.DEFLATED, null);
+
+        Log.i("ExtractBenchmarkTest", "\n" + ExtractBenchmark.schedules(context, apk,
+                new File(dir, "dex"), MultiDex.FLAG_EXTRACT_CONCURRENT, 5));
+    }
+
+    @Test
+    public void concurrentZipExtractionMatchesZipFile() throws Exception {
+        File apk = TestApk.write(new File(dir, "deflated.apk"), 12, 256 << 10, ZipEntry.DEFLATED, null);
+
+        checkExtraction(apk, MultiDex.FLAG_EXTRACT_CONCURRENT);
+    }
+
+    @Test
+    public void concurrentRawDexExtractionMatchesZipFile() throws Exception {
+        File apk = TestApk.write(new File(dir, "deflated.apk"), 12, 256 << 10, ZipEntry.DEFLATED, null);
+
+        checkExtraction(apk, MultiDex.FLAG_EXTRACT_CONCURRENT | MultiDex.FLAG_EXTRACT_RAW_DEX_NOT_ZIP);
+    }
+
+    @Test
+    public void concurrentZeroCopyExtractionMatchesZipFile() throws Exception {
+        File apk = TestApk.write(new File(dir, "stored.apk"), 12, 256 << 10, ZipEntry.STORED, null);
+
+        checkExtraction(apk, MultiDex.FLAG_EXTRACT_CONCURRENT | MultiDex.FLAG_EXTRACT_RAW_DEX_NOT_ZIP
+                | MultiDex.FLAG_EXTRACT_RAW_DEX_ZERO_COPY);
+    }
+
+    /**
+     * Extract {@code apk} with {@code flags} and check that every secondary dex is extracted once,
+     * in apk order, with the content {@link java.util.zip.ZipFile} reads.
+     */
+    private void checkExtraction(File apk, int flags) throws Exception {
+        List<Long> expectedCrcs = TestApk.readSecondaryDexCrcs(apk);
+        MultiDex.DEFAULT_FLAG = flags;
+        ApplicationInfo applicationInfo = new ApplicationInfo();
+        applicationInfo.sourceDir = apk.getPath();
+        File dexDir = new File(dir, "dex");
+        dexDir.mkdirs();
+
+        List<? extends File> files = MultiDexExtractor.load(context, applicationInfo, dexDir, true);
+
+        assertEquals(expectedCrcs.size(), files.size());
+        for (int i = 0; i < files.size(); i++) {
+            assertEquals(files.get(i).getName(), expectedCrcs.get(i),
+                    Long.valueOf(TestApk.readDexCrc(files.get(i))));
+        }
+    }
+}
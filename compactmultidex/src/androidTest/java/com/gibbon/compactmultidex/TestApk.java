@@ -0,0 +1,128 @@
+package com.gibbon.compactmultidex;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Apks written for the tests: a main classes.dex, secondary classesN.dex entries of pseudo random
+ * content that deflates about as well as a real dex, and a resource entry. Reading the dexes back
+ * with {@link ZipFile} gives what the extractors used to produce.
+ *
+ * @author zhipeng.zhuo
+ * @date 2020-03-07
+ */
+final class TestApk {
+
+    private TestApk() {}
+
+    /**
+     * @param secondaryDexCount number of classesN.dex entries after classes.dex.
+     * @param method            {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED} for the dexes.
+     * @param comment           the archive comment, may be null.
+     */
+    static File write(File apk, int secondaryDexCount, int dexSize, int method, String comment)
+            throws IOException {
+        Random random = new Random(secondaryDexCount * 31 + dexSize);
+        ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(apk)));
+        try {
+            for (int i = 1; i <= secondaryDexCount + 1; i++) {
+                byte[] dex = new byte[dexSize + random.nextInt(dexSize / 2 + 1)];
+                for (int k = 0; k < dex.length; k++) {
+                    dex[k] = (byte) random.nextInt(30);
+                }
+                ZipEntry entry = new ZipEntry(i == 1 ? "classes.dex" : "classes" + i + ".dex");
+                entry.setMethod(method);
+                if (method == ZipEntry.STORED) {
+                    CRC32 crc = new CRC32();
+                    crc.update(dex);
+                    entry.setSize(dex.length);
+                    entry.setCompressedSize(dex.length);
+                    entry.setCrc(crc.getValue());
+                }
+                out.putNextEntry(entry);
+                out.write(dex);
+                out.closeEntry();
+            }
+            out.putNextEntry(new ZipEntry("res/raw/data"));
+            out.write(new byte[4096]);
+            out.closeEntry();
+            if (comment != null) {
+                out.setComment(comment);
+            }
+        } finally {
+            out.close();
+        }
+        return apk;
+    }
+
+    /**
+     * @return the crc of the content of each secondary dex of {@code apk} in apk order, read with
+     * {@link ZipFile}.
+     */
+    static List<Long> readSecondaryDexCrcs(File apk) throws IOException {
+        List<Long> crcs = new ArrayList<Long>();
+        ZipFile zipFile = new ZipFile(apk);
+        try {
+            for (int i = 2; ; i++) {
+                ZipEntry entry = zipFile.getEntry("classes" + i + ".dex");
+                if (entry == null) {
+                    return crcs;
+                }
+                crcs.add(crc(zipFile.getInputStream(entry)));
+            }
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    /**
+     * @return the crc of the content of {@code file}, a raw dex or a zip holding classes.dex.
+     */
+    static long readDexCrc(File file) throws IOException {
+        if (file.getName().endsWith(IHookMultiDexExtractor.DEX_SUFFIX)) {
+            return crc(new FileInputStream(file));
+        }
+        ZipFile zipFile = new ZipFile(file);
+        try {
+            return crc(zipFile.getInputStream(zipFile.getEntry("classes.dex")));
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static long crc(InputStream in) throws IOException {
+        try {
+            CRC32 crc = new CRC32();
+            byte[] buffer = new byte[IHookMultiDexExtractor.BUFFER_SIZE];
+            int length = in.read(buffer);
+            while (length != -1) {
+                crc.update(buffer, 0, length);
+                length = in.read(buffer);
+            }
+            return crc.getValue();
+        } finally {
+            in.close();
+        }
+    }
+}
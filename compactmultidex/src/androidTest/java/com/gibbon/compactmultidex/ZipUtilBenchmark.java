@@ -0,0 +1,274 @@
+package com.gibbon.compactmultidex;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+/**
+ * Measures the {@link ZipUtil} apk reads against the code they replaced, kept here as the
+ * reference. Every run also checks that both give the same result, and that it matches what
+ * {@link ZipFile} reads.
+ *
+ * @author zhipeng.zhuo
+ * @date 2020-03-07
+ */
+final class ZipUtilBenchmark {
+
+    private static final String TAG = MultiDex.TAG;
+
+    private static final int ENDHDR = 22;
+    private static final int ENDSIG = 0x6054b50;
+
+    private ZipUtilBenchmark() {}
+
+    /**
+     * Time {@link ZipUtil#findCentralDirectory} against the byte by byte backward scan, on apks
+     * written in {@code dir} with archive comments from none to the longest allowed.
+     *
+     * @return the timings, one line per comment length, also written to the log.
+     * @throws IOException if both do not find the same central directory, or if the dex records
+     *                     read at its offset are not the dex entries of {@link ZipFile}.
+     */
+    static String findCentralDirectory(File dir, int rounds) throws IOException {
+        // 16362 and 16363 put the end record just inside and just outside of the first read
+        int[] commentLengths = {0, 1, 100, 4096, 16362, 16363, 20000, 0xFFFF};
+        StringBuilder result = new StringBuilder();
+        for (int commentLength : commentLengths) {
+            StringBuilder comment = new StringBuilder(commentLength);
+            for (int i = 0; i < commentLength; i++) {
+                comment.append((char) ('a' + i % 26));
+            }
+            File apk = TestApk.write(new File(dir, "comment" + commentLength + ".apk"), 4, 64 << 10,
+                    ZipEntry.DEFLATED, commentLength == 0 ? null : comment.toString());
+            RandomAccessFile raf = new RandomAccessFile(apk, "r");
+            try {
+                ZipUtil.CentralDirectory expected = scanCentralDirectory(raf);
+                ZipUtil.CentralDirectory found = ZipUtil.findCentralDirectory(raf);
+                if (found.offset != expected.offset || found.size != expected.size) {
+                    throw new IOException("comment of " + commentLength + " bytes: found "
+                            + found.offset + "/" + found.size + " instead of " + expected.offset
+                            + "/" + expected.size);
+                }
+                checkDexEntries(apk, ZipUtil.readDexEntries(raf, found));
+
+                // warm up both before timing them
+                for (int i = 0; i < rounds / 4; i++) {
+                    scanCentralDirectory(raf);
+                    ZipUtil.findCentralDirectory(raf);
+                }
+                long start = System.nanoTime();
+                for (int i = 0; i < rounds; i++) {
+                    scanCentralDirectory(raf);
+                }
+                long scanTime = (System.nanoTime() - start) / rounds;
+                start = System.nanoTime();
+                for (int i = 0; i < rounds; i++) {
+                    ZipUtil.findCentralDirectory(raf);
+                }
+                long tailReadTime = (System.nanoTime() - start) / rounds;
+
+                String line = "comment " + commentLength + " bytes: backward scan " + scanTime / 1000
+                        + "us, tail read " + tailReadTime / 1000 + "us";
+                Log.i(TAG, "ZipUtilBenchmark " + line);
+                result.append(line).append('\n');
+            } finally {
+                raf.close();
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * Time {@link ZipUtil#getDexCrc(File)}, which maps ranges of 2 MB and more, against reading the
+     * file through a new 16 KB buffer, on raw dexes of 1 to 30 MB extracted in {@code dir} from
+     * apks with {@link ZipFile}. The files are read once before timing so both run from the page
+     * cache.
+     *
+     * @return the timings, one line per size, also written to the log.
+     * @throws IOException if both, or {@link ZipUtil#getDexCrc(File, int)}, do not compute the crc
+     *                     of the dex entry.
+     */
+    static String dexCrc(File dir, int rounds) throws IOException {
+        int[] sizesInMb = {1, 2, 5, 10, 20};
+        StringBuilder result = new StringBuilder();
+        for (int sizeInMb : sizesInMb) {
+            File apk = TestApk.write(new File(dir, "classes" + sizeInMb + "mb.apk"), 0,
+                    sizeInMb << 20, ZipEntry.STORED, null);
+            File dex = new File(dir, "classes" + sizeInMb + "mb.dex");
+            long expected = extractDex(apk, dex);
+            apk.delete();
+
+            long[] computed = {readCrc(dex), ZipUtil.getDexCrc(dex),
+                    ZipUtil.getDexCrc(dex, MultiDex.CPU_COUNT)};
+            for (long crc : computed) {
+                if (crc != expected) {
+                    throw new IOException(dex.getName() + ": crc " + crc + " instead of "
+                            + expected);
+                }
+            }
+
+            // warm up both before timing them
+            for (int i = 0; i < 2 * rounds; i++) {
+                readCrc(dex);
+                ZipUtil.getDexCrc(dex);
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                readCrc(dex);
+            }
+            long readTime = (System.nanoTime() - start) / rounds;
+            start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                ZipUtil.getDexCrc(dex);
+            }
+            long crcTime = (System.nanoTime() - start) / rounds;
+
+            String line = (dex.length() >> 10) + " KB dex: read " + readTime / 1000 + "us, ZipUtil "
+                    + crcTime / 1000 + "us";
+            Log.i(TAG, "ZipUtilBenchmark " + line);
+            result.append(line).append('\n');
+        }
+        return result.toString();
+    }
+
+    /**
+     * Check that {@code entries} are the dex entries of {@code apk} read with {@link ZipFile}, in
+     * the same order.
+     */
+    private static void checkDexEntries(File apk, List<ZipUtil.DexEntry> entries)
+            throws IOException {
+        ZipFile zipFile = new ZipFile(apk);
+        try {
+            int index = 0;
+            Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+            while (zipEntries.hasMoreElements()) {
+                ZipEntry zipEntry = zipEntries.nextElement();
+                if (!zipEntry.getName().matches("classes[0-9]*\\.dex")) {
+                    continue;
+                }
+                if (index == entries.size()) {
+                    throw new IOException(apk.getName() + ": " + zipEntry.getName()
+                            + " missing from the central directory found");
+                }
+                ZipUtil.DexEntry entry = entries.get(index++);
+                if (!entry.name.equals(zipEntry.getName()) || entry.crc != zipEntry.getCrc()
+                        || entry.size != zipEntry.getSize()
+                        || entry.compressedSize != zipEntry.getCompressedSize()) {
+                    throw new IOException(apk.getName() + ": " + entry.name + " crc " + entry.crc
+                            + " size " + entry.size + "/" + entry.compressedSize + " instead of "
+                            + zipEntry.getName() + " crc " + zipEntry.getCrc() + " size "
+                            + zipEntry.getSize() + "/" + zipEntry.getCompressedSize());
+                }
+            }
+            if (index != entries.size()) {
+                throw new IOException(apk.getName() + ": " + entries.size() + " dex records found, "
+                        + index + " dex entries in ZipFile");
+            }
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    /**
+     * Write classes.dex of {@code apk} to {@code dex} with {@link ZipFile}.
+     *
+     * @return the crc of the entry in the central directory.
+     */
+    private static long extractDex(File apk, File dex) throws IOException {
+        ZipFile zipFile = new ZipFile(apk);
+        try {
+            ZipEntry entry = zipFile.getEntry("classes.dex");
+            InputStream in = zipFile.getInputStream(entry);
+            FileOutputStream out = new FileOutputStream(dex);
+            try {
+                byte[] buffer = new byte[IHookMultiDexExtractor.BUFFER_SIZE];
+                int length = in.read(buffer);
+                while (length != -1) {
+                    out.write(buffer, 0, length);
+                    length = in.read(buffer);
+                }
+            } finally {
+                out.close();
+                in.close();
+            }
+            return entry.getCrc();
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    /**
+     * The crc of a raw dex as {@link ZipUtil#getDexCrc(File)} used to compute it, through
+     * {@link RandomAccessFile#read} into a buffer allocated for every call.
+     */
+    private static long readCrc(File dex) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(dex, "r");
+        try {
+            CRC32 crc = new CRC32();
+            long stillToRead = raf.length();
+            int length = (int) Math.min(IHookMultiDexExtractor.BUFFER_SIZE, stillToRead);
+            byte[] buffer = new byte[IHookMultiDexExtractor.BUFFER_SIZE];
+            length = raf.read(buffer, 0, length);
+            while (length != -1) {
+                crc.update(buffer, 0, length);
+                stillToRead -= length;
+                if (stillToRead == 0) {
+                    break;
+                }
+                length = (int) Math.min(IHookMultiDexExtractor.BUFFER_SIZE, stillToRead);
+                length = raf.read(buffer, 0, length);
+            }
+            return crc.getValue();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * The End Of Central Directory search {@link ZipUtil#findCentralDirectory} used to do, one seek
+     * and one read per candidate offset walking back from the end of the file.
+     */
+    private static ZipUtil.CentralDirectory scanCentralDirectory(RandomAccessFile raf)
+            throws IOException {
+        long scanOffset = raf.length() - ENDHDR;
+        if (scanOffset < 0) {
+            throw new ZipException("File too short to be a zip file: " + raf.length());
+        }
+
+        long stopOffset = scanOffset - 0x10000 /* ".ZIP file comment"'s max length */;
+        if (stopOffset < 0) {
+            stopOffset = 0;
+        }
+
+        int endSig = Integer.reverseBytes(ENDSIG);
+        while (true) {
+            raf.seek(scanOffset);
+            if (raf.readInt() == endSig) {
+                break;
+            }
+
+            scanOffset--;
+            if (scanOffset < stopOffset) {
+                throw new ZipException("End Of Central Directory signature not found");
+            }
+        }
+        raf.skipBytes(2); // diskNumber
+        raf.skipBytes(2); // diskWithCentralDir
+        raf.skipBytes(2); // numEntries
+        raf.skipBytes(2); // totalNumEntries
+        ZipUtil.CentralDirectory dir = new ZipUtil.CentralDirectory();
+        dir.size = Integer.reverseBytes(raf.readInt()) & 0xFFFFFFFFL;
+        dir.offset = Integer.reverseBytes(raf.readInt()) & 0xFFFFFFFFL;
+        return dir;
+    }
+}
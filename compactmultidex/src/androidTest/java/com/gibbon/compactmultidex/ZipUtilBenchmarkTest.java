@@ -0,0 +1,47 @@
+package com.gibbon.compactmultidex;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+/**
+ * {@link ZipUtil} apk reads against the code they replaced, results in logcat under the
+ * ZipUtilBenchmarkTest tag. The benchmarks fail if the results differ.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ZipUtilBenchmarkTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        dir = new File(context.getCacheDir(), "ZipUtilBenchmarkTest");
+        TestApk.delete(dir);
+        dir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        TestApk.delete(dir);
+    }
+
+    @Test
+    public void findCentralDirectory() throws Exception {
+        Log.i("ZipUtilBenchmarkTest", "\n" + ZipUtilBenchmark.findCentralDirectory(dir, 40));
+    }
+
+    @Test
+    public void dexCrc() throws Exception {
+        Log.i("ZipUtilBenchmarkTest", "\n" + ZipUtilBenchmark.dexCrc(dir, 10));
+    }
+}
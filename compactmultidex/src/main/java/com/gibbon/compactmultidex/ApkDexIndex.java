@@ -0,0 +1,182 @@
+package com.gibbon.compactmultidex;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The dex entries of the apk, as read by {@link ZipUtil#readDexEntries}: name, compression method,
+ * crc, sizes and local header offset, enough to extract them without opening a
+ * {@link java.util.zip.ZipFile} which would index every resource of the apk.
+ * <p>
+ * The index is cached in {@link IHookMultiDexExtractor#INDEX_FILENAME} next to the lock file and
+ * rebuilt when the apk path, size or modification time changes. Should be used only while owning
+ * the lock on {@link IHookMultiDexExtractor#LOCK_FILENAME}.
+ *
+ * @author zhipeng.zhuo
+ * @date 2020-03-07
+ */
+final class ApkDexIndex {
+
+    private static final String TAG = MultiDex.TAG;
+
+    private static final int INDEX_MAGIC = 0x58444944; // "DIDX"
+    private static final int INDEX_VERSION = 1;
+
+    private final List<ZipUtil.DexEntry> entries;
+    private final Map<String, ZipUtil.DexEntry> entriesByName;
+
+    private ApkDexIndex(List<ZipUtil.DexEntry> entries) {
+        this.entries = Collections.unmodifiableList(entries);
+        this.entriesByName = new HashMap<String, ZipUtil.DexEntry>();
+        for (ZipUtil.DexEntry entry : entries) {
+            entriesByName.put(entry.name, entry);
+        }
+    }
+
+    /**
+     * Load the cached index of {@code apk} from {@code dexDir}, or read the apk central directory
+     * and cache the result when there is no valid index.
+     */
+    static ApkDexIndex load(File apk, File dexDir) throws IOException {
+        long start = SystemClock.uptimeMillis();
+        File indexFile = new File(dexDir, IHookMultiDexExtractor.INDEX_FILENAME);
+        List<ZipUtil.DexEntry> entries = null;
+        if (indexFile.isFile()) {
+            try {
+                entries = read(indexFile, apk);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to read apk dex index " + indexFile.getPath(), e);
+            }
+        }
+        if (entries != null) {
+            Log.i(TAG, "apk dex index loaded, need " + (SystemClock.uptimeMillis() - start) + "ms");
+            return new ApkDexIndex(entries);
+        }
+
+        entries = ZipUtil.getDexEntries(apk);
+        try {
+            write(indexFile, apk, entries);
+        } catch (IOException e) {
+            // the index is only a cache, go on with the entries just read
+            Log.w(TAG, "Failed to write apk dex index " + indexFile.getPath(), e);
+        }
+        Log.i(TAG, "apk dex index built, need " + (SystemClock.uptimeMillis() - start) + "ms");
+        return new ApkDexIndex(entries);
+    }
+
+    /**
+     * @return every dex entry of the apk, {@code classes.dex} included, in central directory order.
+     */
+    List<ZipUtil.DexEntry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return the entry named {@code name} or null if the apk has none.
+     */
+    ZipUtil.DexEntry get(String name) {
+        return entriesByName.get(name);
+    }
+
+    /**
+     * @return {@code classes2.dex}, {@code classes3.dex}... up to the first missing number, the
+     * dexes MultiDex has to extract.
+     */
+    List<ZipUtil.DexEntry> getSecondaryDexEntries() {
+        List<ZipUtil.DexEntry> secondaryDexEntries = new ArrayList<ZipUtil.DexEntry>();
+        int secondaryNumber = 2;
+        ZipUtil.DexEntry entry = get(IHookMultiDexExtractor.DEX_PREFIX + secondaryNumber
+                + IHookMultiDexExtractor.DEX_SUFFIX);
+        while (entry != null) {
+            secondaryDexEntries.add(entry);
+            secondaryNumber++;
+            entry = get(IHookMultiDexExtractor.DEX_PREFIX + secondaryNumber
+                    + IHookMultiDexExtractor.DEX_SUFFIX);
+        }
+        return secondaryDexEntries;
+    }
+
+    /**
+     * @return the cached entries, or null if they were written for another apk.
+     */
+    private static List<ZipUtil.DexEntry> read(File indexFile, File apk) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(indexFile)));
+        try {
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+                return null;
+            }
+            if (!apk.getPath().equals(in.readUTF()) || apk.length() != in.readLong()
+                    || apk.lastModified() != in.readLong()) {
+                return null;
+            }
+            int count = in.readInt();
+            List<ZipUtil.DexEntry> entries = new ArrayList<ZipUtil.DexEntry>(count);
+            for (int i = 0; i < count; i++) {
+                ZipUtil.DexEntry entry = new ZipUtil.DexEntry();
+                entry.name = in.readUTF();
+                entry.method = in.readInt();
+                entry.time = in.readLong();
+                entry.crc = in.readLong();
+                entry.compressedSize = in.readLong();
+                entry.size = in.readLong();
+                entry.localHeaderOffset = in.readLong();
+                entries.add(entry);
+            }
+            return entries;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void write(File indexFile, File apk, List<ZipUtil.DexEntry> entries)
+            throws IOException {
+        // Temp files must not start with the extracted file prefix to get cleaned up in
+        // prepareDexDir()
+        File tmp = File.createTempFile("tmp-" + IHookMultiDexExtractor.INDEX_FILENAME, "",
+                indexFile.getParentFile());
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(INDEX_MAGIC);
+                out.writeInt(INDEX_VERSION);
+                out.writeUTF(apk.getPath());
+                out.writeLong(apk.length());
+                out.writeLong(apk.lastModified());
+                out.writeInt(entries.size());
+                for (ZipUtil.DexEntry entry : entries) {
+                    out.writeUTF(entry.name);
+                    out.writeInt(entry.method);
+                    out.writeLong(entry.time);
+                    out.writeLong(entry.crc);
+                    out.writeLong(entry.compressedSize);
+                    out.writeLong(entry.size);
+                    out.writeLong(entry.localHeaderOffset);
+                }
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(indexFile)) {
+                throw new IOException("Failed to rename \"" + tmp.getAbsolutePath() + "\" to \""
+                        + indexFile.getAbsolutePath() + "\"");
+            }
+        } finally {
+            tmp.delete(); // return status ignored
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.gibbon.compactmultidex;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+/**
+ * File system identity of the apk: path, size, modification time and inode. Cheap to compute
+ * compared to the crc of the apk central directory, it is persisted next to that crc so that the
+ * crc only has to be computed again when the apk file changes.
+ *
+ * @author zhipeng.zhuo
+ * @date 2020-03-07
+ */
+final class ApkFingerprint {
+
+    private static final String KEY_APK_PATH = "apk.path";
+    private static final String KEY_APK_SIZE = "apk.size";
+    private static final String KEY_APK_INODE = "apk.inode";
+
+    /* Inode value when stat is not reachable */
+    private static final long NO_INODE = 0L;
+
+    final String path;
+    final long size;
+    final long timeStamp;
+    final long inode;
+
+    private ApkFingerprint(String path, long size, long timeStamp, long inode) {
+        this.path = path;
+        this.size = size;
+        this.timeStamp = timeStamp;
+        this.inode = inode;
+    }
+
+    static ApkFingerprint of(File apk) {
+        String path = apk.getPath();
+        return new ApkFingerprint(path, apk.length(), DexElementsExtractor.getTimeStamp(apk),
+                getInode(path));
+    }
+
+    /**
+     * @return the fingerprint saved by {@link #save}, or null if none was.
+     */
+    static ApkFingerprint load(SharedPreferences prefs) {
+        String path = prefs.getString(KEY_APK_PATH, null);
+        if (path == null) {
+            return null;
+        }
+        return new ApkFingerprint(path,
+                prefs.getLong(KEY_APK_SIZE, IHookMultiDexExtractor.NO_VALUE),
+                prefs.getLong(IHookMultiDexExtractor.KEY_TIME_STAMP, IHookMultiDexExtractor.NO_VALUE),
+                prefs.getLong(KEY_APK_INODE, NO_INODE));
+    }
+
+    void save(SharedPreferences.Editor edit) {
+        edit.putString(KEY_APK_PATH, path);
+        edit.putLong(KEY_APK_SIZE, size);
+        edit.putLong(IHookMultiDexExtractor.KEY_TIME_STAMP, timeStamp);
+        edit.putLong(KEY_APK_INODE, inode);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ApkFingerprint)) {
+            return false;
+        }
+        ApkFingerprint other = (ApkFingerprint) o;
+        return size == other.size && timeStamp == other.timeStamp && inode == other.inode
+                && path.equals(other.path);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = path.hashCode();
+        result = 31 * result + (int) (size ^ (size >>> 32));
+        result = 31 * result + (int) (timeStamp ^ (timeStamp >>> 32));
+        result = 31 * result + (int) (inode ^ (inode >>> 32));
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + path + ", size " + size + ", time " + timeStamp + ", inode " + inode + "]";
+    }
+
+    /**
+     * stat(2) is only public from API 21 (android.system.Os), before that it is reached through
+     * libcore.io.Libcore.os which exists from API 14. Older versions go without the inode.
+     */
+    private static long getInode(String path) {
+        try {
+            Class<?> libcore = Class.forName("libcore.io.Libcore");
+            Object os = libcore.getField("os").get(null);
+            Method stat = os.getClass().getMethod("stat", String.class);
+            Object structStat = stat.invoke(os, path);
+            Field inode = structStat.getClass().getField("st_ino");
+            return inode.getLong(structStat);
+        } catch (Throwable t) {
+            Log.w(MultiDex.TAG, "Failed to stat " + path + ": " + t);
+            return NO_INODE;
+        }
+    }
+}
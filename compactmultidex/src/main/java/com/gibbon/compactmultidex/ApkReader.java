@@ -0,0 +1,83 @@
+package com.gibbon.compactmultidex;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Inflater;
+
+/**
+ * Reads dex entries of the apk from several threads at once. The apk is opened once and only read
+ * with positional reads ({@code pread}) and {@link FileChannel#transferTo}, so unlike the streams
+ * of a shared {@link java.util.zip.ZipFile} there is no lock or file position the readers have to
+ * take turns on. Each thread inflates with its own {@link Inflater}, reused for the entries it
+ * reads and ended by {@link #close()}.
+ *
+ * @author zhipeng.zhuo
+ * @date 2020-03-07
+ */
+final class ApkReader implements Closeable {
+
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+
+    private final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>();
+    private final List<Inflater> allInflaters = new ArrayList<Inflater>();
+
+    ApkReader(File apk) throws FileNotFoundException {
+        raf = new RandomAccessFile(apk, "r");
+        channel = raf.getChannel();
+    }
+
+    FileChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Opens the uncompressed content of {@code entry}. The stream uses the {@link Inflater} of the
+     * calling thread so it must be closed before the thread opens another one.
+     */
+    InputStream getInputStream(ZipUtil.DexEntry entry) throws IOException {
+        return ZipUtil.getInputStream(channel, entry, getInflater());
+    }
+
+    /**
+     * Copies the raw data of {@code entry}, {@code count} bytes of it, to {@code out}.
+     */
+    void transferTo(ZipUtil.DexEntry entry, long count, FileChannel out) throws IOException {
+        ZipUtil.transferEntryData(channel, ZipUtil.getEntryDataOffset(channel, entry), count, out);
+    }
+
+    private Inflater getInflater() {
+        Inflater inflater = inflaters.get();
+        if (inflater == null) {
+            inflater = new Inflater(true);
+            inflaters.set(inflater);
+            synchronized (allInflaters) {
+                allInflaters.add(inflater);
+            }
+        } else {
+            inflater.reset();
+        }
+        return inflater;
+    }
+
+    /**
+     * Closes the apk and ends the inflaters, should be called once every reader is done.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (allInflaters) {
+            for (Inflater inflater : allInflaters) {
+                inflater.end();
+            }
+            allInflaters.clear();
+        }
+        raf.close();
+    }
+}
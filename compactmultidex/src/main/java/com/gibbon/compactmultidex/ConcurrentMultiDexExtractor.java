@@ -3,19 +3,14 @@ package com.gibbon.compactmultidex;
 import android.os.SystemClock;
 import android.util.Log;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.FutureTask;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
 /**
  * @author zhipeng.zhuo
@@ -24,6 +19,9 @@ import java.util.zip.ZipFile;
  */
 public class ConcurrentMultiDexExtractor extends DexElementsExtractor {
 
+    /* threads the crc of a previous dex may be split on while verifying it before reusing it */
+    private int crcParallelism = 1;
+
     @Override
     protected List<ExtractedDex> performExtractions(File sourceApk, File dexDir) throws IOException {
         final String extractedFilePrefix = sourceApk.getName() + EXTRACTED_NAME_EXT;
@@ -32,227 +30,160 @@ public class ConcurrentMultiDexExtractor extends DexElementsExtractor {
         // contains a secondary dex file in there is not consistent with the latest apk.  Otherwise,
         // multi-process race conditions can cause a crash loop where one process deletes the zip
         // while another had created it.
-        prepareDexDir(dexDir, extractedFilePrefix);
-        if((MultiDex.DEFAULT_FLAG & MultiDex.FLAG_EXTRACT_RAW_DEX_NOT_ZIP) != 0){
-            prepareDexDir(MultiDex.getOptDexDir(dexDir), extractedFilePrefix);
-        }
+        prepareDexDirs(dexDir, extractedFilePrefix);
 
         List<ExtractedDex> files = new ArrayList<ExtractedDex>();
         List<ZipEntryWrapper> entryWrappers = new ArrayList<>();
 
-        final ZipFile apk = new ZipFile(sourceApk);
-        try {
-            int secondaryNumber = 2;
-            int dexCount = 0;
-            ZipEntry dexFile = apk.getEntry(DEX_PREFIX + secondaryNumber + DEX_SUFFIX);
-            while (dexFile != null) {
-                String suffix;
-                if((MultiDex.DEFAULT_FLAG & MultiDex.FLAG_EXTRACT_RAW_DEX_NOT_ZIP) != 0){
-                    suffix = DEX_SUFFIX;
-                }else {
-                    suffix = EXTRACTED_SUFFIX;
-                }
-                String fileName = extractedFilePrefix + secondaryNumber + suffix;
-                ExtractedDex extractedFile = new ExtractedDex(dexDir, fileName);
-                files.add(extractedFile);
-                entryWrappers.add(new ZipEntryWrapper(secondaryNumber , dexFile, extractedFile));
-                secondaryNumber++;
-                dexFile = apk.getEntry(DEX_PREFIX + secondaryNumber + DEX_SUFFIX);
-            }
-
-            int threadMaxSizeLimit = 0;
-            if(MultiDex.CPU_COUNT == 1){
-                threadMaxSizeLimit = MultiDex.CPU_COUNT * 2 + 1;
-            }else if(MultiDex.CPU_COUNT == 2){
-                threadMaxSizeLimit = MultiDex.CPU_COUNT * 2;
+        int secondaryNumber = 2;
+        for (ZipUtil.DexEntry dexFile : getApkDexIndex(sourceApk, dexDir).getSecondaryDexEntries()) {
+            String suffix;
+            if((MultiDex.DEFAULT_FLAG & MultiDex.FLAG_EXTRACT_RAW_DEX_NOT_ZIP) != 0){
+                suffix = DEX_SUFFIX;
             }else {
-                threadMaxSizeLimit = MultiDex.CPU_COUNT + 1;
-            }
-            int extraDexCount = entryWrappers.size();
-            if(extraDexCount <= 0){
-                return files;
-            }
-            int threadSize = 0;
-            if(extraDexCount > threadMaxSizeLimit){
-                threadSize = threadMaxSizeLimit;
-            }else {
-                threadSize = extraDexCount - 1;
-            }
-            Log.i(TAG, "cpu count: " + MultiDex.CPU_COUNT + ", threadMaxSizeLimit: " + threadMaxSizeLimit + ", extraDexCount: " + extraDexCount + ", final thread size: " + threadSize);
-
-            List<ZipEntryGroup> groups = makeGroupList(threadSize + 1, entryWrappers);
-            int size = groups.size();
-            Log.i(TAG, "group size: " + size);
-            FutureTask<Boolean>[] futureTasks = new FutureTask[size];
-            for (int i =0; i < size; i++){
-                ZipEntryGroup group = groups.get(i);
-                Log.i(TAG, "group[" + i + "] = " + group);
-                futureTasks[i] = new FutureTask<Boolean>(new ExtractCallable(apk, group, extractedFilePrefix, i));
-            }
-            Log.i(TAG, "Extracting apk");
-            long start = SystemClock.uptimeMillis();
-            for (int i = 1; i < size; i++){
-                new Thread(futureTasks[i]).start();
-            }
-            if(futureTasks.length > 0){
-                futureTasks[0].run();
+                suffix = EXTRACTED_SUFFIX;
             }
+            String fileName = extractedFilePrefix + secondaryNumber + suffix;
+            ExtractedDex extractedFile = new ExtractedDex(dexDir, fileName);
+            files.add(extractedFile);
+            // a dex of the previous extraction is verified by the task that would extract it
+            entryWrappers.add(new ZipEntryWrapper(secondaryNumber , dexFile, extractedFile));
+            secondaryNumber++;
+        }
 
-            try{
-                for (int i = 0; i < size; i++){
-                    Log.i(TAG, "extract task" + i);
-                    Boolean success = futureTasks[i].get();
-                    if(!success){
-                        Log.i(TAG, "extract task" + i + " excute failed");
-                        throw new IOException("extract apk failed");
-                    }else {
-                        Log.i(TAG, "extract task" + i + " excute success");
-                    }
-                }
-            }catch (Exception e){
-                Log.i(TAG, "Extracting apk failed, need " + (SystemClock.uptimeMillis() - start) + "ms");
-                throw new IOException("extract apk failed");
+        int threadMaxSizeLimit = MultiDexExecutor.MAX_THREADS;
+        int extraDexCount = entryWrappers.size();
+        if(extraDexCount <= 0){
+            return files;
+        }
+        int threadSize = 0;
+        if(extraDexCount > threadMaxSizeLimit){
+            threadSize = threadMaxSizeLimit;
+        }else {
+            threadSize = extraDexCount - 1;
+        }
+        Log.i(TAG, "cpu count: " + MultiDex.CPU_COUNT + ", threadMaxSizeLimit: " + threadMaxSizeLimit + ", extraDexCount: " + extraDexCount + ", final thread size: " + threadSize);
+        crcParallelism = Math.max(1, MultiDex.CPU_COUNT / (threadSize + 1));
+
+        ApkReader apk = new ApkReader(sourceApk);
+        try {
+            if ((MultiDex.DEFAULT_FLAG & MultiDex.FLAG_DYNAMIC_SCHEDULE) != 0) {
+                extractDynamic(apk, entryWrappers, extractedFilePrefix);
+            } else {
+                List<ZipEntryGroup> groups = makeGroupList(threadSize + 1, entryWrappers);
+                extractGroups(apk, groups, extractedFilePrefix);
             }
-            Log.i(TAG, "Extracting apk success, need " + (SystemClock.uptimeMillis() - start) + "ms");
         } finally {
-            try {
-                apk.close();
-            } catch (IOException e) {
-                Log.w(TAG, "Failed to close resource", e);
-            }
+            closeQuietly(apk);
         }
 
         return files;
     }
 
-    @Override
-    protected void extract(ZipFile apk, ZipEntry dexFile, File extractTo, String extractedFilePrefix) throws IOException, FileNotFoundException {
-        if((MultiDex.DEFAULT_FLAG & MultiDex.FLAG_EXTRACT_RAW_DEX_NOT_ZIP) != 0){
-            InputStream in = apk.getInputStream(dexFile);
-            BufferedOutputStream out = null;
-            // Temp files must not start with extractedFilePrefix to get cleaned up in prepareDexDir()
-            File tmp = File.createTempFile("tmp-" + extractedFilePrefix, DEX_SUFFIX,
-                    extractTo.getParentFile());
-            Log.i(TAG, "Extracting " + tmp.getPath());
-            try {
-                out = new BufferedOutputStream(new FileOutputStream(tmp));
+    /**
+     * Extract every group on its own thread, all of them reading from {@code apk}.
+     */
+    private void extractGroups(ApkReader apk, List<ZipEntryGroup> groups,
+                               String extractedFilePrefix) throws IOException {
+        int size = groups.size();
+        Log.i(TAG, "group size: " + size);
+        FutureTask<Boolean>[] futureTasks = new FutureTask[size];
+        for (int i =0; i < size; i++){
+            ZipEntryGroup group = groups.get(i);
+            Log.i(TAG, "group[" + i + "] = " + group);
+            futureTasks[i] = new FutureTask<Boolean>(new ExtractCallable(apk, group, extractedFilePrefix, i));
+        }
+        Log.i(TAG, "Extracting apk");
+        long start = SystemClock.uptimeMillis();
+        MultiDexExecutor.runAll(futureTasks);
+
+        // every task is done once runAll returns, apk is no longer read
+        boolean allSuccess = true;
+        boolean interrupted = false;
+        for (int i = 0; i < size; i++){
+            Log.i(TAG, "extract task" + i);
+            while (true) {
                 try {
-                    byte[] buffer = new byte[BUFFER_SIZE];
-                    int length = in.read(buffer);
-                    while (length != -1) {
-                        out.write(buffer, 0, length);
-                        length = in.read(buffer);
+                    Boolean success = futureTasks[i].get();
+                    if(!success){
+                        Log.i(TAG, "extract task" + i + " excute failed");
+                        allSuccess = false;
+                    }else {
+                        Log.i(TAG, "extract task" + i + " excute success");
                     }
-                } finally {
-                    out.close();
-                }
-                if (!tmp.setReadOnly()) {
-                    throw new IOException("Failed to mark readonly \"" + tmp.getAbsolutePath() +
-                            "\" (tmp of \"" + extractTo.getAbsolutePath() + "\")");
+                    break;
+                } catch (InterruptedException e) {
+                    // the task may still be reading apk
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    Log.w(TAG, "extract task" + i + " excute failed", e.getCause());
+                    allSuccess = false;
+                    break;
                 }
-                Log.i(TAG, "Renaming to " + extractTo.getPath());
-                if (!tmp.renameTo(extractTo)) {
-                    throw new IOException("Failed to rename \"" + tmp.getAbsolutePath() +
-                            "\" to \"" + extractTo.getAbsolutePath() + "\"");
-                }
-            } finally {
-                closeQuietly(in);
-                tmp.delete(); // return status ignored
             }
-        }else {
-            super.extract(apk, dexFile, extractTo, extractedFilePrefix);
         }
-    }
-
-    private List<ZipEntryGroup> makeGroupList(int groupSize, List<ZipEntryWrapper> entryWrappers){
-        List<ZipEntryGroup> groups =  averageGroup(groupSize, entryWrappers);
-        Collections.sort(groups);
-        return groups;
-    }
-
-    private List<ZipEntryGroup> averageGroup(int groupSize, List<ZipEntryWrapper> input) {
-        ArrayList<ZipEntryGroup> resultList = new ArrayList<>(groupSize);
-        if (groupSize > input.size() || groupSize <= 0) {
-            return resultList;
-        } else if (groupSize == input.size()) {
-            for (ZipEntryWrapper entryWrapper : input) {
-                ZipEntryGroup group = new ZipEntryGroup();
-                group.add(entryWrapper);
-                resultList.add(group);
-            }
-            return resultList;
-        }
-
-        for (int i = 0; i < groupSize; i++) {
-            resultList.add(new ZipEntryGroup());
+        if (interrupted) {
+            Thread.currentThread().interrupt();
         }
-
-        List<ZipEntryWrapper> sortedInput = input;
-        int inputLen = input.size();
-        Collections.sort(sortedInput);
-
-        // 从最大的开始填充到结果中
-        for (int i = 0; i < groupSize; i++) {
-            resultList.get(i).add(sortedInput.get(inputLen - 1 - i));
+        if (!allSuccess) {
+            Log.i(TAG, "Extracting apk failed, need " + (SystemClock.uptimeMillis() - start) + "ms");
+            throw new IOException("extract apk failed");
         }
-        // 从大到小遍历剩下的数字
-        for (int i = inputLen - 1 - groupSize; i >= 0; i--) {
-            ArrayList<Long> tempSum = new ArrayList<>(groupSize);
-            for (ZipEntryGroup group : resultList) {
-                tempSum.add(getSum(group) + sortedInput.get(i).getSize());
-            }
-            int minIndex = findMinIndex(tempSum); // 找出结果最小的那个分组
-            resultList.get(minIndex).add(sortedInput.get(i)); // 将当前数加入那个分组
-        }
-
-        return resultList;
+        Log.i(TAG, "Extracting apk with " + size + " threads success, need " + (SystemClock.uptimeMillis() - start) + "ms");
     }
 
     /**
-     * @return The index of the min member
+     * Extract the dexes largest first, each worker taking the next one when it is done, see
+     * {@link MultiDex#FLAG_DYNAMIC_SCHEDULE}.
      */
-    private static int findMinIndex(ArrayList<Long> list) {
-        int res = 0;
-        long t = Long.MAX_VALUE;
-        for (int index = 0; index < list.size(); index++) {
-            if (list.get(index) < t) {
-                t = list.get(index);
-                res = index;
-            }
+    private void extractDynamic(ApkReader apk, List<ZipEntryWrapper> entryWrappers,
+                                String extractedFilePrefix) throws IOException {
+        List<ZipEntryWrapper> largestFirst = new ArrayList<>(entryWrappers);
+        Collections.sort(largestFirst, Collections.reverseOrder());
+        Log.i(TAG, "Extracting apk, dynamic schedule");
+        long start = SystemClock.uptimeMillis();
+        if (!DexTaskQueue.runAll(largestFirst, new ExtractTask(apk, extractedFilePrefix))) {
+            Log.i(TAG, "Extracting apk failed, need " + (SystemClock.uptimeMillis() - start) + "ms");
+            throw new IOException("extract apk failed");
         }
-        return res;
+        Log.i(TAG, "Extracting apk with dynamic schedule success, need " + (SystemClock.uptimeMillis() - start) + "ms");
     }
 
     /**
-     * @return Sum of group members
+     * @return groups of close total size, see {@link DexPartitioner}, largest first.
      */
-    private static long getSum(ZipEntryGroup group) {
-        return group.getSize();
+    private List<ZipEntryGroup> makeGroupList(int groupSize, List<ZipEntryWrapper> entryWrappers){
+        long[] sizes = new long[entryWrappers.size()];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = entryWrappers.get(i).getSize();
+        }
+        int[][] partition = DexPartitioner.partition(sizes, groupSize);
+        List<ZipEntryGroup> groups = new ArrayList<>(partition.length);
+        for (int[] indexes : partition) {
+            ZipEntryGroup group = new ZipEntryGroup();
+            for (int index : indexes) {
+                group.add(entryWrappers.get(index));
+            }
+            groups.add(group);
+        }
+        return groups;
     }
 
-    private class ZipEntryGroup implements Comparable<ZipEntryGroup>{
+    private class ZipEntryGroup {
 
         private final List<ZipEntryWrapper> entryWrappers ;
+        private long size;
 
         public ZipEntryGroup() {
             this.entryWrappers = new ArrayList<>();
         }
 
         public boolean add(ZipEntryWrapper entryWrapper){
+            size += entryWrapper.getSize();
             return entryWrappers.add(entryWrapper);
         }
 
-        @Override
-        public int compareTo( ZipEntryGroup zipEntryGroup) {
-            // 降序排列
-            return getSize() - zipEntryGroup.getSize() > 0 ? -1 : 1;
-        }
-
         public long getSize(){
-            long size = 0;
-            for (ZipEntryWrapper entryWrapper : entryWrappers){
-                size += entryWrapper.getSize();
-            }
             return size;
         }
 
@@ -291,22 +222,22 @@ public class ConcurrentMultiDexExtractor extends DexElementsExtractor {
     private class ZipEntryWrapper implements  Comparable<ZipEntryWrapper> {
 
         private final int number;
-        private final ZipEntry zipEntry;
+        private final ZipUtil.DexEntry zipEntry;
         private final ExtractedDex extractedDex;
         private final long size;
 
-        public ZipEntryWrapper(int number, ZipEntry zipEntry, ExtractedDex extractedDex) {
+        public ZipEntryWrapper(int number, ZipUtil.DexEntry zipEntry, ExtractedDex extractedDex) {
             this.number = number;
             this.zipEntry = zipEntry;
             this.extractedDex = extractedDex;
-            this.size = zipEntry.getSize();
+            this.size = zipEntry.size;
         }
 
         public int getNumber() {
             return number;
         }
 
-        public ZipEntry getZipEntry() {
+        public ZipUtil.DexEntry getZipEntry() {
             return zipEntry;
         }
 
@@ -320,18 +251,88 @@ public class ConcurrentMultiDexExtractor extends DexElementsExtractor {
 
         @Override
         public int compareTo( ZipEntryWrapper zipEntryWrapper) {
-            return size - zipEntryWrapper.getSize() > 0 ? 1 : -1;
+            return size < zipEntryWrapper.getSize() ? -1 : (size == zipEntryWrapper.getSize() ? 0 : 1);
+        }
+    }
+
+    private boolean extractDex(ApkReader apk, ZipEntryWrapper entryWrapper, String extractedFilePrefix, String worker){
+        try{
+            long start = SystemClock.uptimeMillis();
+            int secondaryNumber = entryWrapper.getNumber();
+            ZipUtil.DexEntry dexFile = entryWrapper.getZipEntry();
+            ExtractedDex extractedFile = entryWrapper.getExtractedDex();
+            if (reuseExtracted(secondaryNumber, extractedFile, crcParallelism)) {
+                onExtracted(secondaryNumber, extractedFile);
+                return true;
+            }
+            int numAttempts = 0;
+            boolean isExtractionSuccessful = false;
+            Log.i(TAG, worker + " extracting, extract dex classs" + secondaryNumber + ".dex");
+            while (numAttempts < MAX_EXTRACT_ATTEMPTS && !isExtractionSuccessful) {
+                numAttempts++;
+
+                // Create a zip file (extractedFile) containing only the secondary dex file
+                // (dexFile) from the apk, its crc is computed on the way.
+                try {
+                    long start3 = SystemClock.uptimeMillis();
+                    extract(apk, dexFile, extractedFile, extractedFilePrefix);
+                    isExtractionSuccessful = true;
+                    Log.i(TAG, "extractDex apk Entry(classes" + secondaryNumber+ ".dex) to \"" + extractedFile.getAbsolutePath() + "\" with crc need " +  (SystemClock.uptimeMillis() - start3) + "ms");
+                } catch (IOException e) {
+                    isExtractionSuccessful = false;
+                    Log.w(TAG, "Failed to extract " + extractedFile.getAbsolutePath(), e);
+                }
+
+                // Log size and crc of the extracted zip file
+                Log.i(TAG, "Extraction " + (isExtractionSuccessful ? "succeeded" : "failed") +
+                        " - length " + extractedFile.getAbsolutePath() + ": " +
+                        extractedFile.length() + " - crc: " + extractedFile.crc);
+                if (!isExtractionSuccessful) {
+                    // Delete the extracted file
+                    extractedFile.delete();
+                    if (extractedFile.exists()) {
+                        Log.w(TAG, "Failed to delete corrupted secondary dex '" +
+                                extractedFile.getPath() + "'");
+                    }
+                }
+            }
+            if (!isExtractionSuccessful) {
+                throw new IOException("Could not create zip file " +
+                        extractedFile.getAbsolutePath() + " for secondary dex (" +
+                        secondaryNumber + ")");
+            }
+            onExtracted(secondaryNumber, extractedFile);
+            Log.i(TAG, "MultiDexExtractor.ExtractCallable extract need " +  (SystemClock.uptimeMillis() - start) + "ms");
+            return true;
+        }catch (Exception e){
+            Log.w(TAG, worker + " failed to extract classes" + entryWrapper.getNumber() + ".dex", e);
+        }
+        return false;
+    }
+
+    private class ExtractTask implements DexTaskQueue.IDexTask<ZipEntryWrapper> {
+        private final ApkReader apk;
+        private final String extractedFilePrefix;
+
+        public ExtractTask(ApkReader apk, String extractedFilePrefix) {
+            this.apk = apk;
+            this.extractedFilePrefix = extractedFilePrefix;
+        }
+
+        @Override
+        public boolean run(ZipEntryWrapper entryWrapper) {
+            return extractDex(apk, entryWrapper, extractedFilePrefix, Thread.currentThread().getName());
         }
     }
 
     private class ExtractCallable implements Callable<Boolean> {
-        private ZipFile apk;
+        private ApkReader apk;
         private String extractedFilePrefix;
         private ZipEntryGroup  group;
         // just for log
         private int groupIndex;
 
-        public ExtractCallable(ZipFile apk, ZipEntryGroup group , String extractedFilePrefix, int groupIndex) {
+        public ExtractCallable(ApkReader apk, ZipEntryGroup group , String extractedFilePrefix, int groupIndex) {
             this.apk = apk;
             this.group = group;
             this.extractedFilePrefix = extractedFilePrefix;
@@ -346,7 +347,7 @@ public class ConcurrentMultiDexExtractor extends DexElementsExtractor {
                 Log.i(TAG, "group[" + groupIndex + "] = " + group + " extract begin");
                 List<ZipEntryWrapper> entryWrappers = group.getEntryWrappers();
                 for (ZipEntryWrapper entryWrapper : entryWrappers){
-                    boolean success = extractDex(entryWrapper);
+                    boolean success = extractDex(apk, entryWrapper, extractedFilePrefix, "group " + groupIndex);
                     if(flag && success){
                         continue;
                     }else {
@@ -360,77 +361,10 @@ public class ConcurrentMultiDexExtractor extends DexElementsExtractor {
                     Log.i(TAG, "group[" + groupIndex + "] = " + group + " extract failed, need " + (SystemClock.uptimeMillis() - start) + "ms");
                 }
             }catch (Exception e){
-
+                Log.w(TAG, "group[" + groupIndex + "] = " + group + " extract failed", e);
+                flag = false;
             }
             return flag;
         }
-
-        private boolean extractDex(ZipEntryWrapper entryWrapper){
-            try{
-                long start = SystemClock.uptimeMillis();
-                int secondaryNumber = entryWrapper.getNumber();
-                ZipEntry dexFile = entryWrapper.getZipEntry();
-                ExtractedDex extractedFile = entryWrapper.getExtractedDex();
-                int numAttempts = 0;
-                boolean isExtractionSuccessful = false;
-                Log.i(TAG, "group " + groupIndex + " extracting, extract dex classs" + secondaryNumber + ".dex");
-                while (numAttempts < MAX_EXTRACT_ATTEMPTS && !isExtractionSuccessful) {
-                    numAttempts++;
-
-                    // Create a zip file (extractedFile) containing only the secondary dex file
-                    // (dexFile) from the apk.
-                    extract(apk, dexFile, extractedFile, extractedFilePrefix);
-
-                    // Read zip crc of extracted dex
-                    try {
-                        long start3 = SystemClock.uptimeMillis();
-                        if((MultiDex.DEFAULT_FLAG & MultiDex.FLAG_EXTRACT_RAW_DEX_NOT_ZIP) != 0){
-                            if((MultiDex.DEFAULT_FLAG & MultiDex.FLAG_NOT_DEX_CRC)  != 0){
-                                Log.i(TAG, "\"" + extractedFile.getAbsolutePath() + "\" crc verify disabled");
-                            }else {
-                                Log.i(TAG, "\"" + extractedFile.getAbsolutePath() + "\" crc verify enabled");
-                                extractedFile.crc = getDexCrc(extractedFile);
-                            }
-
-                        }else {
-                            if((MultiDex.DEFAULT_FLAG & MultiDex.FLAG_NOT_DEX_CRC)  != 0){
-                                Log.i(TAG, "\"" + extractedFile.getAbsolutePath() + "\" crc verify disabled");
-                            }else {
-                                Log.i(TAG, "\"" + extractedFile.getAbsolutePath() + "\" crc verify enabled");
-                                extractedFile.crc = getZipCrc(extractedFile);
-                            }
-                        }
-                        isExtractionSuccessful = true;
-                        Log.i(TAG, "extractDex apk Entry(classes" + secondaryNumber+ ".dex) to \"" + extractedFile.getAbsolutePath() + "\" , getCrc need " +  (SystemClock.uptimeMillis() - start3) + "ms");
-                    } catch (IOException e) {
-                        isExtractionSuccessful = false;
-                        Log.w(TAG, "Failed to read crc from " + extractedFile.getAbsolutePath(), e);
-                    }
-
-                    // Log size and crc of the extracted zip file
-                    Log.i(TAG, "Extraction " + (isExtractionSuccessful ? "succeeded" : "failed") +
-                            " - length " + extractedFile.getAbsolutePath() + ": " +
-                            extractedFile.length() + " - crc: " + extractedFile.crc);
-                    if (!isExtractionSuccessful) {
-                        // Delete the extracted file
-                        extractedFile.delete();
-                        if (extractedFile.exists()) {
-                            Log.w(TAG, "Failed to delete corrupted secondary dex '" +
-                                    extractedFile.getPath() + "'");
-                        }
-                    }
-                }
-                if (!isExtractionSuccessful) {
-                    throw new IOException("Could not create zip file " +
-                            extractedFile.getAbsolutePath() + " for secondary dex (" +
-                            secondaryNumber + ")");
-                }
-                Log.i(TAG, "MultiDexExtractor.ExtractCallable extract need " +  (SystemClock.uptimeMillis() - start) + "ms");
-                return true;
-            }catch (Exception e){
-
-            }
-            return false;
-        }
     }
 }
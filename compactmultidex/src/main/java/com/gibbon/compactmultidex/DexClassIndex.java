@@ -0,0 +1,396 @@
+package com.gibbon.compactmultidex;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * The secondary dex of each class, read from the class definitions of the extracted dexes without
+ * loading them: the class descriptors are reached through the class_defs, type_ids and string_ids
+ * tables of the dex header. A raw dex is mapped, only the pages of these tables and of the
+ * descriptors are read, a zip is inflated.
+ * <p>
+ * Each class is kept as one long, a 56 bits hash of its name followed by the index of its dex, in
+ * a sorted array looked up by binary search. Classes of different dexes with the same hash keep
+ * one key per dex: {@link #getDex(String, int)} gives each of these dexes in turn, one of them
+ * defines the class.
+ * <p>
+ * The index is cached in {@link IHookMultiDexExtractor#CLASS_INDEX_FILENAME} and rebuilt when the
+ * apk path, size or modification time or the extracted files change, so it is built once per apk
+ * version. It is read, built and written while owning the lock on
+ * {@link IHookMultiDexExtractor#LOCK_FILENAME}, no extraction replaces the dexes meanwhile.
+ *
+ * @author zhipeng.zhuo
+ * @date 2020-03-07
+ */
+final class DexClassIndex {
+
+    private static final String TAG = MultiDex.TAG;
+
+    private static final int INDEX_MAGIC = 0x534C4344; // "DCLS"
+    private static final int INDEX_VERSION = 1;
+
+    private static final int HEADER_SIZE = 0x70;
+    private static final int STRING_IDS_SIZE_OFFSET = 0x38;
+    private static final int TYPE_IDS_SIZE_OFFSET = 0x40;
+    private static final int CLASS_DEFS_SIZE_OFFSET = 0x60;
+    private static final int CLASS_DEF_ITEM_SIZE = 0x20;
+    /* descriptors are limited to 65535 UTF-16 units by the class file format */
+    private static final int MAX_DESCRIPTOR_LENGTH = 0xffff;
+
+    private static final int DEX_BITS = 8;
+    private static final long DEX_MASK = (1L << DEX_BITS) - 1;
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /* hash of the class name without its low bits, then the index of its dex, in increasing order */
+    private final long[] keys;
+
+    private DexClassIndex(long[] keys) {
+        this.keys = keys;
+    }
+
+    /**
+     * Load the cached index of {@code files}, the extracted dexes of {@code apk}, from
+     * {@code dexDir}, or read the dexes and cache the result when there is no valid index.
+     */
+    static DexClassIndex load(File apk, File dexDir, List<? extends File> files) throws IOException {
+        // the extraction of another process replaces the dexes under the exclusive lock. With the
+        // shared lock, the processes building the index at the same time write the same content,
+        // each through its own rename
+        File lockFile = new File(dexDir, IHookMultiDexExtractor.LOCK_FILENAME);
+        RandomAccessFile lockRaf = new RandomAccessFile(lockFile, "rw");
+        try {
+            FileLock lock = DexElementsExtractor.lock(lockRaf.getChannel(), lockFile,
+                    (MultiDex.DEFAULT_FLAG & MultiDex.FLAG_SHARED_LOCK) != 0);
+            try {
+                return loadLocked(apk, dexDir, files);
+            } finally {
+                try {
+                    lock.release();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to release lock on " + lockFile.getPath(), e);
+                }
+            }
+        } finally {
+            lockRaf.close();
+        }
+    }
+
+    private static DexClassIndex loadLocked(File apk, File dexDir, List<? extends File> files)
+            throws IOException {
+        long start = SystemClock.uptimeMillis();
+        File indexFile = new File(dexDir, IHookMultiDexExtractor.CLASS_INDEX_FILENAME);
+        long[] keys = null;
+        if (indexFile.isFile()) {
+            try {
+                keys = read(indexFile, apk, files);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to read class index " + indexFile.getPath(), e);
+            }
+        }
+        if (keys != null) {
+            Log.i(TAG, "class index of " + keys.length + " classes loaded, need "
+                    + (SystemClock.uptimeMillis() - start) + "ms");
+            return new DexClassIndex(keys);
+        }
+
+        DexClassIndex index = build(files);
+        try {
+            write(indexFile, apk, files, index.keys);
+        } catch (IOException e) {
+            // the index is only a cache, go on with the classes just read
+            Log.w(TAG, "Failed to write class index " + indexFile.getPath(), e);
+        }
+        return index;
+    }
+
+    /**
+     * @return the index of the classes of {@code files}, extracted raw dexes or zips holding one
+     * {@code classes.dex}.
+     */
+    static DexClassIndex build(List<? extends File> files) throws IOException {
+        long start = SystemClock.uptimeMillis();
+        if (files.size() > DEX_MASK) {
+            throw new IOException("Too many dexes to index: " + files.size());
+        }
+        long[][] dexKeys = new long[files.size()][];
+        int count = 0;
+        for (int i = 0; i < files.size(); i++) {
+            dexKeys[i] = readClassKeys(readDex(files.get(i)), i);
+            count += dexKeys[i].length;
+        }
+        long[] keys = new long[count];
+        int offset = 0;
+        for (long[] subKeys : dexKeys) {
+            System.arraycopy(subKeys, 0, keys, offset, subKeys.length);
+            offset += subKeys.length;
+        }
+        Arrays.sort(keys);
+        Log.i(TAG, "class index of " + files.size() + " dexes, " + count + " classes built, need "
+                + (SystemClock.uptimeMillis() - start) + "ms");
+        return new DexClassIndex(keys);
+    }
+
+    /**
+     * @return the index in the installed files of the dex defining {@code className}, a binary name
+     * as given to {@link ClassLoader#loadClass(String)}, or -1 if no secondary dex defines it. The
+     * first dex wins when several define it, as in the class loader. On a hash collision this dex
+     * may define another class only, see {@link #getDex(String, int)}.
+     */
+    int getDex(String className) {
+        return getDex(className, -1);
+    }
+
+    /**
+     * @return the index of the next dex after {@code dex} defining a class with the hash of
+     * {@code className}, or -1 if there is none. Only another dex than the one
+     * {@link #getDex(String)} gave for a class can define it on a hash collision.
+     */
+    int getDex(String className, int dex) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0, length = className.length(); i < length; i++) {
+            hash = (hash ^ className.charAt(i)) * FNV_PRIME;
+        }
+        // the keys of a hash are sorted by dex, the dex index fits in the low bits
+        long target = (hash & ~DEX_MASK) | (dex + 1);
+        int low = 0;
+        int high = keys.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (keys[middle] < target) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        if (low < keys.length && (keys[low] & ~DEX_MASK) == (target & ~DEX_MASK)) {
+            return (int) (keys[low] & DEX_MASK);
+        }
+        return -1;
+    }
+
+    /**
+     * @return the number of classes.
+     */
+    int size() {
+        return keys.length;
+    }
+
+    /**
+     * @return the cached keys, or null if they were written for another apk or other files.
+     */
+    private static long[] read(File indexFile, File apk, List<? extends File> files)
+            throws IOException {
+        byte[] bytes;
+        RandomAccessFile raf = new RandomAccessFile(indexFile, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+        } finally {
+            raf.close();
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+            return null;
+        }
+        if (!apk.getPath().equals(in.readUTF()) || apk.length() != in.readLong()
+                || apk.lastModified() != in.readLong() || files.size() != in.readInt()) {
+            return null;
+        }
+        for (File file : files) {
+            if (!file.getName().equals(in.readUTF())) {
+                return null;
+            }
+        }
+        int count = in.readInt();
+        int keysOffset = bytes.length - in.available();
+        if (count < 0 || bytes.length - keysOffset != count * 8L) {
+            return null;
+        }
+        long[] keys = new long[count];
+        ByteBuffer.wrap(bytes, keysOffset, count * 8).asLongBuffer().get(keys);
+        return keys;
+    }
+
+    private static void write(File indexFile, File apk, List<? extends File> files, long[] keys)
+            throws IOException {
+        // Temp files must not start with the extracted file prefix to get cleaned up in
+        // prepareDexDir()
+        File tmp = File.createTempFile("tmp-" + IHookMultiDexExtractor.CLASS_INDEX_FILENAME, "",
+                indexFile.getParentFile());
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(INDEX_MAGIC);
+                out.writeInt(INDEX_VERSION);
+                out.writeUTF(apk.getPath());
+                out.writeLong(apk.length());
+                out.writeLong(apk.lastModified());
+                out.writeInt(files.size());
+                for (File file : files) {
+                    out.writeUTF(file.getName());
+                }
+                out.writeInt(keys.length);
+                for (long key : keys) {
+                    out.writeLong(key);
+                }
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(indexFile)) {
+                throw new IOException("Failed to rename \"" + tmp.getAbsolutePath() + "\" to \""
+                        + indexFile.getAbsolutePath() + "\"");
+            }
+        } finally {
+            tmp.delete(); // return status ignored
+        }
+    }
+
+    private static ByteBuffer readDex(File file) throws IOException {
+        if (file.getName().endsWith(IHookMultiDexExtractor.DEX_SUFFIX)) {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                // the mapping stays valid once the file is closed
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } finally {
+                raf.close();
+            }
+        }
+        ZipFile zip = new ZipFile(file);
+        try {
+            String name = IHookMultiDexExtractor.DEX_PREFIX + IHookMultiDexExtractor.DEX_SUFFIX;
+            ZipEntry entry = zip.getEntry(name);
+            if (entry == null || entry.getSize() < 0 || entry.getSize() > Integer.MAX_VALUE) {
+                throw new IOException("No " + name + " in " + file.getPath());
+            }
+            byte[] bytes = new byte[(int) entry.getSize()];
+            InputStream in = zip.getInputStream(entry);
+            try {
+                int offset = 0;
+                while (offset < bytes.length) {
+                    int read = in.read(bytes, offset, bytes.length - offset);
+                    if (read == -1) {
+                        throw new IOException("Truncated " + name + " in " + file.getPath());
+                    }
+                    offset += read;
+                }
+            } finally {
+                in.close();
+            }
+            return ByteBuffer.wrap(bytes);
+        } finally {
+            zip.close();
+        }
+    }
+
+    /**
+     * @return the key of each class defined by {@code dex}.
+     */
+    private static long[] readClassKeys(ByteBuffer dex, int dexIndex) throws IOException {
+        dex.order(ByteOrder.LITTLE_ENDIAN);
+        if (dex.limit() < HEADER_SIZE || dex.get(0) != 'd' || dex.get(1) != 'e' || dex.get(2) != 'x') {
+            throw new IOException("Not a dex file");
+        }
+        try {
+            int stringIdsSize = dex.getInt(STRING_IDS_SIZE_OFFSET);
+            int stringIdsOffset = dex.getInt(STRING_IDS_SIZE_OFFSET + 4);
+            int typeIdsSize = dex.getInt(TYPE_IDS_SIZE_OFFSET);
+            int typeIdsOffset = dex.getInt(TYPE_IDS_SIZE_OFFSET + 4);
+            int classDefsSize = dex.getInt(CLASS_DEFS_SIZE_OFFSET);
+            int classDefsOffset = dex.getInt(CLASS_DEFS_SIZE_OFFSET + 4);
+            if (classDefsSize < 0 || classDefsSize > dex.limit() / CLASS_DEF_ITEM_SIZE) {
+                throw new IOException("Bad class definition count " + classDefsSize);
+            }
+            long[] keys = new long[classDefsSize];
+            int count = 0;
+            for (int i = 0; i < classDefsSize; i++) {
+                int typeIndex = dex.getInt(classDefsOffset + i * CLASS_DEF_ITEM_SIZE);
+                if (typeIndex < 0 || typeIndex >= typeIdsSize) {
+                    throw new IOException("Bad type index " + typeIndex);
+                }
+                int stringIndex = dex.getInt(typeIdsOffset + typeIndex * 4);
+                if (stringIndex < 0 || stringIndex >= stringIdsSize) {
+                    throw new IOException("Bad string index " + stringIndex);
+                }
+                long hash = hashClassName(dex, dex.getInt(stringIdsOffset + stringIndex * 4));
+                if (hash != 0) {
+                    keys[count++] = (hash & ~DEX_MASK) | dexIndex;
+                }
+            }
+            if (count == keys.length) {
+                return keys;
+            }
+            long[] classKeys = new long[count];
+            System.arraycopy(keys, 0, classKeys, 0, count);
+            return classKeys;
+        } catch (IndexOutOfBoundsException e) {
+            IOException exception = new IOException("Truncated dex file");
+            exception.initCause(e);
+            throw exception;
+        }
+    }
+
+    /**
+     * @return the hash {@link #getDex} computes from the binary name of the class descriptor at
+     * {@code offset}, a MUTF-8 string preceded by its length in UTF-16 units, or 0 if it is not a
+     * class descriptor.
+     */
+    private static long hashClassName(ByteBuffer dex, int offset) {
+        int position = offset;
+        int length = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = dex.get(position++);
+            length |= (b & 0x7f) << shift;
+            shift += 7;
+        } while (b < 0);
+        // "L" + name + ";"
+        if (length < 3 || length > MAX_DESCRIPTOR_LENGTH || dex.get(position) != 'L') {
+            return 0;
+        }
+        position++;
+
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 1; i < length; i++) {
+            int a = dex.get(position++) & 0xff;
+            char c;
+            if (a < 0x80) {
+                c = (char) a;
+            } else if ((a & 0xe0) == 0xc0) {
+                c = (char) (((a & 0x1f) << 6) | (dex.get(position++) & 0x3f));
+            } else {
+                c = (char) (((a & 0x0f) << 12) | ((dex.get(position++) & 0x3f) << 6)
+                        | (dex.get(position++) & 0x3f));
+            }
+            if (i == length - 1) {
+                return c == ';' ? hash : 0;
+            }
+            hash = (hash ^ (c == '/' ? '.' : c)) * FNV_PRIME;
+        }
+        return 0;
+    }
+}
@@ -19,12 +19,15 @@ import java.io.RandomAccessFile;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
 
 
@@ -36,6 +39,85 @@ public abstract class DexElementsExtractor implements IHookMultiDexExtractor {
 
     protected static final String TAG = MultiDex.TAG;
 
+    /**
+     * Dex entries of the apk, read once per load.
+     */
+    private ApkDexIndex apkDexIndex;
+
+    private IExtractedDexListener extractedDexListener;
+
+    /**
+     * Files of the previous extraction the next one may keep, their crc set, by secondary number,
+     * see {@link MultiDex#FLAG_INCREMENTAL_EXTRACT}.
+     */
+    private final Map<Integer, ExtractedDex> reusableDexes = new HashMap<>();
+
+    /**
+     * Files of {@link #reusableDexes} renamed by the current extraction, by secondary number, given
+     * their name back if it fails.
+     */
+    private final Map<Integer, ExtractedDex> renamedDexes = new HashMap<>();
+
+    /**
+     * Name prefix of the files of the previous extraction when it is not the one of the current
+     * extraction, these files are kept until it succeeds.
+     */
+    private String previousPrefix;
+
+    /**
+     * Receives the checkpoint of each extracted dex, see {@link MultiDex#FLAG_EXTRACT_CHECKPOINT}.
+     */
+    private SharedPreferences checkpointPreferences;
+
+    /**
+     * Preferences of the current load, the manifest of the dex directory with
+     * {@link MultiDex#FLAG_BINARY_MANIFEST}.
+     */
+    private SharedPreferences multiDexPreferences;
+
+    /**
+     * Receives each dex of {@link #performExtractions} as soon as it is extracted, and each dex of
+     * {@link #loadExistingExtractions} as soon as it is verified when
+     * {@link MultiDex#FLAG_PIPELINE_WARM_START} is set. Before a failed verification or a failed
+     * load lets the reported dexes be deleted or extracted again, the listener is told with
+     * {@link IExtractedDexListener#onDiscarded}; the verifying workers are all done by then.
+     */
+    public void setExtractedDexListener(IExtractedDexListener listener) {
+        this.extractedDexListener = listener;
+    }
+
+    /**
+     * To be called by {@link #performExtractions} once {@code dex} is extracted and checked.
+     */
+    protected void onExtracted(int secondaryNumber, ExtractedDex dex) {
+        putCheckpoint(secondaryNumber, dex);
+        IExtractedDexListener listener = extractedDexListener;
+        if (listener != null) {
+            listener.onExtracted(secondaryNumber, dex);
+        }
+    }
+
+    /**
+     * Called by the loaders once {@code dex} of a previous extraction is verified.
+     */
+    private void onVerified(int secondaryNumber, ExtractedDex dex) {
+        IExtractedDexListener listener = extractedDexListener;
+        if (listener != null && (MultiDex.DEFAULT_FLAG & MultiDex.FLAG_PIPELINE_WARM_START) != 0) {
+            listener.onExtracted(secondaryNumber, dex);
+        }
+    }
+
+    /**
+     * Called before the dexes reported to the listener are deleted or extracted again, and when the
+     * load fails, while owning the lock on {@link #LOCK_FILENAME}.
+     */
+    private void discardReported() {
+        IExtractedDexListener listener = extractedDexListener;
+        if (listener != null) {
+            listener.onDiscarded();
+        }
+    }
+
     /**
      * Extracts application secondary dexes into files in the application data
      * directory.
@@ -50,37 +132,80 @@ public abstract class DexElementsExtractor implements IHookMultiDexExtractor {
         Log.i(TAG, "DexElementsExtractor.load(" + applicationInfo.sourceDir + ", " + forceReload + ")");
         final File sourceApk = new File(applicationInfo.sourceDir);
 
-        long currentCrc = getZipCrc(sourceApk);
+        long start = SystemClock.uptimeMillis();
+        ApkFingerprint fingerprint = ApkFingerprint.of(sourceApk);
+        Log.i(TAG, "apk fingerprint " + fingerprint + " need " + (SystemClock.uptimeMillis() - start) + "ms");
 
         // Validity check and extraction must be done only while the lock file has been taken.
         File lockFile = new File(dexDir, LOCK_FILENAME);
         RandomAccessFile lockRaf = new RandomAccessFile(lockFile, "rw");
         FileChannel lockChannel = null;
         FileLock cacheLock = null;
-        List<ExtractedDex> files;
+        List<ExtractedDex> files = null;
         IOException releaseLockException = null;
         try {
             lockChannel = lockRaf.getChannel();
-            Log.i(TAG, "Blocking on lock " + lockFile.getPath());
-            cacheLock = lockChannel.lock();
-            Log.i(TAG, lockFile.getPath() + " locked");
+            boolean shared = !forceReload && (MultiDex.DEFAULT_FLAG & MultiDex.FLAG_SHARED_LOCK) != 0;
+            cacheLock = lock(lockChannel, lockFile, shared);
 
-            if (!forceReload && !isModified(context, sourceApk, currentCrc)) {
-                try {
-                    Log.i(TAG, "Detected that no need to perform extraction.");
-                    files = loadExistingExtractions(context, sourceApk, dexDir);
-                } catch (IOException ioe) {
-                    Log.w(TAG, "Failed to reload existing extracted secondary dex files,"
-                            + " falling back to fresh extraction", ioe);
+            if ((MultiDex.DEFAULT_FLAG & MultiDex.FLAG_BINARY_MANIFEST) != 0) {
+                multiDexPreferences = openManifest(context, dexDir);
+            }
+            long currentCrc = getApkCrc(context, sourceApk, dexDir, fingerprint);
+
+            if (shared) {
+                // other processes may verify and load at the same time
+                if (!isModified(context, sourceApk, currentCrc)) {
+                    try {
+                        Log.i(TAG, "Detected that no need to perform extraction.");
+                        files = loadExistingExtractions(context, sourceApk, dexDir);
+                    } catch (IOException ioe) {
+                        Log.w(TAG, "Failed to reload existing extracted secondary dex files"
+                                + " with the shared lock", ioe);
+                        // another process may extract once the shared lock is released
+                        discardReported();
+                    }
+                }
+                if (files == null) {
+                    // FileLock cannot be upgraded, another process may extract in between
+                    cacheLock.release();
+                    cacheLock = null;
+                    cacheLock = lock(lockChannel, lockFile, false);
+                    if ((MultiDex.DEFAULT_FLAG & MultiDex.FLAG_BINARY_MANIFEST) != 0) {
+                        multiDexPreferences = openManifest(context, dexDir);
+                    }
+                    currentCrc = getApkCrc(context, sourceApk, dexDir, fingerprint);
+                }
+            }
+
+            if (files == null) {
+                if (!forceReload && !isModified(context, sourceApk, currentCrc)) {
+                    try {
+                        Log.i(TAG, "Detected that no need to perform extraction.");
+                        files = loadExistingExtractions(context, sourceApk, dexDir);
+                    } catch (IOException ioe) {
+                        Log.w(TAG, "Failed to reload existing extracted secondary dex files,"
+                                + " falling back to fresh extraction", ioe);
+                        discardReported();
+                        prepareReusableDexes(context, sourceApk, dexDir);
+                        files = performExtractions(sourceApk, dexDir);
+                        putStoredApkInfo(context, fingerprint, currentCrc, files);
+                        deletePreviousDexes(sourceApk, dexDir);
+                    }
+                } else {
+                    Log.i(TAG, "Detected that extraction must be performed.");
+                    prepareReusableDexes(context, sourceApk, dexDir);
                     files = performExtractions(sourceApk, dexDir);
-                    putStoredApkInfo(context, getTimeStamp(sourceApk), currentCrc, files);
+                    putStoredApkInfo(context, fingerprint, currentCrc, files);
+                    deletePreviousDexes(sourceApk, dexDir);
                 }
-            } else {
-                Log.i(TAG, "Detected that extraction must be performed.");
-                files = performExtractions(sourceApk, dexDir);
-                putStoredApkInfo(context, getTimeStamp(sourceApk), currentCrc, files);
             }
         } finally {
+            if (files == null) {
+                // the dexes already in dexopt may be extracted again by the next load
+                discardReported();
+                restoreRenamedDexes();
+            }
             if (cacheLock != null) {
                 try {
                     cacheLock.release();
@@ -115,17 +240,262 @@ public abstract class DexElementsExtractor implements IHookMultiDexExtractor {
      */
     abstract protected List<ExtractedDex> performExtractions(File sourceApk, File dexDir) throws IOException;
 
+    /**
+     * Take the lock on {@link #LOCK_FILENAME}, logging how long it was waited for.
+     */
+    static FileLock lock(FileChannel lockChannel, File lockFile, boolean shared) throws IOException {
+        String mode = shared ? "shared" : "exclusive";
+        Log.i(TAG, "Blocking on " + mode + " lock " + lockFile.getPath());
+        long start = SystemClock.uptimeMillis();
+        FileLock lock = lockChannel.lock(0L, Long.MAX_VALUE, shared);
+        Log.i(TAG, lockFile.getPath() + " locked " + mode + ", waited " + (SystemClock.uptimeMillis() - start) + "ms");
+        return lock;
+    }
+
+    /**
+     * Find the files of the previous extraction whose apk entry has the same crc and size as in
+     * the apk to extract. They keep their name until {@link #reuseExtracted} verified them, and the
+     * other files of the previous extraction are only deleted once the extraction succeeded, so a
+     * failed extraction leaves the previous one complete. The files of an interrupted extraction of
+     * this apk already have the name expected. Must be called before {@link #performExtractions},
+     * while owning the lock on {@link #LOCK_FILENAME}.
+     */
+    private void prepareReusableDexes(Context context, File sourceApk, File dexDir) throws IOException {
+        reusableDexes.clear();
+        renamedDexes.clear();
+        previousPrefix = null;
+        checkpointPreferences = null;
+        if ((MultiDex.DEFAULT_FLAG & (MultiDex.FLAG_INCREMENTAL_EXTRACT | MultiDex.FLAG_EXTRACT_CHECKPOINT)) == 0) {
+            return;
+        }
+        long start = SystemClock.uptimeMillis();
+        SharedPreferences prefs = getMultiDexPreferences(context);
+        if ((MultiDex.DEFAULT_FLAG & MultiDex.FLAG_EXTRACT_CHECKPOINT) != 0) {
+            checkpointPreferences = prefs;
+        }
+        ApkFingerprint previousApk = ApkFingerprint.load(prefs);
+        String extractedFilePrefix = sourceApk.getName() + EXTRACTED_NAME_EXT;
+        String previousPrefix = previousApk != null
+                ? new File(previousApk.path).getName() + EXTRACTED_NAME_EXT : extractedFilePrefix;
+        if (!previousPrefix.equals(extractedFilePrefix)) {
+            this.previousPrefix = previousPrefix;
+        }
+        String suffix = (MultiDex.DEFAULT_FLAG & MultiDex.FLAG_EXTRACT_RAW_DEX_NOT_ZIP) != 0
+                ? DEX_SUFFIX : EXTRACTED_SUFFIX;
+
+        List<ZipUtil.DexEntry> entries = getApkDexIndex(sourceApk, dexDir).getSecondaryDexEntries();
+        for (int i = 0; i < entries.size(); i++) {
+            int secondaryNumber = i + 2;
+            ZipUtil.DexEntry entry = entries.get(i);
+            // the keys of a dex may come from the last complete extraction or from a checkpoint
+            if (prefs.getLong(KEY_DEX_ENTRY_CRC + entry.name, NO_VALUE) != entry.crc
+                    || prefs.getLong(KEY_DEX_ENTRY_SIZE + entry.name, NO_VALUE) != entry.size) {
+                continue;
+            }
+            long expectedModTime = prefs.getLong(KEY_DEX_TIME + secondaryNumber, NO_VALUE);
+            ExtractedDex reusable = new ExtractedDex(dexDir, extractedFilePrefix + secondaryNumber + suffix);
+            if (!reusable.isFile() || reusable.lastModified() != expectedModTime) {
+                reusable = new ExtractedDex(dexDir, previousPrefix + secondaryNumber + suffix);
+                if (!reusable.isFile() || reusable.lastModified() != expectedModTime) {
+                    continue;
+                }
+            }
+            reusable.crc = prefs.getLong(KEY_DEX_CRC + secondaryNumber, NO_VALUE);
+            reusableDexes.put(secondaryNumber, reusable);
+        }
+        Log.i(TAG, "reusable secondary dexes " + reusableDexes.keySet() + " of " + entries.size()
+                + ", need " + (SystemClock.uptimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Delete what is left of the previous extraction once the current one succeeded and is saved.
+     */
+    private void deletePreviousDexes(File sourceApk, File dexDir) throws IOException {
+        renamedDexes.clear();
+        if (previousPrefix == null) {
+            return;
+        }
+        previousPrefix = null;
+        prepareDexDirs(dexDir, sourceApk.getName() + EXTRACTED_NAME_EXT);
+    }
+
+    /**
+     * Give the files renamed by a failed extraction the name of the previous extraction back, along
+     * with their odex. Must be called once no extracting thread is left.
+     */
+    private void restoreRenamedDexes() {
+        for (Map.Entry<Integer, ExtractedDex> renamed : renamedDexes.entrySet()) {
+            ExtractedDex previous = reusableDexes.get(renamed.getKey());
+            ExtractedDex file = renamed.getValue();
+            if (file.renameTo(previous)) {
+                renameOdex(file, previous, getOptimizedDirectory(previous.getParentFile()));
+            } else {
+                Log.w(TAG, "Failed to rename " + file.getPath() + " back to " + previous.getName());
+            }
+        }
+        renamedDexes.clear();
+    }
+
+    /**
+     * Record {@code dex} as extracted, so that an extraction interrupted later does not have to
+     * extract it again. The apk crc and time stamp are still only saved once every dex is
+     * extracted, so the next load extracts again and keeps the dexes recorded here.
+     */
+    private void putCheckpoint(int secondaryNumber, ExtractedDex dex) {
+        SharedPreferences prefs = checkpointPreferences;
+        if (prefs == null) {
+            return;
+        }
+        String entryName = DEX_PREFIX + secondaryNumber + DEX_SUFFIX;
+        ZipUtil.DexEntry entry;
+        synchronized (this) {
+            entry = apkDexIndex == null ? null : apkDexIndex.get(entryName);
+        }
+        if (entry == null) {
+            return;
+        }
+        long lastModified = dex.lastModified();
+        if (prefs.getLong(KEY_DEX_CRC + secondaryNumber, NO_VALUE) == dex.crc
+                && prefs.getLong(KEY_DEX_TIME + secondaryNumber, NO_VALUE) == lastModified
+                && prefs.getLong(KEY_DEX_ENTRY_CRC + entryName, NO_VALUE) == entry.crc
+                && prefs.getLong(KEY_DEX_ENTRY_SIZE + entryName, NO_VALUE) == entry.size) {
+            // kept from a previous extraction
+            return;
+        }
+        long start = SystemClock.uptimeMillis();
+        SharedPreferences.Editor edit = prefs.edit();
+        edit.putLong(KEY_DEX_CRC + secondaryNumber, dex.crc);
+        edit.putLong(KEY_DEX_TIME + secondaryNumber, lastModified);
+        edit.putLong(KEY_DEX_ENTRY_CRC + entryName, entry.crc);
+        edit.putLong(KEY_DEX_ENTRY_SIZE + entryName, entry.size);
+        edit.commit();
+        Log.i(TAG, "checkpoint of " + entryName + " need " + (SystemClock.uptimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Rename the odex of {@code previous} to the name the one of {@code renamed} would have: its
+     * name with a .dex extension, or .dex appended before API 14.
+     */
+    private static void renameOdex(File previous, File renamed, File optimizedDirectory) {
+        if (optimizedDirectory == null) {
+            return;
+        }
+        String[] previousNames = {stripExtension(previous.getName()) + DEX_SUFFIX,
+                previous.getName() + DEX_SUFFIX};
+        String[] renamedNames = {stripExtension(renamed.getName()) + DEX_SUFFIX,
+                renamed.getName() + DEX_SUFFIX};
+        for (int i = 0; i < previousNames.length; i++) {
+            File odex = new File(optimizedDirectory, previousNames[i]);
+            if (!odex.equals(previous) && odex.isFile()
+                    && !odex.renameTo(new File(optimizedDirectory, renamedNames[i]))) {
+                Log.w(TAG, "Failed to rename " + odex.getPath());
+            }
+        }
+    }
+
+    /**
+     * @return the directory of the odex of the files of {@code dexDir}, null if it cannot be created.
+     */
+    private static File getOptimizedDirectory(File dexDir) {
+        if ((MultiDex.DEFAULT_FLAG & MultiDex.FLAG_EXTRACT_RAW_DEX_NOT_ZIP) == 0) {
+            return dexDir;
+        }
+        try {
+            return MultiDex.getOptDexDir(dexDir);
+        } catch (IOException e) {
+            Log.w(TAG, "No dexopt directory in " + dexDir.getPath(), e);
+            return null;
+        }
+    }
+
+    private static String stripExtension(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    /**
+     * To be called by {@link #performExtractions} before extracting a dex, on the thread that would
+     * extract it.
+     *
+     * @param crcParallelism number of threads the crc of the previous file may be split on.
+     * @return true if the file of the previous extraction of an unchanged entry is now
+     * {@code extractTo}, its crc set. It is verified unless {@link MultiDex#FLAG_NOT_DEX_CRC} is set,
+     * and only renamed once verified.
+     */
+    protected boolean reuseExtracted(int secondaryNumber, ExtractedDex extractTo, int crcParallelism) {
+        ExtractedDex previous = reusableDexes.get(secondaryNumber);
+        if (previous == null || !previous.isFile()) {
+            return false;
+        }
+        if ((MultiDex.DEFAULT_FLAG & MultiDex.FLAG_NOT_DEX_CRC) == 0) {
+            long start = SystemClock.uptimeMillis();
+            try {
+                long fileCrc;
+                if ((MultiDex.DEFAULT_FLAG & MultiDex.FLAG_EXTRACT_RAW_DEX_NOT_ZIP) != 0) {
+                    fileCrc = getDexCrc(previous, crcParallelism);
+                } else {
+                    fileCrc = getZipCrc(previous);
+                }
+                if (fileCrc != previous.crc) {
+                    Log.i(TAG, "previous " + previous.getPath() + " has crc " + fileCrc + " instead of " + previous.crc);
+                    return false;
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to verify previous " + previous.getPath(), e);
+                return false;
+            }
+            Log.i(TAG, "verify previous " + previous.getName() + " need " + (SystemClock.uptimeMillis() - start) + "ms");
+        }
+        if (!previous.equals(extractTo)) {
+            if (!previous.renameTo(extractTo)) {
+                Log.w(TAG, "Failed to rename " + previous.getPath() + " to " + extractTo.getName());
+                return false;
+            }
+            renameOdex(previous, extractTo, getOptimizedDirectory(extractTo.getParentFile()));
+            synchronized (renamedDexes) {
+                renamedDexes.put(secondaryNumber, extractTo);
+            }
+        }
+        extractTo.crc = previous.crc;
+        Log.i(TAG, "reuse previous extraction of classes" + secondaryNumber + ".dex");
+        return true;
+    }
+
+    /**
+     * Remove the files of other extractions from {@code dexDir}, and from its dexopt directory with
+     * raw dexes. The files of the previous extraction are kept until the current one succeeds, see
+     * {@link #prepareReusableDexes}.
+     */
+    protected void prepareDexDirs(File dexDir, String extractedFilePrefix) throws IOException {
+        prepareDexDir(dexDir, extractedFilePrefix, previousPrefix);
+        if ((MultiDex.DEFAULT_FLAG & MultiDex.FLAG_EXTRACT_RAW_DEX_NOT_ZIP) != 0) {
+            prepareDexDir(MultiDex.getOptDexDir(dexDir), extractedFilePrefix, previousPrefix);
+        }
+    }
+
     /**
      * This removes old files.
      */
     protected static void prepareDexDir(File dexDir, final String extractedFilePrefix) {
+        prepareDexDir(dexDir, extractedFilePrefix, null);
+    }
+
+    /**
+     * @param keptPrefix name prefix of other files to keep, may be null.
+     */
+    private static void prepareDexDir(File dexDir, final String extractedFilePrefix,
+                                      final String keptPrefix) {
         FileFilter filter = new FileFilter() {
 
             @Override
             public boolean accept(File pathname) {
                 String name = pathname.getName();
                 return !(name.startsWith(extractedFilePrefix)
-                        || name.equals(LOCK_FILENAME));
+                        || (keptPrefix != null && name.startsWith(keptPrefix))
+                        || name.equals(LOCK_FILENAME)
+                        || name.equals(INDEX_FILENAME)
+                        || name.equals(MANIFEST_FILENAME)
+                        || name.equals(CLASS_INDEX_FILENAME));
             }
         };
         File[] files = dexDir.listFiles(filter);
@@ -146,46 +516,240 @@ public abstract class DexElementsExtractor implements IHookMultiDexExtractor {
         }
     }
 
-    protected void extract(ZipFile apk, ZipEntry dexFile, File extractTo,
+    /**
+     * Extracts the dex entry to extractTo and sets {@link ExtractedDex#crc} to the value
+     * {@link #getZipCrc} or {@link #getDexCrc} would compute on the result. The crc is computed while
+     * the bytes are written and the dex content is checked against the crc of the entry on the way,
+     * extractTo is never read back entirely.
+     */
+    protected void extract(ApkReader apk, ZipUtil.DexEntry dexFile, ExtractedDex extractTo,
                            String extractedFilePrefix) throws IOException, FileNotFoundException {
 
-        InputStream in = apk.getInputStream(dexFile);
+        if ((MultiDex.DEFAULT_FLAG & MultiDex.FLAG_EXTRACT_RAW_DEX_NOT_ZIP) != 0) {
+            extractRawDex(apk, dexFile, extractTo, extractedFilePrefix);
+            return;
+        }
+
+        if ((MultiDex.DEFAULT_FLAG & MultiDex.FLAG_EXTRACT_STORED_ZIP) != 0) {
+            extractStoredZip(apk, dexFile, extractTo, extractedFilePrefix);
+            return;
+        }
+
+        if ((MultiDex.DEFAULT_FLAG & MultiDex.FLAG_EXTRACT_ZIP_RAW_COPY) != 0) {
+            extractRawCopy(apk, dexFile, extractTo, extractedFilePrefix);
+            return;
+        }
+
+        long start = SystemClock.uptimeMillis();
+        InputStream in = null;
         ZipOutputStream out = null;
         // Temp files must not start with extractedFilePrefix to get cleaned up in prepareDexDir()
         File tmp = File.createTempFile("tmp-" + extractedFilePrefix, EXTRACTED_SUFFIX,
                 extractTo.getParentFile());
         Log.i(TAG, "Extracting " + tmp.getPath());
         try {
+            in = apk.getInputStream(dexFile);
             out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
             try {
                 ZipEntry classesDex = new ZipEntry("classes.dex");
                 // keep zip entry time since it is the criteria used by Dalvik
-                classesDex.setTime(dexFile.getTime());
+                classesDex.setTime(ZipUtil.dosToJavaTime(dexFile.time));
                 out.putNextEntry(classesDex);
 
+                CRC32 crc = new CRC32();
                 byte[] buffer = new byte[BUFFER_SIZE];
                 int length = in.read(buffer);
                 while (length != -1) {
                     out.write(buffer, 0, length);
+                    crc.update(buffer, 0, length);
                     length = in.read(buffer);
                 }
                 out.closeEntry();
+                checkEntryCrc(dexFile, crc.getValue());
+            } finally {
+                out.close();
+            }
+            markReadOnlyAndRename(tmp, extractTo);
+            // The central directory of a one entry zip is a few dozen bytes at the end of the file,
+            // reading it back does not mean reading the dex again.
+            extractTo.crc = getZipCrc(extractTo);
+        } finally {
+            if (in != null) {
+                closeQuietly(in);
+            }
+            tmp.delete(); // return status ignored
+        }
+        Log.i(TAG, "deflated zip " + dexFile.name + " (" + dexFile.size + " bytes) need "
+                + (SystemClock.uptimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Extracts dexFile as a raw dex file, see {@link MultiDex#FLAG_EXTRACT_RAW_DEX_NOT_ZIP}.
+     */
+    private void extractRawDex(ApkReader apk, ZipUtil.DexEntry dexFile, ExtractedDex extractTo,
+                               String extractedFilePrefix) throws IOException {
+        if ((MultiDex.DEFAULT_FLAG & MultiDex.FLAG_EXTRACT_RAW_DEX_ZERO_COPY) != 0
+                && dexFile.method == ZipEntry.STORED) {
+            extractStored(apk, dexFile, extractTo, extractedFilePrefix);
+            return;
+        }
+        long start = SystemClock.uptimeMillis();
+        InputStream in = null;
+        BufferedOutputStream out = null;
+        // Temp files must not start with extractedFilePrefix to get cleaned up in prepareDexDir()
+        File tmp = File.createTempFile("tmp-" + extractedFilePrefix, DEX_SUFFIX,
+                extractTo.getParentFile());
+        Log.i(TAG, "Extracting " + tmp.getPath());
+        try {
+            in = apk.getInputStream(dexFile);
+            out = new BufferedOutputStream(new FileOutputStream(tmp));
+            CRC32 crc = new CRC32();
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int length = in.read(buffer);
+                while (length != -1) {
+                    out.write(buffer, 0, length);
+                    crc.update(buffer, 0, length);
+                    length = in.read(buffer);
+                }
+            } finally {
+                out.close();
+            }
+            // the crc of a raw dex file is the crc of its entry in the apk
+            checkEntryCrc(dexFile, crc.getValue());
+            markReadOnlyAndRename(tmp, extractTo);
+            extractTo.crc = crc.getValue();
+        } finally {
+            if (in != null) {
+                closeQuietly(in);
+            }
+            tmp.delete(); // return status ignored
+        }
+        Log.i(TAG, "raw dex " + dexFile.name + " (" + dexFile.size + " bytes) need "
+                + (SystemClock.uptimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Copy a STORED dex entry from the apk to extractTo with {@link java.nio.channels.FileChannel#transferTo},
+     * no inflating and no java heap buffer are involved. The bytes never reach java so the crc is the
+     * one of the apk entry, the copy is checked by its length.
+     */
+    private void extractStored(ApkReader apk, ZipUtil.DexEntry entry, ExtractedDex extractTo,
+                               String extractedFilePrefix) throws IOException {
+        long start = SystemClock.uptimeMillis();
+        FileOutputStream out = null;
+        // Temp files must not start with extractedFilePrefix to get cleaned up in prepareDexDir()
+        File tmp = File.createTempFile("tmp-" + extractedFilePrefix, DEX_SUFFIX,
+                extractTo.getParentFile());
+        Log.i(TAG, "Extracting stored " + entry.name + " to " + tmp.getPath());
+        try {
+            out = new FileOutputStream(tmp);
+            try {
+                apk.transferTo(entry, entry.size, out.getChannel());
             } finally {
                 out.close();
             }
-            if (!tmp.setReadOnly()) {
-                throw new IOException("Failed to mark readonly \"" + tmp.getAbsolutePath() +
-                        "\" (tmp of \"" + extractTo.getAbsolutePath() + "\")");
+            if (tmp.length() != entry.size) {
+                throw new IOException("Size mismatch while extracting " + entry.name
+                        + ", expected " + entry.size + " but was " + tmp.length());
+            }
+            markReadOnlyAndRename(tmp, extractTo);
+            extractTo.crc = entry.crc;
+        } finally {
+            tmp.delete(); // return status ignored
+        }
+        Log.i(TAG, "zero copy " + entry.name + " (" + entry.size + " bytes) need "
+                + (SystemClock.uptimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Build the zip extractTo with a STORED classes.dex entry, see
+     * {@link DexZipWriter#writeStoredEntry}. A deflated apk entry is inflated once, a stored one is
+     * copied directly.
+     */
+    private void extractStoredZip(ApkReader apk, ZipUtil.DexEntry entry, ExtractedDex extractTo,
+                                  String extractedFilePrefix) throws IOException {
+        long start = SystemClock.uptimeMillis();
+        InputStream in = null;
+        // Temp files must not start with extractedFilePrefix to get cleaned up in prepareDexDir()
+        File tmp = File.createTempFile("tmp-" + extractedFilePrefix, EXTRACTED_SUFFIX,
+                extractTo.getParentFile());
+        Log.i(TAG, "Extracting stored zip of " + entry.name + " to " + tmp.getPath());
+        try {
+            if (entry.method != ZipEntry.STORED) {
+                in = apk.getInputStream(entry);
             }
-            Log.i(TAG, "Renaming to " + extractTo.getPath());
-            if (!tmp.renameTo(extractTo)) {
-                throw new IOException("Failed to rename \"" + tmp.getAbsolutePath() +
-                        "\" to \"" + extractTo.getAbsolutePath() + "\"");
+            long crc = DexZipWriter.writeStoredEntry(apk.getChannel(), entry, in, tmp);
+            markReadOnlyAndRename(tmp, extractTo);
+            extractTo.crc = crc;
+        } finally {
+            if (in != null) {
+                closeQuietly(in);
             }
+            tmp.delete(); // return status ignored
+        }
+        Log.i(TAG, "stored zip " + entry.name + " (" + entry.size + " bytes) need "
+                + (SystemClock.uptimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Build the zip extractTo by copying the compressed bytes of the dex entry verbatim, see
+     * {@link DexZipWriter#copyRawEntry}.
+     */
+    private void extractRawCopy(ApkReader apk, ZipUtil.DexEntry entry, ExtractedDex extractTo,
+                                String extractedFilePrefix) throws IOException {
+        long start = SystemClock.uptimeMillis();
+        // Temp files must not start with extractedFilePrefix to get cleaned up in prepareDexDir()
+        File tmp = File.createTempFile("tmp-" + extractedFilePrefix, EXTRACTED_SUFFIX,
+                extractTo.getParentFile());
+        Log.i(TAG, "Extracting raw copy of " + entry.name + " to " + tmp.getPath());
+        try {
+            long crc = DexZipWriter.copyRawEntry(apk.getChannel(), entry, tmp);
+            markReadOnlyAndRename(tmp, extractTo);
+            extractTo.crc = crc;
         } finally {
-            closeQuietly(in);
             tmp.delete(); // return status ignored
         }
+        Log.i(TAG, "raw copy " + entry.name + " (" + entry.compressedSize + " bytes) need "
+                + (SystemClock.uptimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Check the crc computed while extracting against the one recorded in the apk, so that a corrupt
+     * write is detected right away.
+     */
+    protected static void checkEntryCrc(ZipUtil.DexEntry dexFile, long computedCrc) throws IOException {
+        if (dexFile.crc != computedCrc) {
+            throw new IOException("Crc mismatch while extracting " + dexFile.name
+                    + ", expected crc: " + dexFile.crc + ", computed crc: " + computedCrc);
+        }
+    }
+
+    /**
+     * Publish a completely written temp file under its final name.
+     */
+    protected static void markReadOnlyAndRename(File tmp, File extractTo) throws IOException {
+        if (!tmp.setReadOnly()) {
+            throw new IOException("Failed to mark readonly \"" + tmp.getAbsolutePath() +
+                    "\" (tmp of \"" + extractTo.getAbsolutePath() + "\")");
+        }
+        Log.i(TAG, "Renaming to " + extractTo.getPath());
+        if (!tmp.renameTo(extractTo)) {
+            throw new IOException("Failed to rename \"" + tmp.getAbsolutePath() +
+                    "\" to \"" + extractTo.getAbsolutePath() + "\"");
+        }
+    }
+
+    /**
+     * The dex entries of the apk, loaded from {@link #INDEX_FILENAME} or read from the apk central
+     * directory the first time they are needed. Should be called only while owning the lock on
+     * {@link #LOCK_FILENAME}.
+     */
+    protected synchronized ApkDexIndex getApkDexIndex(File sourceApk, File dexDir) throws IOException {
+        if (apkDexIndex == null) {
+            apkDexIndex = ApkDexIndex.load(sourceApk, dexDir);
+        }
+        return apkDexIndex;
     }
 
     /**
@@ -255,14 +819,7 @@ public abstract class DexElementsExtractor implements IHookMultiDexExtractor {
                 }
             }
 
-            int threadMaxSizeLimit = 0;
-            if (MultiDex.CPU_COUNT == 1) {
-                threadMaxSizeLimit = MultiDex.CPU_COUNT * 2 + 1;
-            } else if (MultiDex.CPU_COUNT == 2) {
-                threadMaxSizeLimit = MultiDex.CPU_COUNT * 2;
-            } else {
-                threadMaxSizeLimit = MultiDex.CPU_COUNT + 1;
-            }
+            int threadMaxSizeLimit = MultiDexExecutor.MAX_THREADS;
             int extraDexCount = dexOrZipFiles.size();
             if (extraDexCount <= 0) {
                 return files;
@@ -275,129 +832,97 @@ public abstract class DexElementsExtractor implements IHookMultiDexExtractor {
             }
             Log.i(TAG, "cpu count: " + MultiDex.CPU_COUNT + ", threadMaxSizeLimit: " + threadMaxSizeLimit + ", extraDexCount: " + extraDexCount + ", final thread size: " + threadSize);
 
+            if ((MultiDex.DEFAULT_FLAG & MultiDex.FLAG_DYNAMIC_SCHEDULE) != 0) {
+                List<DexOrZipFile> largestFirst = new ArrayList<>(dexOrZipFiles);
+                Collections.sort(largestFirst, Collections.reverseOrder());
+                ExtractedDex[] loaded = new ExtractedDex[extraDexCount];
+                int crcParallelism = Math.max(1, MultiDex.CPU_COUNT / Math.min(threadMaxSizeLimit, extraDexCount));
+                if (!DexTaskQueue.runAll(largestFirst, new LoadAndCrcVerifyTask(loaded, crcParallelism))) {
+                    Log.i(TAG, "loading existing secondary dex files failed, need " + (SystemClock.uptimeMillis() - begin) + "ms");
+                    throw new IOException("loading existing secondary dex files failed");
+                }
+                files.addAll(Arrays.asList(loaded));
+                Log.i(TAG, "loading existing secondary dex files with dynamic schedule success, need " + (SystemClock.uptimeMillis() - begin) + "ms");
+                return files;
+            }
+
             List<DexOrZipFileGroup> groups = makeGroupList(threadSize + 1, dexOrZipFiles);
             int size = groups.size();
             Log.i(TAG, "group size: " + size);
+            // cores left idle by the groups are used to split the crc of large dexes
+            int crcParallelism = Math.max(1, MultiDex.CPU_COUNT / size);
             FutureTask<List<ExtractedDex>>[] futureTasks = new FutureTask[size];
             int secondaryNumber = 2;
             for (int i = 0; i < size; i++) {
                 DexOrZipFileGroup group = groups.get(i);
-                futureTasks[i] = new FutureTask<List<ExtractedDex>>(new LoadAndCrcVerifyCallable(group, i));
-            }
-            for (int i = 1; i < size; i++) {
-                new Thread(futureTasks[i]).start();
-                ;
+                futureTasks[i] = new FutureTask<List<ExtractedDex>>(new LoadAndCrcVerifyCallable(group, i, crcParallelism));
             }
-            if (futureTasks.length > 0) {
-                futureTasks[0].run();
-            }
-            try {
-                for (int i = 0; i < size; i++) {
-                    List<ExtractedDex> extractedDexList = futureTasks[i].get();
-                    if (extractedDexList != null) {
-                        files.addAll(extractedDexList);
-                    } else {
-                        throw new IOException("Invalid extracted dex");
+            MultiDexExecutor.runAll(futureTasks);
+            // groups are not in apk order, each dex goes back at the index of its secondary number
+            ExtractedDex[] loaded = new ExtractedDex[extraDexCount];
+            boolean failed = false;
+            for (int i = 0; i < size; i++) {
+                // every group is waited for, a failed load must not leave one still reporting dexes
+                List<ExtractedDex> extractedDexList = null;
+                try {
+                    extractedDexList = futureTasks[i].get();
+                } catch (Exception e) {
+                    Log.w(TAG, "group[" + i + "] load and crc verify failed", e);
+                }
+                if (extractedDexList != null) {
+                    List<DexOrZipFile> groupFiles = groups.get(i).getDexOrZipFiles();
+                    for (int j = 0; j < extractedDexList.size(); j++) {
+                        loaded[groupFiles.get(j).getNumber() - 2] = extractedDexList.get(j);
                     }
+                } else {
+                    failed = true;
                 }
-            } catch (Exception e) {
+            }
+            if (failed) {
                 Log.i(TAG, "loading existing secondary dex files failed, need " + (SystemClock.uptimeMillis() - begin) + "ms");
                 throw new IOException("loading existing secondary dex files failed");
             }
+            files.addAll(Arrays.asList(loaded));
 
             Log.i(TAG, "loading existing secondary dex files success, need " + (SystemClock.uptimeMillis() - begin) + "ms");
             return files;
         }
     }
 
-    private List<DexOrZipFileGroup> makeGroupList(int groupSize, List<DexOrZipFile> dexOrZipFiles) {
-        List<DexOrZipFileGroup> groups = averageGroup(groupSize, dexOrZipFiles);
-        Collections.sort(groups);
-        return groups;
-    }
-
-    private List<DexOrZipFileGroup> averageGroup(int groupSize, List<DexOrZipFile> input) {
-        ArrayList<DexOrZipFileGroup> resultList = new ArrayList<>(groupSize);
-        if (groupSize > input.size() || groupSize <= 0) {
-            return resultList;
-        } else if (groupSize == input.size()) {
-            for (DexOrZipFile dexOrZipFile : input) {
-                DexOrZipFileGroup group = new DexOrZipFileGroup();
-                group.add(dexOrZipFile);
-                resultList.add(group);
-            }
-            return resultList;
-        }
-
-        for (int i = 0; i < groupSize; i++) {
-            resultList.add(new DexOrZipFileGroup());
-        }
-
-        List<DexOrZipFile> sortedInput = input;
-        int inputLen = input.size();
-        Collections.sort(sortedInput);
-
-        // 从最大的开始填充到结果中
-        for (int i = 0; i < groupSize; i++) {
-            resultList.get(i).add(sortedInput.get(inputLen - 1 - i));
-        }
-        // 从大到小遍历剩下的数字
-        for (int i = inputLen - 1 - groupSize; i >= 0; i--) {
-            ArrayList<Long> tempSum = new ArrayList<>(groupSize);
-            for (DexOrZipFileGroup group : resultList) {
-                tempSum.add(getSum(group) + sortedInput.get(i).getSize());
-            }
-            int minIndex = findMinIndex(tempSum); // 找出结果最小的那个分组
-            resultList.get(minIndex).add(sortedInput.get(i)); // 将当前数加入那个分组
-        }
-
-        return resultList;
-    }
-
     /**
-     * @return The index of the min member
+     * @return groups of close total size, see {@link DexPartitioner}, largest first.
      */
-    private static int findMinIndex(ArrayList<Long> list) {
-        int res = 0;
-        long t = Long.MAX_VALUE;
-        for (int index = 0; index < list.size(); index++) {
-            if (list.get(index) < t) {
-                t = list.get(index);
-                res = index;
+    private List<DexOrZipFileGroup> makeGroupList(int groupSize, List<DexOrZipFile> dexOrZipFiles) {
+        long[] sizes = new long[dexOrZipFiles.size()];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = dexOrZipFiles.get(i).getSize();
+        }
+        int[][] partition = DexPartitioner.partition(sizes, groupSize);
+        List<DexOrZipFileGroup> groups = new ArrayList<>(partition.length);
+        for (int[] indexes : partition) {
+            DexOrZipFileGroup group = new DexOrZipFileGroup();
+            for (int index : indexes) {
+                group.add(dexOrZipFiles.get(index));
             }
+            groups.add(group);
         }
-        return res;
-    }
-
-    /**
-     * @return Sum of group members
-     */
-    private static long getSum(DexOrZipFileGroup group) {
-        return group.getSize();
+        return groups;
     }
 
-    private class DexOrZipFileGroup implements Comparable<DexOrZipFileGroup> {
+    private class DexOrZipFileGroup {
         private final List<DexOrZipFile> dexOrZipFiles;
+        private long size;
 
         public DexOrZipFileGroup() {
             this.dexOrZipFiles = new ArrayList<>();
         }
 
         public boolean add(DexOrZipFile dexOrZipFile) {
+            size += dexOrZipFile.getSize();
             return dexOrZipFiles.add(dexOrZipFile);
         }
 
-        @Override
-        public int compareTo(DexOrZipFileGroup dexOrZipFileGroup) {
-            // 降序排列
-            return getSize() - dexOrZipFileGroup.getSize() > 0 ? -1 : 1;
-        }
-
         public long getSize() {
-            long size = 0;
-            for (DexOrZipFile dexOrZipFile : dexOrZipFiles) {
-                size += dexOrZipFile.getSize();
-            }
             return size;
         }
 
@@ -483,7 +1008,7 @@ public abstract class DexElementsExtractor implements IHookMultiDexExtractor {
 
         @Override
         public int compareTo(DexOrZipFile dexOrZipFile) {
-            return size - dexOrZipFile.getSize() > 0 ? 1 : -1;
+            return size < dexOrZipFile.getSize() ? -1 : (size == dexOrZipFile.getSize() ? 0 : 1);
         }
     }
 
@@ -491,10 +1016,12 @@ public abstract class DexElementsExtractor implements IHookMultiDexExtractor {
 
         private final DexOrZipFileGroup group;
         private final int groupIndex;
+        private final int crcParallelism;
 
-        public LoadAndCrcVerifyCallable(DexOrZipFileGroup group, int groupIndex) {
+        public LoadAndCrcVerifyCallable(DexOrZipFileGroup group, int groupIndex, int crcParallelism) {
             this.group = group;
             this.groupIndex = groupIndex;
+            this.crcParallelism = crcParallelism;
         }
 
         @Override
@@ -505,7 +1032,7 @@ public abstract class DexElementsExtractor implements IHookMultiDexExtractor {
                 List<ExtractedDex> extractedDexList = new ArrayList<>();
                 List<DexOrZipFile> dexOrZipFiles = group.getDexOrZipFiles();
                 for (DexOrZipFile dexOrZipFile : dexOrZipFiles) {
-                    ExtractedDex extractedDex = loadDexAndCrcVerify(dexOrZipFile);
+                    ExtractedDex extractedDex = loadDexAndCrcVerify(dexOrZipFile, crcParallelism);
                     if (extractedDex != null) {
                         extractedDexList.add(extractedDex);
                     } else {
@@ -528,55 +1055,81 @@ public abstract class DexElementsExtractor implements IHookMultiDexExtractor {
             }
             return null;
         }
+    }
 
-        private ExtractedDex loadDexAndCrcVerify(DexOrZipFile dexOrZipFile) {
-            try {
-                SharedPreferences multiDexPreferences = dexOrZipFile.getMultiDexPreferences();
-                int secondaryNumber = dexOrZipFile.getNumber();
-                String suffix = dexOrZipFile.getSuffix();
-                ExtractedDex extractedFile = dexOrZipFile.getExtractedDex();
-                if (extractedFile.isFile()) {
-                    Log.i(TAG, "load and crc verify " + suffix.substring(1) + " \"" + extractedFile.getAbsolutePath() + "\"");
-                    if ((MultiDex.DEFAULT_FLAG & MultiDex.FLAG_NOT_DEX_CRC) != 0) {
-                        Log.i(TAG, suffix.substring(1) + " \"" + extractedFile.getAbsolutePath() + "\" crc verify disabled");
+    private ExtractedDex loadDexAndCrcVerify(DexOrZipFile dexOrZipFile, int crcParallelism) {
+        try {
+            SharedPreferences multiDexPreferences = dexOrZipFile.getMultiDexPreferences();
+            int secondaryNumber = dexOrZipFile.getNumber();
+            String suffix = dexOrZipFile.getSuffix();
+            ExtractedDex extractedFile = dexOrZipFile.getExtractedDex();
+            if (extractedFile.isFile()) {
+                Log.i(TAG, "load and crc verify " + suffix.substring(1) + " \"" + extractedFile.getAbsolutePath() + "\"");
+                if ((MultiDex.DEFAULT_FLAG & MultiDex.FLAG_NOT_DEX_CRC) != 0) {
+                    Log.i(TAG, suffix.substring(1) + " \"" + extractedFile.getAbsolutePath() + "\" crc verify disabled");
+                } else {
+                    Log.i(TAG, suffix.substring(1) + " \"" + extractedFile.getAbsolutePath() + "\" crc verify enabled");
+                    long start = SystemClock.uptimeMillis();
+                    if ((MultiDex.FLAG_EXTRACT_RAW_DEX_NOT_ZIP & MultiDex.DEFAULT_FLAG) != 0) {
+                        long start1 = SystemClock.uptimeMillis();
+                        extractedFile.crc = getDexCrc(extractedFile, crcParallelism);
+                        Log.i(TAG, "getDexCrc need " + (SystemClock.uptimeMillis() - start1) + "ms");
                     } else {
-                        Log.i(TAG, suffix.substring(1) + " \"" + extractedFile.getAbsolutePath() + "\" crc verify enabled");
-                        long start = SystemClock.uptimeMillis();
-                        if ((MultiDex.FLAG_EXTRACT_RAW_DEX_NOT_ZIP & MultiDex.DEFAULT_FLAG) != 0) {
-                            long start1 = SystemClock.uptimeMillis();
-                            extractedFile.crc = getDexCrc(extractedFile);
-                            Log.i(TAG, "getDexCrc need " + (SystemClock.uptimeMillis() - start1) + "ms");
-                        } else {
-                            long start2 = SystemClock.uptimeMillis();
-                            extractedFile.crc = getZipCrc(extractedFile);
-                            Log.i(TAG, "getZipCrc need " + (SystemClock.uptimeMillis() - start2) + "ms");
-                        }
-                        long expectedCrc =
-                                multiDexPreferences.getLong(KEY_DEX_CRC + secondaryNumber, NO_VALUE);
-                        long expectedModTime =
-                                multiDexPreferences.getLong(KEY_DEX_TIME + secondaryNumber, NO_VALUE);
-                        long lastModified = extractedFile.lastModified();
-
-                        Log.i(TAG, "load and crc verify " + suffix.substring(1) + " \"" + extractedFile.getAbsolutePath() + "\" need " + (SystemClock.uptimeMillis() - start) + "ms");
-                        if ((expectedModTime != lastModified)
-                                || (expectedCrc != extractedFile.crc)) {
-                            Log.i(TAG, "Invalid extracted dex: " + extractedFile + ", need re-extracting again");
-                            throw new IOException("Invalid extracted dex: " + extractedFile +
-                                    ", expected modification time: "
-                                    + expectedModTime + ", modification time: "
-                                    + lastModified + ", expected crc: "
-                                    + expectedCrc + ", file crc: " + extractedFile.crc);
-                        }
+                        long start2 = SystemClock.uptimeMillis();
+                        extractedFile.crc = getZipCrc(extractedFile);
+                        Log.i(TAG, "getZipCrc need " + (SystemClock.uptimeMillis() - start2) + "ms");
+                    }
+                    long expectedCrc =
+                            multiDexPreferences.getLong(KEY_DEX_CRC + secondaryNumber, NO_VALUE);
+                    long expectedModTime =
+                            multiDexPreferences.getLong(KEY_DEX_TIME + secondaryNumber, NO_VALUE);
+                    long lastModified = extractedFile.lastModified();
+
+                    Log.i(TAG, "load and crc verify " + suffix.substring(1) + " \"" + extractedFile.getAbsolutePath() + "\" need " + (SystemClock.uptimeMillis() - start) + "ms");
+                    if ((expectedModTime != lastModified)
+                            || (expectedCrc != extractedFile.crc)) {
+                        Log.i(TAG, "Invalid extracted dex: " + extractedFile + ", need re-extracting again");
+                        throw new IOException("Invalid extracted dex: " + extractedFile +
+                                ", expected modification time: "
+                                + expectedModTime + ", modification time: "
+                                + lastModified + ", expected crc: "
+                                + expectedCrc + ", file crc: " + extractedFile.crc);
                     }
-                    return extractedFile;
-                } else {
-                    throw new IOException("Missing extracted secondary dex file '" +
-                            extractedFile.getPath() + "'");
                 }
-            } catch (Exception e) {
+                onVerified(secondaryNumber, extractedFile);
+                return extractedFile;
+            } else {
+                throw new IOException("Missing extracted secondary dex file '" +
+                        extractedFile.getPath() + "'");
+            }
+        } catch (Exception e) {
+
+        }
+        return null;
+    }
 
+    private class LoadAndCrcVerifyTask implements DexTaskQueue.IDexTask<DexOrZipFile> {
+
+        private final ExtractedDex[] loaded;
+        private final int crcParallelism;
+
+        /**
+         * @param loaded receives each verified dex at the index of its secondary number, keeping
+         *               the apk order whatever order the dexes are verified in.
+         */
+        public LoadAndCrcVerifyTask(ExtractedDex[] loaded, int crcParallelism) {
+            this.loaded = loaded;
+            this.crcParallelism = crcParallelism;
+        }
+
+        @Override
+        public boolean run(DexOrZipFile dexOrZipFile) {
+            ExtractedDex extractedDex = loadDexAndCrcVerify(dexOrZipFile, crcParallelism);
+            if (extractedDex == null) {
+                return false;
             }
-            return null;
+            loaded[dexOrZipFile.getNumber() - 2] = extractedDex;
+            return true;
         }
     }
 
@@ -608,7 +1161,7 @@ public abstract class DexElementsExtractor implements IHookMultiDexExtractor {
                         long start = SystemClock.uptimeMillis();
                         if ((MultiDex.DEFAULT_FLAG & MultiDex.FLAG_EXTRACT_RAW_DEX_NOT_ZIP) != 0) {
                             long start1 = SystemClock.uptimeMillis();
-                            extractedFile.crc = getDexCrc(extractedFile);
+                            extractedFile.crc = getDexCrc(extractedFile, MultiDex.CPU_COUNT);
                             Log.i(TAG, "getDexCrc need " + (SystemClock.uptimeMillis() - start1) + "ms");
                         } else {
                             long start2 = SystemClock.uptimeMillis();
@@ -633,6 +1186,7 @@ public abstract class DexElementsExtractor implements IHookMultiDexExtractor {
                         }
                     }
 
+                    onVerified(secondaryNumber, extractedFile);
                     files.add(extractedFile);
                 } else {
                     throw new IOException("Missing extracted secondary dex file '" +
@@ -644,14 +1198,50 @@ public abstract class DexElementsExtractor implements IHookMultiDexExtractor {
         }
     }
 
+    /**
+     * Crc of the apk central directory. When {@link MultiDex#FLAG_APK_FINGERPRINT} is set and the
+     * apk has the fingerprint saved with the last crc, that crc is returned without reading the apk.
+     * Should be called only while owning the lock on {@link #LOCK_FILENAME}.
+     */
+    private long getApkCrc(Context context, File sourceApk, File dexDir,
+                           ApkFingerprint fingerprint) throws IOException {
+        if ((MultiDex.DEFAULT_FLAG & MultiDex.FLAG_APK_FINGERPRINT) != 0) {
+            SharedPreferences prefs = getMultiDexPreferences(context);
+            long storedCrc = prefs.getLong(KEY_CRC, NO_VALUE);
+            if (storedCrc != NO_VALUE && fingerprint.equals(ApkFingerprint.load(prefs))) {
+                Log.i(TAG, "apk fingerprint unchanged, reuse stored crc " + storedCrc);
+                return storedCrc;
+            }
+        }
+        long start = SystemClock.uptimeMillis();
+        if ((MultiDex.DEFAULT_FLAG & MultiDex.FLAG_DEX_ONLY_FINGERPRINT) != 0) {
+            List<ZipUtil.DexEntry> entries = getApkDexIndex(sourceApk, dexDir).getEntries();
+            long crc = ZipUtil.getDexEntriesCrc(entries);
+            if (crc == NO_VALUE) {
+                // never return NO_VALUE
+                crc--;
+            }
+            Log.i(TAG, "apk dex entries crc need " + (SystemClock.uptimeMillis() - start) + "ms");
+            return crc;
+        }
+        long crc = getZipCrc(sourceApk);
+        Log.i(TAG, "apk getZipCrc need " + (SystemClock.uptimeMillis() - start) + "ms");
+        return crc;
+    }
+
     /**
      * Compare current archive and crc with values stored in {@link SharedPreferences}. Should be
-     * called only while owning the lock on {@link #LOCK_FILENAME}.
+     * called only while owning the lock on {@link #LOCK_FILENAME}. With
+     * {@link MultiDex#FLAG_DEX_ONLY_FINGERPRINT} the crc only covers the dex entries and the archive
+     * time stamp is not compared, an apk whose dexes are unchanged keeps its extraction.
      */
-    protected static boolean isModified(Context context, File archive, long currentCrc) {
+    protected boolean isModified(Context context, File archive, long currentCrc) {
         SharedPreferences prefs = getMultiDexPreferences(context);
-        return (prefs.getLong(KEY_TIME_STAMP, NO_VALUE) != getTimeStamp(archive))
-                || (prefs.getLong(KEY_CRC, NO_VALUE) != currentCrc);
+        if ((MultiDex.DEFAULT_FLAG & MultiDex.FLAG_DEX_ONLY_FINGERPRINT) == 0
+                && prefs.getLong(KEY_TIME_STAMP, NO_VALUE) != getTimeStamp(archive)) {
+            return true;
+        }
+        return prefs.getLong(KEY_CRC, NO_VALUE) != currentCrc;
     }
 
     protected static long getTimeStamp(File archive) {
@@ -674,7 +1264,15 @@ public abstract class DexElementsExtractor implements IHookMultiDexExtractor {
     }
 
     protected static long getDexCrc(File dex) throws IOException {
-        long computedValue = ZipUtil.getDexCrc(dex);
+        return getDexCrc(dex, 1);
+    }
+
+    /**
+     * @param parallelism number of threads the crc of a large dex may be split on, 1 to compute it
+     *                    on the calling thread only.
+     */
+    protected static long getDexCrc(File dex, int parallelism) throws IOException {
+        long computedValue = ZipUtil.getDexCrc(dex, parallelism);
         if (computedValue == NO_VALUE) {
             // never return NO_VALUE
             computedValue--;
@@ -686,18 +1284,32 @@ public abstract class DexElementsExtractor implements IHookMultiDexExtractor {
      * Save {@link SharedPreferences}. Should be called only while owning the lock on
      * {@link #LOCK_FILENAME}.
      */
-    protected static void putStoredApkInfo(Context context, long timeStamp, long crc,
-                                           List<ExtractedDex> extractedDexes) {
+    protected void putStoredApkInfo(Context context, ApkFingerprint fingerprint, long crc,
+                                    List<ExtractedDex> extractedDexes) {
         SharedPreferences prefs = getMultiDexPreferences(context);
         SharedPreferences.Editor edit = prefs.edit();
-        edit.putLong(KEY_TIME_STAMP, timeStamp);
+        fingerprint.save(edit);
         edit.putLong(KEY_CRC, crc);
         edit.putInt(KEY_DEX_NUMBER, extractedDexes.size() + 1);
 
+        ApkDexIndex entries;
+        synchronized (this) {
+            entries = apkDexIndex;
+        }
         int extractedDexId = 2;
         for (ExtractedDex dex : extractedDexes) {
             edit.putLong(KEY_DEX_CRC + extractedDexId, dex.crc);
             edit.putLong(KEY_DEX_TIME + extractedDexId, dex.lastModified());
+            String entryName = DEX_PREFIX + extractedDexId + DEX_SUFFIX;
+            ZipUtil.DexEntry entry = entries == null ? null : entries.get(entryName);
+            if (entry != null) {
+                edit.putLong(KEY_DEX_ENTRY_CRC + entryName, entry.crc);
+                edit.putLong(KEY_DEX_ENTRY_SIZE + entryName, entry.size);
+            } else {
+                // apk records were not read, drop the ones of a previous apk
+                edit.remove(KEY_DEX_ENTRY_CRC + entryName);
+                edit.remove(KEY_DEX_ENTRY_SIZE + entryName);
+            }
             extractedDexId++;
         }
         /* Use commit() and not apply() as advised by the doc because we need synchronous writing of
@@ -710,7 +1322,25 @@ public abstract class DexElementsExtractor implements IHookMultiDexExtractor {
      * Get the MuliDex {@link SharedPreferences} for the current application. Should be called only
      * while owning the lock on {@link #LOCK_FILENAME}.
      */
-    protected static SharedPreferences getMultiDexPreferences(Context context) {
+    protected SharedPreferences getMultiDexPreferences(Context context) {
+        SharedPreferences prefs = multiDexPreferences;
+        return prefs != null ? prefs : getSharedPreferences(context);
+    }
+
+    /**
+     * @return the manifest of {@code dexDir}, created from the preferences the first time. Should be
+     * called only while owning the lock on {@link #LOCK_FILENAME}.
+     */
+    private static SharedPreferences openManifest(Context context, File dexDir) {
+        File manifestFile = new File(dexDir, MANIFEST_FILENAME);
+        MultiDexManifest manifest = MultiDexManifest.read(manifestFile);
+        if (manifest == null) {
+            manifest = MultiDexManifest.migrate(manifestFile, getSharedPreferences(context));
+        }
+        return manifest;
+    }
+
+    private static SharedPreferences getSharedPreferences(Context context) {
         return context.getSharedPreferences(PREFS_FILE,
                 Build.VERSION.SDK_INT < 11 /* Build.VERSION_CODES.HONEYCOMB */
                         ? Context.MODE_PRIVATE
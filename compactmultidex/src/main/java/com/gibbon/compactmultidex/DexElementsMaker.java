@@ -31,45 +31,59 @@ public class DexElementsMaker implements IDexElementsMaker {
         }
 
         //通过算法，将文件分解成大小相似的文件集，使得每个文件集在加载的时候时间相似
-        ArrayList<ArrayList<File>> filesList = makeFileList();
+        ArrayList<File> dexFiles = new ArrayList<File>(files.size());
+        for (File file : files) {
+            if (file != null) {
+                dexFiles.add(file);
+            }
+        }
+        long[] sizes = new long[dexFiles.size()];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = dexFiles.get(i).length();
+        }
+        int[][] partition = DexPartitioner.partition(sizes, MultiDexExecutor.MAX_THREADS);
 
-        int size = filesList.size();
+        int size = partition.length;
         Log.i(MultiDex.TAG, "group size: " + size);
         FutureTask<Object[]>[] futureTasks = new FutureTask[size];
         for (int i = 0; i < size; i++) {
-            futureTasks[i] = new FutureTask<Object[]>(new DexElementsCallable(i, filesList.get(i), invoker));
+            ArrayList<File> groupFiles = new ArrayList<File>(partition[i].length);
+            for (int index : partition[i]) {
+                groupFiles.add(dexFiles.get(index));
+            }
+            futureTasks[i] = new FutureTask<Object[]>(new DexElementsCallable(i, groupFiles, invoker));
         }
         long start = SystemClock.uptimeMillis();
-        //其他任务在子线程里完成，加速加载
-        for (int i = 1; i < size; i++) {
-            new Thread(futureTasks[i]).start();
-        }
-        //一个任务在主线程完成，充分利用主线程资源
-        futureTasks[0].run();
-
-        ArrayList<Object[]> objectsList = new ArrayList<Object[]>();
-        int objectsTotalLength = 0;
+        //其他任务在子线程里完成，加速加载，一个任务在主线程完成，充分利用主线程资源
+        MultiDexExecutor.runAll(futureTasks);
 
         try {
+            Object[][] objectsList = new Object[size][];
+            int objectsTotalLength = 0;
+            boolean oneElementPerFile = true;
             for (int i = 0; i < size; i++) {
                 Object[] objects = futureTasks[i].get();
                 if (objects == null) throw new RuntimeException("Illegal Action");
 
                 objectsTotalLength += objects.length;
-                objectsList.add(objects);
+                objectsList[i] = objects;
+                oneElementPerFile &= objects.length == partition[i].length;
             }
 
-            Object[] objects = new Object[objectsTotalLength];
-
-            int offset = 0;
-            for (Object[] subObjects : objectsList) {
-                if (subObjects != null) {
-                    System.arraycopy(subObjects, 0, objects, offset, subObjects.length);
-                    offset += subObjects.length;
+            if (oneElementPerFile) {
+                // the elements keep the order of the files, as when made on one thread
+                Object[] objects = new Object[objectsTotalLength];
+                for (int i = 0; i < size; i++) {
+                    for (int j = 0; j < partition[i].length; j++) {
+                        objects[partition[i][j]] = objectsList[i][j];
+                    }
                 }
+                Log.i(MultiDex.TAG, "load dex success, need " + (SystemClock.uptimeMillis() - start) + "ms");
+                return objects;
             }
-            Log.i(MultiDex.TAG, "load dex success, need " + (SystemClock.uptimeMillis() - start) + "ms");
-            return objects;
+            // a file failed to load, the elements of its group can no longer be matched with the
+            // files: they are made again below in the order of the secondary dexes
+            Log.w(MultiDex.TAG, "a dex of the groups failed to load, make the elements again in order");
         } catch (Exception e) {
 
         }
@@ -77,42 +91,6 @@ public class DexElementsMaker implements IDexElementsMaker {
         return invoker.invoke(files);
     }
 
-    private ArrayList<ArrayList<File>> makeFileList() {
-        ArrayList<ArrayList<File>> fileList = new ArrayList<>();
-
-        long maxFileLength = getMaxFileLength();
-        long subTotalLength = 0;
-        ArrayList<File> subFiles = new ArrayList<File>();
-        fileList.add(subFiles);
-
-        for (File file : files) {
-            if (file != null) {
-                long subLength = file.length();
-                if (subLength + subTotalLength > maxFileLength) {
-                    subTotalLength = 0;
-                    subFiles = new ArrayList<File>();
-                    fileList.add(subFiles);
-                }
-
-                subFiles.add(file);
-                subTotalLength += subLength;
-            }
-        }
-
-        return fileList;
-    }
-
-    private long getMaxFileLength() {
-        long max = 0;
-        for (File file : files) {
-            if (file != null) {
-                long length = file.length();
-                max = length > max ? length : max;
-            }
-        }
-        return max;
-    }
-
     static class DexElementsCallable implements Callable<Object[]> {
 
         final int id;
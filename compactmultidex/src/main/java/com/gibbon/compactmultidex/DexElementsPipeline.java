@@ -0,0 +1,207 @@
+package com.gibbon.compactmultidex;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Dexopt of each secondary dex started as soon as it is extracted or verified, see
+ * {@link MultiDex#FLAG_PIPELINE_DEXOPT} and {@link MultiDex#FLAG_PIPELINE_WARM_START}, so the
+ * dexopt of the first dexes overlaps the extraction or the crc verification of the last ones. The
+ * elements are merged in the order of the dexes once loading is done.
+ *
+ * @author zhipeng.zhuo
+ * @date 2020-03-07
+ */
+final class DexElementsPipeline implements IExtractedDexListener {
+
+    private final IHookDexElementsMethodInvoker invoker;
+    private final ArrayList<IOException> suppressedExceptions;
+    private final Map<String, DexoptTask> tasks = new HashMap<>();
+
+    /**
+     * @param suppressedExceptions the list {@code invoker} collects into, if any.
+     */
+    DexElementsPipeline(IHookDexElementsMethodInvoker invoker, ArrayList<IOException> suppressedExceptions) {
+        this.invoker = invoker;
+        this.suppressedExceptions = suppressedExceptions;
+    }
+
+    ArrayList<IOException> getSuppressedExceptions() {
+        return suppressedExceptions;
+    }
+
+    @Override
+    public void onExtracted(int secondaryNumber, IHookMultiDexExtractor.ExtractedDex dex) {
+        ArrayList<File> files = new ArrayList<File>(1);
+        files.add(dex);
+        DexoptTask task = new DexoptTask(
+                new DexElementsMaker.DexElementsCallable(secondaryNumber, files, invoker));
+        DexoptTask previous;
+        synchronized (tasks) {
+            previous = tasks.put(dex.getPath(), task);
+        }
+        if (previous != null) {
+            // reported twice without onDiscarded, the elements of the first report are dropped
+            previous.discard();
+        }
+        Log.i(MultiDex.TAG, "dexopt of classes" + secondaryNumber + ".dex queued");
+        MultiDexExecutor.execute(task.future);
+    }
+
+    /**
+     * Drop the tasks of the dexes reported so far: the ones not started yet will not open their
+     * dex, the running ones are waited for, so the extractor can delete or rewrite the files and
+     * their odex.
+     */
+    @Override
+    public void onDiscarded() {
+        ArrayList<DexoptTask> discarded;
+        synchronized (tasks) {
+            discarded = new ArrayList<DexoptTask>(tasks.values());
+            tasks.clear();
+        }
+        if (discarded.isEmpty()) {
+            return;
+        }
+        long start = SystemClock.uptimeMillis();
+        for (DexoptTask task : discarded) {
+            task.discarded = true;
+        }
+        for (DexoptTask task : discarded) {
+            task.discard();
+        }
+        Log.i(MultiDex.TAG, discarded.size() + " pipelined dexopt discarded, waited "
+                + (SystemClock.uptimeMillis() - start) + "ms");
+    }
+
+    /**
+     * @return true if at least one dex went through {@link #onExtracted}. Dexes loaded from a
+     * previous extraction are only reported with {@link MultiDex#FLAG_PIPELINE_WARM_START}.
+     */
+    boolean isStarted() {
+        synchronized (tasks) {
+            return !tasks.isEmpty();
+        }
+    }
+
+    /**
+     * @return the elements of {@code files} in their order, made by the tasks started on extraction
+     * and by new tasks for the files not reported.
+     */
+    Object[] make(List<? extends File> files) throws InvocationTargetException, IllegalAccessException {
+        long start = SystemClock.uptimeMillis();
+        int size = files.size();
+        FutureTask<Object[]>[] ordered = new FutureTask[size];
+        DexoptTask[] reportedTasks = new DexoptTask[size];
+        ArrayList<FutureTask<Object[]>> missing = new ArrayList<>();
+        synchronized (tasks) {
+            for (int i = 0; i < size; i++) {
+                File file = files.get(i);
+                DexoptTask reported = tasks.get(file.getPath());
+                FutureTask<Object[]> task;
+                if (reported == null) {
+                    ArrayList<File> single = new ArrayList<File>(1);
+                    single.add(file);
+                    task = new FutureTask<Object[]>(new DexElementsMaker.DexElementsCallable(i + 2, single, invoker));
+                    missing.add(task);
+                } else {
+                    task = reported.future;
+                    reportedTasks[i] = reported;
+                }
+                ordered[i] = task;
+            }
+        }
+        if (!missing.isEmpty()) {
+            Log.i(MultiDex.TAG, missing.size() + " dexes were not reported");
+            MultiDexExecutor.runAll(missing.toArray(new FutureTask[missing.size()]));
+        }
+
+        try {
+            Object[][] objectsList = new Object[size][];
+            int objectsTotalLength = 0;
+            for (int i = 0; i < size; i++) {
+                // the tasks no worker has started yet are run here
+                ordered[i].run();
+                Object[] objects = ordered[i].get();
+                if (objects == null) throw new RuntimeException("Illegal Action");
+
+                objectsTotalLength += objects.length;
+                objectsList[i] = objects;
+            }
+
+            Object[] objects = new Object[objectsTotalLength];
+            int offset = 0;
+            for (Object[] subObjects : objectsList) {
+                System.arraycopy(subObjects, 0, objects, offset, subObjects.length);
+                offset += subObjects.length;
+            }
+            Log.i(MultiDex.TAG, "pipelined dexopt done, waited " + (SystemClock.uptimeMillis() - start) + "ms after loading");
+            return objects;
+        } catch (Exception e) {
+            Log.w(MultiDex.TAG, "pipelined dexopt failed, making the elements of every dex again", e);
+        }
+
+        // the reported dexes still in dexopt are waited for before their files are opened again,
+        // the ones not started are skipped; runAll returned once the others were done
+        for (DexoptTask reported : reportedTasks) {
+            if (reported != null) {
+                reported.discard();
+            }
+        }
+        return invoker.invoke(new ArrayList<File>(files));
+    }
+
+    /**
+     * The dexopt of one reported dex, which does not open its dex once discarded.
+     */
+    private static final class DexoptTask implements Callable<Object[]> {
+
+        final FutureTask<Object[]> future = new FutureTask<Object[]>(this);
+        private final DexElementsMaker.DexElementsCallable callable;
+        volatile boolean discarded;
+
+        DexoptTask(DexElementsMaker.DexElementsCallable callable) {
+            this.callable = callable;
+        }
+
+        @Override
+        public Object[] call() throws Exception {
+            return discarded ? null : callable.call();
+        }
+
+        /**
+         * Return once the task is done: run here if no worker started it yet, waited for otherwise.
+         */
+        void discard() {
+            discarded = true;
+            future.run();
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    // the dex may still be in dexopt
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    // its elements are dropped anyway
+                    break;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package com.gibbon.compactmultidex;
+
+import java.util.Arrays;
+
+/**
+ * Splits dexes into groups of close total size, one group per thread, for the extraction, the crc
+ * verification and the dexopt. Works on primitive arrays only: no boxing and no size summed again
+ * while partitioning.
+ * <p>
+ * Two strategies are available, LPT (each dex, largest first, goes to the group with the smallest
+ * total) and the Karmarkar-Karp differencing method, which gives better balanced groups when there
+ * are many dexes per group. {@link #partition} runs only one of them, chosen from the number of
+ * dexes per group.
+ *
+ * @author zhipeng.zhuo
+ * @date 2020-03-07
+ */
+final class DexPartitioner {
+
+    /* Sizes are packed with their index in one long to be sorted as primitives */
+    private static final int INDEX_BITS = 20;
+    private static final long INDEX_MASK = (1L << INDEX_BITS) - 1;
+
+    private DexPartitioner() {}
+
+    /**
+     * @return for each group the indexes in {@code sizes} of its dexes in increasing order, groups
+     * largest total first. There are {@code min(groupCount, sizes.length)} groups, none empty.
+     */
+    static int[][] partition(long[] sizes, int groupCount) {
+        int count = Math.min(groupCount, sizes.length);
+        // LPT is optimal with two dexes per group at most. Beyond, the differencing method is
+        // better in most cases and worse by less than 1% otherwise
+        int[] groupOfItem = sizes.length <= 2 * count ? lpt(sizes, groupCount)
+                : karmarkarKarp(sizes, groupCount);
+        return makeGroups(sizes, count, groupOfItem);
+    }
+
+    /**
+     * Longest processing time first, the group with the smallest total is kept at the root of a
+     * binary heap.
+     *
+     * @return the group of each dex
+     */
+    static int[] lpt(long[] sizes, int groupCount) {
+        int n = sizes.length;
+        int count = Math.min(groupCount, n);
+        int[] groups = new int[n];
+        if (count <= 0) {
+            return groups;
+        }
+        long[] heapSums = new long[count];
+        int[] heapGroups = new int[count];
+        for (int i = 0; i < count; i++) {
+            heapGroups[i] = i;
+        }
+        long[] order = sortedBySize(sizes);
+        for (int i = n - 1; i >= 0; i--) {
+            int index = (int) (order[i] & INDEX_MASK);
+            groups[index] = heapGroups[0];
+            heapSums[0] += sizes[index];
+            siftDown(heapSums, heapGroups, count);
+        }
+        return groups;
+    }
+
+    /**
+     * Multi-way Karmarkar-Karp: every dex starts as a partial partition of {@code groupCount}
+     * subsets holding only itself. The two partial partitions with the largest spread between their
+     * largest and smallest subsets are merged, the largest subset of one with the smallest of the
+     * other, until one partition is left.
+     *
+     * @return the group of each dex
+     */
+    static int[] karmarkarKarp(long[] sizes, int groupCount) {
+        int n = sizes.length;
+        int k = Math.min(groupCount, n);
+        int[] groups = new int[n];
+        if (k <= 0) {
+            return groups;
+        }
+        // subsets of partition p, largest sum first, at p * k + j: sums, item lists through
+        // head/tail/next
+        long[] sums = new long[n * k];
+        int[] heads = new int[n * k];
+        int[] tails = new int[n * k];
+        int[] next = new int[n];
+        Arrays.fill(heads, -1);
+        Arrays.fill(tails, -1);
+        for (int p = 0; p < n; p++) {
+            sums[p * k] = sizes[p];
+            heads[p * k] = p;
+            tails[p * k] = p;
+            next[p] = -1;
+        }
+
+        // max heap of partitions on their spread
+        long[] spreads = new long[n];
+        int[] heap = new int[n];
+        for (int p = 0; p < n; p++) {
+            spreads[p] = sizes[p];
+            heap[p] = p;
+        }
+        int heapSize = n;
+        for (int i = n / 2 - 1; i >= 0; i--) {
+            siftDownMax(heap, spreads, heapSize, i);
+        }
+
+        long[] mergedSums = new long[k];
+        int[] mergedHeads = new int[k];
+        int[] mergedTails = new int[k];
+        while (heapSize > 1) {
+            int a = heap[0] * k;
+            heap[0] = heap[--heapSize];
+            siftDownMax(heap, spreads, heapSize, 0);
+            int b = heap[0] * k;
+
+            for (int j = 0; j < k; j++) {
+                int other = b + k - 1 - j;
+                mergedSums[j] = sums[a + j] + sums[other];
+                mergedHeads[j] = concat(heads[a + j], tails[a + j], heads[other], next);
+                mergedTails[j] = tails[other] != -1 ? tails[other] : tails[a + j];
+            }
+            // insertion sort of the k subsets, largest sum first, into b
+            for (int j = 0; j < k; j++) {
+                long sum = mergedSums[j];
+                int head = mergedHeads[j];
+                int tail = mergedTails[j];
+                int position = b + j;
+                while (position > b && sums[position - 1] < sum) {
+                    sums[position] = sums[position - 1];
+                    heads[position] = heads[position - 1];
+                    tails[position] = tails[position - 1];
+                    position--;
+                }
+                sums[position] = sum;
+                heads[position] = head;
+                tails[position] = tail;
+            }
+            spreads[heap[0]] = sums[b] - sums[b + k - 1];
+            siftDownMax(heap, spreads, heapSize, 0);
+        }
+
+        int last = heap[0] * k;
+        for (int j = 0; j < k; j++) {
+            for (int item = heads[last + j]; item != -1; item = next[item]) {
+                groups[item] = j;
+            }
+        }
+        return groups;
+    }
+
+    /**
+     * @return the head of list a followed by list b.
+     */
+    private static int concat(int headA, int tailA, int headB, int[] next) {
+        if (headA == -1) {
+            return headB;
+        }
+        next[tailA] = headB;
+        return headA;
+    }
+
+    private static int[][] makeGroups(long[] sizes, int count, int[] groupOfItem) {
+        long[] groupSums = new long[count];
+        int[] groupSizes = new int[count];
+        for (int i = 0; i < groupOfItem.length; i++) {
+            groupSums[groupOfItem[i]] += sizes[i];
+            groupSizes[groupOfItem[i]]++;
+        }
+        // groups largest total first
+        long[] order = sortedBySize(groupSums);
+        int[] rank = new int[count];
+        for (int i = 0; i < count; i++) {
+            rank[(int) (order[count - 1 - i] & INDEX_MASK)] = i;
+        }
+        int[][] groups = new int[count][];
+        int[] filled = new int[count];
+        for (int g = 0; g < count; g++) {
+            groups[rank[g]] = new int[groupSizes[g]];
+        }
+        for (int i = 0; i < groupOfItem.length; i++) {
+            int r = rank[groupOfItem[i]];
+            groups[r][filled[r]++] = i;
+        }
+        return groups;
+    }
+
+    /**
+     * @return (size << INDEX_BITS) | index for each size, in increasing order.
+     */
+    private static long[] sortedBySize(long[] sizes) {
+        if (sizes.length > INDEX_MASK) {
+            throw new IllegalArgumentException("Too many dexes: " + sizes.length);
+        }
+        long[] keys = new long[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            // sizes are file lengths, far below 2^43
+            keys[i] = (Math.max(sizes[i], 0) << INDEX_BITS) | i;
+        }
+        Arrays.sort(keys);
+        return keys;
+    }
+
+    /**
+     * Restore the min heap property after the sum at the root grew.
+     */
+    private static void siftDown(long[] sums, int[] groups, int size) {
+        int i = 0;
+        long sum = sums[0];
+        int group = groups[0];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && sums[child + 1] < sums[child]) {
+                child++;
+            }
+            if (sums[child] >= sum) {
+                break;
+            }
+            sums[i] = sums[child];
+            groups[i] = groups[child];
+            i = child;
+        }
+        sums[i] = sum;
+        groups[i] = group;
+    }
+
+    private static void siftDownMax(int[] heap, long[] keys, int size, int i) {
+        int item = heap[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && keys[heap[child + 1]] > keys[heap[child]]) {
+                child++;
+            }
+            if (keys[heap[child]] <= keys[item]) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = item;
+    }
+}
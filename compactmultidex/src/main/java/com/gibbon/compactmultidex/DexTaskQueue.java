@@ -0,0 +1,78 @@
+package com.gibbon.compactmultidex;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Dynamic scheduling of the dexes of one phase, see {@link MultiDex#FLAG_DYNAMIC_SCHEDULE}. Instead
+ * of groups fixed up front, each worker takes the next dex of a shared list as soon as it is done
+ * with the previous one, so a dex slower than its size suggests only delays the worker handling
+ * it. The list is expected largest first, the calling thread is one of the workers.
+ *
+ * @author zhipeng.zhuo
+ * @date 2020-03-07
+ */
+final class DexTaskQueue<T> implements Callable<Boolean> {
+
+    interface IDexTask<T> {
+        /**
+         * @return false if processing {@code item} failed, no more item is taken then.
+         */
+        boolean run(T item);
+    }
+
+    private final List<T> items;
+    private final IDexTask<T> task;
+    private final AtomicInteger next = new AtomicInteger();
+    private volatile boolean failed;
+
+    private DexTaskQueue(List<T> items, IDexTask<T> task) {
+        this.items = items;
+        this.task = task;
+    }
+
+    /**
+     * Run {@code task} on every item with up to {@link MultiDexExecutor#MAX_THREADS} workers.
+     *
+     * @return true if every item succeeded
+     */
+    static <T> boolean runAll(List<T> items, IDexTask<T> task) {
+        int threads = Math.min(MultiDexExecutor.MAX_THREADS, items.size());
+        if (threads <= 0) {
+            return true;
+        }
+        DexTaskQueue<T> queue = new DexTaskQueue<T>(items, task);
+        FutureTask<Boolean>[] futureTasks = new FutureTask[threads];
+        for (int i = 0; i < threads; i++) {
+            futureTasks[i] = new FutureTask<Boolean>(queue);
+        }
+        MultiDexExecutor.runAll(futureTasks);
+        // every worker is waited for, none is still running an item once this returns
+        boolean succeeded = true;
+        for (FutureTask<Boolean> futureTask : futureTasks) {
+            try {
+                succeeded &= futureTask.get();
+            } catch (Exception e) {
+                succeeded = false;
+            }
+        }
+        return succeeded && !queue.failed;
+    }
+
+    @Override
+    public Boolean call() {
+        while (!failed) {
+            int index = next.getAndIncrement();
+            if (index >= items.size()) {
+                return true;
+            }
+            if (!task.run(items.get(index))) {
+                failed = true;
+                return false;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,191 @@
+package com.gibbon.compactmultidex;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+import java.util.zip.ZipException;
+
+/**
+ * Writes zip files containing one {@code classes.dex} entry without going through
+ * {@link java.util.zip.ZipOutputStream}: headers are written by hand from the apk central
+ * directory record and the entry payload is copied verbatim from the apk, so neither an
+ * Inflater nor a Deflater is needed.
+ *
+ * @author zhipeng.zhuo
+ * @date 2020-03-07
+ */
+final class DexZipWriter {
+
+    private static final byte[] ENTRY_NAME_BYTES = {
+            'c', 'l', 'a', 's', 's', 'e', 's', '.', 'd', 'e', 'x'};
+
+    private static final int LOCSIG = 0x4034b50;
+    private static final int CENSIG = 0x2014b50;
+    private static final int ENDSIG = 0x6054b50;
+    private static final int LOCHDR = 30;
+    private static final int CENHDR = 46;
+    private static final int ENDHDR = 22;
+
+    private static final int VERSION_STORED = 10;
+    private static final int VERSION_DEFLATED = 20;
+
+    private static final int METHOD_STORED = 0;
+
+    /**
+     * Size of reading buffers.
+     */
+    private static final int BUFFER_SIZE = 0x4000;
+
+    private DexZipWriter() {}
+
+    /**
+     * Write to {@code zip} a zip whose {@code classes.dex} entry is a raw copy of
+     * {@code entry} from the apk: same compression method, crc, sizes and time. Keeping the time
+     * matters since it is one of the criteria used by Dalvik to validate the odex.
+     *
+     * @return the crc of the written central directory, the value
+     * {@link ZipUtil#getZipCrc(File)} computes for {@code zip}.
+     */
+    static long copyRawEntry(FileChannel apk, ZipUtil.DexEntry entry, File zip)
+            throws IOException {
+        long dataOffset = ZipUtil.getEntryDataOffset(apk, entry);
+        FileOutputStream out = new FileOutputStream(zip);
+        try {
+            out.write(localHeader(entry));
+            ZipUtil.transferEntryData(apk, dataOffset, entry.compressedSize, out.getChannel());
+            return writeCentralDirectoryAndEnd(out, entry, LOCHDR + ENTRY_NAME_BYTES.length
+                    + entry.compressedSize);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Write to {@code zip} a zip whose {@code classes.dex} entry is STORED. Crc, size and time are
+     * taken from the apk central directory record, nothing is recomputed.
+     *
+     * @param in the uncompressed content of a deflated entry, or null when {@code entry} is already
+     *           STORED in the apk in which case its bytes are transferred directly. The content
+     *           read from {@code in} is checked against the crc of {@code entry} while written.
+     * @return the crc of the written central directory, the value
+     * {@link ZipUtil#getZipCrc(File)} computes for {@code zip}.
+     */
+    static long writeStoredEntry(FileChannel apk, ZipUtil.DexEntry entry, InputStream in,
+                                 File zip) throws IOException {
+        ZipUtil.DexEntry stored = storedCopyOf(entry);
+        FileOutputStream out = new FileOutputStream(zip);
+        try {
+            out.write(localHeader(stored));
+            if (in == null) {
+                if (entry.method != METHOD_STORED) {
+                    throw new ZipException("Missing input stream for compressed " + entry.name);
+                }
+                ZipUtil.transferEntryData(apk, ZipUtil.getEntryDataOffset(apk, entry), entry.size,
+                        out.getChannel());
+            } else {
+                CRC32 crc = new CRC32();
+                long written = 0;
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int length = in.read(buffer);
+                while (length != -1) {
+                    out.write(buffer, 0, length);
+                    crc.update(buffer, 0, length);
+                    written += length;
+                    length = in.read(buffer);
+                }
+                if (written != entry.size) {
+                    throw new ZipException("Size mismatch for " + entry.name + ", expected "
+                            + entry.size + " but was " + written);
+                }
+                if (crc.getValue() != entry.crc) {
+                    throw new ZipException("Crc mismatch for " + entry.name + ", expected "
+                            + entry.crc + " but was " + crc.getValue());
+                }
+            }
+            return writeCentralDirectoryAndEnd(out, stored, LOCHDR + ENTRY_NAME_BYTES.length
+                    + stored.compressedSize);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static ZipUtil.DexEntry storedCopyOf(ZipUtil.DexEntry entry) {
+        ZipUtil.DexEntry stored = new ZipUtil.DexEntry();
+        stored.name = entry.name;
+        stored.method = METHOD_STORED;
+        stored.time = entry.time;
+        stored.crc = entry.crc;
+        stored.compressedSize = entry.size;
+        stored.size = entry.size;
+        stored.localHeaderOffset = 0;
+        return stored;
+    }
+
+    private static byte[] localHeader(ZipUtil.DexEntry entry) {
+        ByteBuffer header = ByteBuffer.allocate(LOCHDR + ENTRY_NAME_BYTES.length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(LOCSIG);
+        header.putShort((short) versionNeeded(entry));
+        header.putShort((short) 0); // flags, sizes are known so no data descriptor
+        header.putShort((short) entry.method);
+        header.putInt((int) entry.time);
+        header.putInt((int) entry.crc);
+        header.putInt((int) entry.compressedSize);
+        header.putInt((int) entry.size);
+        header.putShort((short) ENTRY_NAME_BYTES.length);
+        header.putShort((short) 0); // extra field length
+        header.put(ENTRY_NAME_BYTES);
+        return header.array();
+    }
+
+    private static long writeCentralDirectoryAndEnd(FileOutputStream out, ZipUtil.DexEntry entry,
+                                                    long centralDirOffset) throws IOException {
+        byte[] buffer = centralDirectoryAndEnd(entry, centralDirOffset);
+        out.write(buffer);
+        CRC32 crc = new CRC32();
+        crc.update(buffer, 0, CENHDR + ENTRY_NAME_BYTES.length);
+        return crc.getValue();
+    }
+
+    private static byte[] centralDirectoryAndEnd(ZipUtil.DexEntry entry, long centralDirOffset) {
+        int centralDirSize = CENHDR + ENTRY_NAME_BYTES.length;
+        ByteBuffer buffer = ByteBuffer.allocate(centralDirSize + ENDHDR)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(CENSIG);
+        buffer.putShort((short) versionNeeded(entry)); // version made by
+        buffer.putShort((short) versionNeeded(entry));
+        buffer.putShort((short) 0); // flags
+        buffer.putShort((short) entry.method);
+        buffer.putInt((int) entry.time);
+        buffer.putInt((int) entry.crc);
+        buffer.putInt((int) entry.compressedSize);
+        buffer.putInt((int) entry.size);
+        buffer.putShort((short) ENTRY_NAME_BYTES.length);
+        buffer.putShort((short) 0); // extra field length
+        buffer.putShort((short) 0); // comment length
+        buffer.putShort((short) 0); // disk number start
+        buffer.putShort((short) 0); // internal attributes
+        buffer.putInt(0); // external attributes
+        buffer.putInt(0); // local header offset
+        buffer.put(ENTRY_NAME_BYTES);
+
+        buffer.putInt(ENDSIG);
+        buffer.putShort((short) 0); // disk number
+        buffer.putShort((short) 0); // disk with central directory
+        buffer.putShort((short) 1); // entries on this disk
+        buffer.putShort((short) 1); // total entries
+        buffer.putInt(centralDirSize);
+        buffer.putInt((int) centralDirOffset);
+        buffer.putShort((short) 0); // comment length
+        return buffer.array();
+    }
+
+    private static int versionNeeded(ZipUtil.DexEntry entry) {
+        return entry.method == METHOD_STORED ? VERSION_STORED : VERSION_DEFLATED;
+    }
+}
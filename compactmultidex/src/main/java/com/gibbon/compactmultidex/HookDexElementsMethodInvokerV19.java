@@ -26,6 +26,12 @@ public class HookDexElementsMethodInvokerV19 implements IHookDexElementsMethodIn
 
     @Override
     public Object[] invoke(ArrayList<File> files) throws InvocationTargetException, IllegalAccessException {
-        return (Object[]) makeDexElements.invoke(dexPathList, files, optmizedDirectory, exceptions);
+        // invoked from several threads at once, each call collects into its own list
+        ArrayList<IOException> callExceptions = new ArrayList<IOException>();
+        Object[] elements = (Object[]) makeDexElements.invoke(dexPathList, files, optmizedDirectory, callExceptions);
+        synchronized (exceptions) {
+            exceptions.addAll(callExceptions);
+        }
+        return elements;
     }
 }
@@ -0,0 +1,23 @@
+package com.gibbon.compactmultidex;
+
+/**
+ * @author zhipeng.zhuo
+ * @date 2020-03-07
+ */
+public interface IExtractedDexListener {
+
+    /**
+     * Called on the extracting thread as soon as a secondary dex is extracted and its content
+     * checked against the crc of its apk entry, or as soon as a dex of a previous extraction is
+     * verified, while the other dexes may still be extracted or verified. A dex reported again
+     * after {@link #onDiscarded} replaces the previous report.
+     */
+    void onExtracted(int secondaryNumber, IHookMultiDexExtractor.ExtractedDex dex);
+
+    /**
+     * Called on the extracting thread before the dexes reported so far are deleted or extracted
+     * again, after a failed verification or a failed load. Must not return while one of them is
+     * still used, the dexes reported after it replace them.
+     */
+    void onDiscarded();
+}
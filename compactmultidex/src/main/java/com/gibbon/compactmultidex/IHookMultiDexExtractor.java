@@ -41,6 +41,8 @@ public interface IHookMultiDexExtractor {
     String KEY_DEX_NUMBER = "dex.number";
     String KEY_DEX_CRC = "dex.crc.";
     String KEY_DEX_TIME = "dex.time.";
+    String KEY_DEX_ENTRY_CRC = "dex.entry.crc.";
+    String KEY_DEX_ENTRY_SIZE = "dex.entry.size.";
 
     /**
      * Size of reading buffers.
@@ -50,6 +52,9 @@ public interface IHookMultiDexExtractor {
     long NO_VALUE = -1L;
 
     String LOCK_FILENAME = "MultiDex.lock";
+    String INDEX_FILENAME = "MultiDex.index";
+    String MANIFEST_FILENAME = "MultiDex.manifest";
+    String CLASS_INDEX_FILENAME = "MultiDex.classes";
 
     List<? extends File> load(Context context, ApplicationInfo applicationInfo, File dexDir, boolean forceReload) throws IOException;
 }
@@ -0,0 +1,20 @@
+package com.gibbon.compactmultidex;
+
+/**
+ * @author zhipeng.zhuo
+ * @date 2020-03-07
+ */
+public interface IInstallCallback {
+
+    /**
+     * Called once the secondary dexes are added to the class loader, on the thread that ran the
+     * installation, or on the registering thread if it was already done.
+     */
+    void onInstalled();
+
+    /**
+     * Called instead of {@link #onInstalled()} when the installation failed, with the exception
+     * {@link MultiDexInstallation#await()} throws.
+     */
+    void onInstallFailed(RuntimeException e);
+}
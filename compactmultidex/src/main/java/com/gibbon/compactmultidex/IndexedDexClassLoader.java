@@ -0,0 +1,201 @@
+package com.gibbon.compactmultidex;
+
+import android.os.Build;
+import android.util.Log;
+
+import dalvik.system.DexFile;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parent of the application class loader with {@link MultiDex#FLAG_CLASS_INDEX}. The class loader
+ * asks its parent first for every class: a class unknown to the original parent is loaded at once
+ * from the {@link DexFile} of the secondary dex given by the {@link DexClassIndex}, instead of being
+ * looked up in each dex of dexElements in turn. A class of no secondary dex, or not found in the
+ * dexes given, is left to the usual lookup.
+ * <p>
+ * While {@link MultiDex#installAsync} runs, the hook goes beneath its
+ * {@link MultiDexClassLoaderGuard}. The hook stays until {@link MultiDex#uninstallClassIndex}: a
+ * class of the main dex unknown to the original parent costs one more
+ * {@link ClassNotFoundException}.
+ *
+ * @author zhipeng.zhuo
+ * @date 2020-03-07
+ */
+class IndexedDexClassLoader extends ClassLoader {
+
+    static final String TAG = MultiDex.TAG;
+
+    final ClassLoader loader;
+    final ClassLoader parent;
+    final Field parentField;
+    final List<File> files;
+    final DexClassIndex index;
+    /* classes are loaded from dexFiles, otherwise only the lookup hook is used */
+    final boolean direct;
+    private final DexFile[] dexFiles;
+
+    IndexedDexClassLoader(ClassLoader loader, ClassLoader parent, Field parentField,
+                          List<? extends File> files, DexClassIndex index, boolean direct) {
+        super(parent);
+        this.loader = loader;
+        this.parent = parent;
+        this.parentField = parentField;
+        this.files = new ArrayList<File>(files);
+        this.index = index;
+        this.direct = direct;
+        this.dexFiles = new DexFile[files.size()];
+    }
+
+    /**
+     * Make {@code loader} load the classes of {@code files}, already installed, from their dex.
+     *
+     * @return false if the class loader could not be hooked, it then looks up every dex as usual.
+     */
+    static boolean install(ClassLoader loader, List<? extends File> files, DexClassIndex index) {
+        if (files.isEmpty()) {
+            return true;
+        }
+        if (Build.VERSION.SDK_INT < 14 /* Build.VERSION_CODES.ICE_CREAM_SANDWICH */) {
+            Log.i(TAG, "Class index lookup needs dexElements, not hooked");
+            return false;
+        }
+        try {
+            Field parentField = MultiDex.findField(loader, "parent");
+            synchronized (MultiDexClassLoaderGuard.PARENT_LOCK) {
+                // beneath the guard of a running installation, which is then removed on its own
+                ClassLoader parent = MultiDexClassLoaderGuard.getParent(loader, parentField);
+                if (parent == null) {
+                    Log.w(TAG, "Class loader without parent, not hooked");
+                    return false;
+                }
+                IndexedDexClassLoader hook = new IndexedDexClassLoader(loader, parent, parentField,
+                        files, index, true);
+                for (int i = 0; i < files.size(); i++) {
+                    hook.resolveDexFile(i);
+                }
+                MultiDexClassLoaderGuard.setParent(loader, parentField, hook);
+            }
+            Log.i(TAG, "class index lookup of " + index.size() + " classes installed");
+            return true;
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to hook the class loader for the class index lookup", e);
+            return false;
+        }
+    }
+
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        try {
+            return parent.loadClass(name);
+        } catch (ClassNotFoundException e) {
+            // not a class of the boot class path
+        }
+        // each dex of a class with the same hash, almost always only the one defining it
+        for (int dex = index.getDex(name); dex != -1; dex = index.getDex(name, dex)) {
+            prepareDex(dex, name);
+            if (direct) {
+                DexFile dexFile = dexFiles[dex];
+                Class<?> clazz = dexFile != null ? dexFile.loadClass(name, loader) : null;
+                if (clazz != null) {
+                    return clazz;
+                }
+            }
+        }
+        // the class loader looks for it in its dexes
+        throw new ClassNotFoundException(name);
+    }
+
+    /**
+     * Remove the hook of {@code loader}, the one installed last if several apks are hooked: every
+     * class then goes through the usual lookup again. The dexes the lazy mode did not add yet are
+     * added first.
+     *
+     * @return false if the class loader has no hook as parent, or beneath its guard.
+     */
+    static boolean uninstall(ClassLoader loader) {
+        IndexedDexClassLoader hook;
+        try {
+            Field parentField = MultiDex.findField(loader, "parent");
+            synchronized (MultiDexClassLoaderGuard.PARENT_LOCK) {
+                ClassLoader parent = MultiDexClassLoaderGuard.getParent(loader, parentField);
+                if (!(parent instanceof IndexedDexClassLoader)) {
+                    return false;
+                }
+                hook = (IndexedDexClassLoader) parent;
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to find the class loader hook", e);
+            return false;
+        }
+        hook.prepareUninstall();
+        // the lazy mode may remove it once every dex is added
+        hook.uninstall();
+        Log.i(TAG, "class loader hook of " + hook.files.size() + " dexes removed");
+        return true;
+    }
+
+    /**
+     * Called before the hook is removed on request, every class must then be found by the class
+     * loader without it.
+     */
+    void prepareUninstall() {
+    }
+
+    /**
+     * Put back the parent the hook replaced. Another library may have set its own parent
+     * meanwhile, the hook then stays in the chain and only delegates.
+     *
+     * @return true if the hook was removed.
+     */
+    boolean uninstall() {
+        try {
+            synchronized (MultiDexClassLoaderGuard.PARENT_LOCK) {
+                if (MultiDexClassLoaderGuard.getParent(loader, parentField) == this) {
+                    MultiDexClassLoaderGuard.setParent(loader, parentField, parent);
+                    return true;
+                }
+            }
+        } catch (IllegalAccessException e) {
+            Log.w(TAG, "Failed to remove the class loader hook", e);
+        }
+        return false;
+    }
+
+    /**
+     * Called before {@code name} is looked up in the dex {@code dex}, which must then be in the
+     * class loader.
+     */
+    void prepareDex(int dex, String name) {
+    }
+
+    /**
+     * Find the {@link DexFile} of the dex {@code dex} in the elements of the class loader, once it
+     * is added. Classes of a dex not found are left to the usual lookup.
+     */
+    void resolveDexFile(int dex) {
+        if (!direct) {
+            return;
+        }
+        String path = files.get(dex).getPath();
+        try {
+            Object dexPathList = MultiDex.findField(loader, "pathList").get(loader);
+            Object[] elements = (Object[]) MultiDex.findField(dexPathList, "dexElements")
+                    .get(dexPathList);
+            for (Object element : elements) {
+                DexFile dexFile = (DexFile) MultiDex.findField(element, "dexFile").get(element);
+                if (dexFile != null && path.equals(dexFile.getName())) {
+                    dexFiles[dex] = dexFile;
+                    return;
+                }
+            }
+            Log.w(TAG, "No element for " + path + ", its classes are looked up as usual");
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to find the dex file of " + path + ", its classes are looked up"
+                    + " as usual", e);
+        }
+    }
+}
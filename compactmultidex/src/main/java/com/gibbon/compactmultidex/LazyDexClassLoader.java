@@ -0,0 +1,152 @@
+package com.gibbon.compactmultidex;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Parent of the application class loader in the lazy mode, see {@link MultiDex#FLAG_LAZY_DEX}. The
+ * secondary dexes are extracted and verified by the installation but not added to the class loader.
+ * The class loader asks its parent first for every class: a class unknown to the original parent and
+ * defined by a dex not added yet has this dex optimized and added to the class loader, which then
+ * finds it in its dexes. Other classes only cost a lookup in the {@link DexClassIndex}. A class
+ * sharing its hash with classes of other dexes has all of these dexes added.
+ * <p>
+ * Dexes are added once, in the order of the first lookups. The original parent is put back once
+ * every dex is added, unless the classes are loaded from their dex with
+ * {@link MultiDex#FLAG_CLASS_INDEX}, or by {@link MultiDex#uninstallClassIndex} which adds the
+ * remaining dexes first.
+ *
+ * @author zhipeng.zhuo
+ * @date 2020-03-07
+ */
+final class LazyDexClassLoader extends IndexedDexClassLoader {
+
+    private final File optimizedDirectory;
+    private final FutureTask<Void>[] attachTasks;
+    private final AtomicInteger pendingDexCount;
+
+    private LazyDexClassLoader(ClassLoader loader, ClassLoader parent, Field parentField,
+                               File optimizedDirectory, List<? extends File> files,
+                               DexClassIndex index, boolean direct) {
+        super(loader, parent, parentField, files, index, direct);
+        this.optimizedDirectory = optimizedDirectory;
+        this.attachTasks = new FutureTask[files.size()];
+        this.pendingDexCount = new AtomicInteger(files.size());
+    }
+
+    /**
+     * Make {@code loader} add each of {@code files} when one of its classes is first looked up.
+     * With {@code direct}, the classes of an added dex are then loaded from it as with
+     * {@link IndexedDexClassLoader#install}, and the hook stays.
+     *
+     * @return false if the class loader could not be hooked, the files must then be installed now.
+     */
+    static boolean install(ClassLoader loader, File optimizedDirectory, List<? extends File> files,
+                           DexClassIndex index, boolean direct) {
+        if (files.isEmpty()) {
+            return true;
+        }
+        try {
+            Field parentField = MultiDex.findField(loader, "parent");
+            synchronized (MultiDexClassLoaderGuard.PARENT_LOCK) {
+                // beneath the guard of a running installation, which is then removed on its own
+                ClassLoader parent = MultiDexClassLoaderGuard.getParent(loader, parentField);
+                if (parent == null) {
+                    Log.w(TAG, "Class loader without parent, the dexes are installed now");
+                    return false;
+                }
+                MultiDexClassLoaderGuard.setParent(loader, parentField, new LazyDexClassLoader(
+                        loader, parent, parentField, optimizedDirectory, files, index, direct));
+            }
+            Log.i(TAG, files.size() + " dexes will be installed on their first class lookup");
+            return true;
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to hook the class loader, the dexes are installed now", e);
+            return false;
+        }
+    }
+
+    @Override
+    void prepareDex(int dex, String name) {
+        attach(dex, name);
+    }
+
+    @Override
+    void prepareUninstall() {
+        for (int dex = 0; dex < files.size(); dex++) {
+            attach(dex, null);
+        }
+    }
+
+    /**
+     * Add the dex {@code dex} to the class loader, or wait for the thread adding it.
+     *
+     * @param className the class looked up, null when the hook is removed.
+     */
+    private void attach(final int dex, final String className) {
+        FutureTask<Void> task;
+        synchronized (attachTasks) {
+            task = attachTasks[dex];
+            if (task == null) {
+                task = new FutureTask<Void>(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        attachNow(dex, className);
+                        return null;
+                    }
+                });
+                attachTasks[dex] = task;
+            }
+        }
+        if (task.isDone()) {
+            return;
+        }
+        // run() does nothing on a task already started
+        task.run();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                task.get();
+                break;
+            } catch (InterruptedException e) {
+                // the class may not be looked up before its dex is added
+                interrupted = true;
+            } catch (ExecutionException e) {
+                // logged by the adding thread, the class is then not found
+                break;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void attachNow(int dex, String className) throws Exception {
+        long start = SystemClock.uptimeMillis();
+        List<File> single = new ArrayList<File>(1);
+        single.add(files.get(dex));
+        try {
+            MultiDex.installSecondaryDexes(loader, optimizedDirectory, single, null);
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to install " + single.get(0).getPath()
+                    + (className != null ? " for " + className : ""), e);
+            throw e;
+        }
+        Log.i(TAG, "classes" + (dex + 2) + ".dex installed "
+                + (className != null ? "on the lookup of " + className : "before the hook removal")
+                + ", need " + (SystemClock.uptimeMillis() - start) + "ms");
+        resolveDexFile(dex);
+        if (pendingDexCount.decrementAndGet() == 0 && !direct && uninstall()) {
+            Log.i(TAG, "every dex installed, class loader hook removed");
+        }
+    }
+}
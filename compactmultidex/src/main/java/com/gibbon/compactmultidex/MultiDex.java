@@ -34,11 +34,13 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
+import java.util.HashMap;
 import java.util.List;
 import java.util.ListIterator;
-import java.util.Set;
+import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
 import java.util.zip.ZipFile;
 
 /**
@@ -91,11 +93,99 @@ public class MultiDex {
      * */
     public static final int FLAG_NOT_DEX_CRC = 1 << 4;
 
+    /**
+     * 抽取原始dex时，apk中未压缩(STORED)的classesN.dex直接通过FileChannel.transferTo拷贝，不经过java堆缓冲，
+     * 压缩的dex仍走原来的解压流程
+     * */
+    public static final int FLAG_EXTRACT_RAW_DEX_ZERO_COPY = 1 << 5;
+
+    /**
+     * 生成zip时不再解压后重新压缩，直接拷贝apk中classesN.dex已压缩的数据，并手写zip头、中央目录及结尾记录，
+     * 沿用apk中entry的crc、大小以及时间
+     * */
+    public static final int FLAG_EXTRACT_ZIP_RAW_COPY = 1 << 6;
+
+    /**
+     * 生成zip时classes.dex以STORED(不压缩)方式存储，crc和大小直接取自apk中央目录，dexopt读取时无需再解压；
+     * 优先级高于FLAG_EXTRACT_ZIP_RAW_COPY，低于FLAG_EXTRACT_RAW_DEX_NOT_ZIP
+     * */
+    public static final int FLAG_EXTRACT_STORED_ZIP = 1 << 7;
+
+    /**
+     * apk路径、大小、修改时间及inode未变化时，直接复用上次保存的apk crc，不再读取apk中央目录计算crc
+     * */
+    public static final int FLAG_APK_FINGERPRINT = 1 << 8;
+
+    /**
+     * apk校验只计算classesN.dex中央目录记录(名称、压缩方式、crc、大小)的crc，不再计算整个中央目录，
+     * 资源等其它文件变化时不会重新抽取，也不再比较apk的修改时间；并记录每个dex的crc及大小，供FLAG_INCREMENTAL_EXTRACT判断哪些dex需要重新抽取
+     * */
+    public static final int FLAG_DEX_ONLY_FINGERPRINT = 1 << 9;
+
+    /**
+     * 并发抽取及并发校验时不再预先按大小分组，所有dex按从大到小放入共享队列，各线程(包括主线程)处理完一个就取下一个，
+     * 避免某个dex因io抖动或解压慢拖慢所在分组，而其它线程空闲
+     * */
+    public static final int FLAG_DYNAMIC_SCHEDULE = 1 << 10;
+
+    /**
+     * 需要抽取时，每个dex抽取并校验完成后立即在线程池中进行该dex的dexopt(makeDexElements)，抽取与dexopt重叠进行，
+     * 抽取结束后按dex顺序合并各dex的Element到dexElements；仅对API 14及以上生效
+     * */
+    public static final int FLAG_PIPELINE_DEXOPT = 1 << 11;
+
+    /**
+     * 无需抽取时，每个本地dex校验完成后立即在线程池中进行该dex的dexopt(makeDexElements)，不再等待所有dex校验完成后
+     * 再统一加载，最终dexElements仍按dex编号顺序合并；需要抽取时(包括校验失败后重新抽取)效果同FLAG_PIPELINE_DEXOPT；
+     * 仅对API 14及以上生效
+     * */
+    public static final int FLAG_PIPELINE_WARM_START = 1 << 12;
+
+    /**
+     * apk更新需要重新抽取时，按apk中每个classesN.dex的crc及大小判断是否变化，未变化的dex沿用上次抽取的文件及其odex
+     * (apk文件名变化时重命名为新的前缀)，只重新抽取变化的dex；未设置FLAG_NOT_DEX_CRC时沿用前会校验文件crc
+     * */
+    public static final int FLAG_INCREMENTAL_EXTRACT = 1 << 13;
+
+    /**
+     * 抽取时每个dex完成后立即记录该dex对应apk entry的crc、大小以及抽取文件的crc、修改时间，抽取中途进程被杀时，
+     * 下次启动校验已完成的dex后只抽取剩余的dex；沿用逻辑同FLAG_INCREMENTAL_EXTRACT
+     * */
+    public static final int FLAG_EXTRACT_CHECKPOINT = 1 << 14;
+
+    /**
+     * 抽取信息(apk时间戳及crc、dex数量、每个dex的crc及修改时间等)不再保存在multidex.version的SharedPreferences中，
+     * 改为保存在dex目录下带版本号的二进制文件，持锁时一次mmap读取，写入时写临时文件后重命名；首次使用时从原SharedPreferences迁移
+     * */
+    public static final int FLAG_BINARY_MANIFEST = 1 << 15;
+
+    /**
+     * 先以共享锁持有MultiDex.lock进行校验及加载，多个进程同时启动时可并行校验；只有需要抽取时才释放共享锁并获取独占锁，
+     * 获取独占锁后重新判断是否仍需抽取；日志中打印每次等待锁的时间
+     * */
+    public static final int FLAG_SHARED_LOCK = 1 << 16;
+
+    /**
+     * 安装时只抽取并校验dex，不进行dexopt也不加入dexElements，而是读取各dex的class_defs建立类名到dex的索引，
+     * 并替换ClassLoader的parent；某个类首次被查找时若其所在的dex尚未加载，才对该dex进行dexopt并加入dexElements，
+     * 启动耗时只与实际用到的dex相关；设置后FLAG_PIPELINE_DEXOPT及FLAG_PIPELINE_WARM_START不再生效
+     * */
+    public static final int FLAG_LAZY_DEX = 1 << 17;
+
+    /**
+     * 首次安装某个apk版本时读取各dex的class_defs建立类名到dex的索引并保存在dex目录的MultiDex.classes中，之后直接读取；
+     * 安装后替换ClassLoader的parent，查找secondary dex中的类时直接从索引给出的DexFile加载，不再依次查找dexElements中的每个dex，
+     * 索引未命中时仍按原有方式查找；需要SDK 14及以上，可与FLAG_LAZY_DEX一起使用；主dex中的类每次首次加载都多一次查找失败，
+     * 启动后可调用uninstallClassIndex移除
+     * */
+    public static final int FLAG_CLASS_INDEX = 1 << 18;
+
     /**
      * 所有优化点一起进行
      * */
     public static final int FLAG_ALL_OPT = FLAG_EXTRACT_CONCURRENT | FLAG_LOAD_OPT_AND_DEX_CONCURRENT | FLAG_EXTRACT_RAW_DEX_NOT_ZIP |
-            FLAG_EXTRACT_TO_RAW_DEX_CONCURRENT_CRC | FLAG_NOT_DEX_CRC;
+            FLAG_EXTRACT_TO_RAW_DEX_CONCURRENT_CRC | FLAG_NOT_DEX_CRC | FLAG_EXTRACT_RAW_DEX_ZERO_COPY |
+            FLAG_APK_FINGERPRINT | FLAG_DEX_ONLY_FINGERPRINT;
 
     public static int DEFAULT_FLAG = FLAG_ALL_OPT;
 
@@ -119,7 +209,23 @@ public class MultiDex {
 
     private static final String NO_KEY_PREFIX = "";
 
-    private static final Set<String> installedApk = new HashSet<>();
+    /**
+     * Installation of each apk path, the first caller runs it, the others wait for it.
+     */
+    private static final Map<String, MultiDexInstallation> installations = new HashMap<>();
+
+    /**
+     * Apks of different paths may be installed at the same time, from different dex directories,
+     * their elements are still added to the class loader fields one apk at a time.
+     */
+    private static final Object CLASS_LOADER_LOCK = new Object();
+
+    /**
+     * Lock of each dex directory path. Apks of different paths share the dex directory, its lock
+     * file and its preferences, and {@link java.nio.channels.FileChannel#lock} does not exclude the
+     * threads of one process: their installations use the directory one at a time.
+     */
+    private static final Map<String, Object> dexDirLocks = new HashMap<>();
 
     private static final boolean IS_VM_MULTIDEX_CAPABLE =
             isVMMultidexCapable(System.getProperty("java.vm.version"));
@@ -140,6 +246,16 @@ public class MultiDex {
         install(context, DEFAULT_FLAG);
     }
 
+    /**
+     * Run the extraction, crc verification and dexopt threads on {@code executor} instead of the
+     * library own threads. Must be called before {@link #install}, null goes back to the library
+     * threads. The executor should allow a few tasks to run at the same time: tasks it has not
+     * started when they are needed are run on the installing thread.
+     */
+    public static void setExecutor(Executor executor) {
+        MultiDexExecutor.setExecutor(executor);
+    }
+
     public static void install(Context context, int flag) {
         Log.i(TAG, "Installing application");
         Log.i(TAG, "CPU count: " + CPU_COUNT);
@@ -162,56 +278,190 @@ public class MultiDex {
                 return;
             }
 
-            synchronized (installedApk) {
-                String apkPath = applicationInfo.sourceDir;
-                if (installedApk.contains(apkPath)) {
-                    return;
-                }
+            MultiDexInstallation installation = getInstallation(context, applicationInfo);
+            if (!installation.run()) {
+                // installed or being installed by another thread, a failure is reported there
+                installation.join();
+                return;
+            }
+            Throwable failure = installation.join();
+            if (failure instanceof Error) {
+                throw (Error) failure;
+            } else if (failure != null) {
+                throw (Exception) failure;
+            }
 
-                installedApk.add(apkPath);
+        } catch (Exception e) {
+            throw new RuntimeException("MultiDex installation failed (" + e.getMessage() + ").");
+        }
+        Log.i(TAG, "install done, all time is: " + (SystemClock.uptimeMillis() - startTime));
+    }
 
-                if (Build.VERSION.SDK_INT > MAX_SUPPORTED_SDK_VERSION) {
-                    Log.w(TAG, "MultiDex is not guaranteed to work in SDK version "
-                            + Build.VERSION.SDK_INT + ": SDK version higher than "
-                            + MAX_SUPPORTED_SDK_VERSION + " should be backed by "
-                            + "runtime with built-in multidex capabilty but it's not the "
-                            + "case here: java.vm.version=\""
-                            + System.getProperty("java.vm.version") + "\"");
-                }
+    /**
+     * Start the installation on the library threads and return at once, the application goes on
+     * with the code of the main dex meanwhile. Classes of the secondary dexes must not be used before
+     * {@link MultiDexInstallation#await()} returns or an {@link IInstallCallback} is called, unless
+     * {@code guardClassLoading} is true: the class loader then blocks the loading of classes not in
+     * the main dex until the installation is over.
+     * <p>
+     * The guard has a cost: each class not in the main dex, even a class that does not exist,
+     * loaded before the installation is over blocks its thread, possibly the main thread, until the
+     * whole installation is done, and is looked up twice in the main dex. The installation itself
+     * never runs on that thread.
+     * <p>
+     * Like {@link #install}, an apk is installed once, later calls get the same installation.
+     *
+     * @param context application context.
+     * @param guardClassLoading true to block early uses of secondary dex classes instead of failing.
+     * @return the installation, already done when there is nothing to install.
+     */
+    public static MultiDexInstallation installAsync(Context context, boolean guardClassLoading) {
+        Log.i(TAG, "Installing application asynchronously");
+        if (IS_VM_MULTIDEX_CAPABLE) {
+            Log.i(TAG, "VM has multidex support, MultiDex support library is disabled.");
+            return MultiDexInstallation.completed(null);
+        }
 
-                /* The patched class loader is expected to be a ClassLoader capable of loading DEX
-                 * bytecode. We modify its pathList field to append additional DEX file entries.
-                 */
-                ClassLoader loader = getDexClassloader(context);
-                if (loader == null) {
-                    return;
-                }
+        if (Build.VERSION.SDK_INT < MIN_SDK_VERSION) {
+            throw new RuntimeException("MultiDex installation failed. SDK " + Build.VERSION.SDK_INT
+                    + " is unsupported. Min SDK version is " + MIN_SDK_VERSION + ".");
+        }
 
-                try {
-                    clearOldDexDir(context);
-                } catch (Throwable t) {
-                    Log.w(TAG, "Something went wrong when trying to clear old MultiDex extraction, "
-                            + "continuing without cleaning.", t);
-                }
+        ApplicationInfo applicationInfo = getApplicationInfo(context);
+        if (applicationInfo == null) {
+            Log.i(TAG, "No ApplicationInfo available, i.e. running on a test Context:"
+                    + " MultiDex support library is disabled.");
+            return MultiDexInstallation.completed(null);
+        }
 
-                File dexDir = getDexDir(context, applicationInfo);
-                // MultiDexExtractor is taking the file lock and keeping it until it is closed.
-                // Keep it open during installSecondaryDexes and through forced extraction to ensure no
-                // extraction or optimizing dexopt is running in parallel.
-                List<? extends File> files = MultiDexExtractor.load(context, applicationInfo, dexDir, false);
+        MultiDexInstallation installation = getInstallation(context, applicationInfo);
+        if (guardClassLoading && !installation.isDone()) {
+            ClassLoader loader = getDexClassloader(context);
+            if (loader != null) {
+                MultiDexClassLoaderGuard.install(loader, installation);
+            }
+        }
+        installation.start();
+        return installation;
+    }
 
-                if ((DEFAULT_FLAG & FLAG_EXTRACT_RAW_DEX_NOT_ZIP) != 0) {
-                    installSecondaryDexes(loader, getOptDexDir(dexDir), files);
-                } else {
-                    installSecondaryDexes(loader, dexDir, files);
+    /**
+     * Remove the class loader hook of {@link #FLAG_CLASS_INDEX} and {@link #FLAG_LAZY_DEX}, for
+     * instance once the startup is over: the classes of the secondary dexes are then looked up in
+     * each dex again, and the classes of the main dex no longer cost the miss of the hook. The
+     * dexes the lazy mode did not add yet are added first. Must be called once the installation is
+     * over.
+     *
+     * @param context application context.
+     */
+    public static void uninstallClassIndex(Context context) {
+        ClassLoader loader = getDexClassloader(context);
+        if (loader == null || !IndexedDexClassLoader.uninstall(loader)) {
+            Log.i(TAG, "No class loader hook to remove");
+        }
+    }
+
+    /**
+     * @return the installation of the apk of {@code applicationInfo}, created on the first call for
+     * its path and not started.
+     */
+    private static MultiDexInstallation getInstallation(final Context context,
+                                                        final ApplicationInfo applicationInfo) {
+        String apkPath = applicationInfo.sourceDir;
+        synchronized (installations) {
+            MultiDexInstallation installation = installations.get(apkPath);
+            if (installation == null) {
+                installation = new MultiDexInstallation(apkPath, new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        doInstall(context, applicationInfo);
+                        return null;
+                    }
+                });
+                installations.put(apkPath, installation);
+            }
+            return installation;
+        }
+    }
+
+    private static void doInstall(Context context, ApplicationInfo applicationInfo) throws Exception {
+        if (Build.VERSION.SDK_INT > MAX_SUPPORTED_SDK_VERSION) {
+            Log.w(TAG, "MultiDex is not guaranteed to work in SDK version "
+                    + Build.VERSION.SDK_INT + ": SDK version higher than "
+                    + MAX_SUPPORTED_SDK_VERSION + " should be backed by "
+                    + "runtime with built-in multidex capabilty but it's not the "
+                    + "case here: java.vm.version=\""
+                    + System.getProperty("java.vm.version") + "\"");
+        }
+
+        /* The patched class loader is expected to be a ClassLoader capable of loading DEX
+         * bytecode. We modify its pathList field to append additional DEX file entries.
+         */
+        ClassLoader loader = getDexClassloader(context);
+        if (loader == null) {
+            return;
+        }
+
+        try {
+            clearOldDexDir(context);
+        } catch (Throwable t) {
+            Log.w(TAG, "Something went wrong when trying to clear old MultiDex extraction, "
+                    + "continuing without cleaning.", t);
+        }
+
+        File dexDir = getDexDir(context, applicationInfo);
+        File optimizedDirectory;
+        if ((DEFAULT_FLAG & FLAG_EXTRACT_RAW_DEX_NOT_ZIP) != 0) {
+            optimizedDirectory = getOptDexDir(dexDir);
+        } else {
+            optimizedDirectory = dexDir;
+        }
+        // the extraction of another apk deletes or renames the files of this one and uses the same
+        // preferences keys: they are extracted, opened and hooked before another apk goes on
+        synchronized (getDexDirLock(dexDir)) {
+            boolean lazy = (DEFAULT_FLAG & FLAG_LAZY_DEX) != 0;
+            DexElementsPipeline pipeline = null;
+            if (!lazy && (DEFAULT_FLAG & (FLAG_PIPELINE_DEXOPT | FLAG_PIPELINE_WARM_START)) != 0) {
+                pipeline = newDexElementsPipeline(loader, optimizedDirectory);
+            }
+            // MultiDexExtractor is taking the file lock and keeping it until it is closed.
+            // Keep it open during installSecondaryDexes and through forced extraction to ensure no
+            // extraction or optimizing dexopt is running in parallel.
+            List<? extends File> files = MultiDexExtractor.load(context, applicationInfo, dexDir, false, pipeline);
+
+            boolean indexed = (DEFAULT_FLAG & FLAG_CLASS_INDEX) != 0;
+            DexClassIndex index = null;
+            if (lazy || indexed) {
+                long start = SystemClock.uptimeMillis();
+                try {
+                    index = DexClassIndex.load(new File(applicationInfo.sourceDir), dexDir, files);
+                    Log.i(TAG, "class index of " + index.size() + " classes, need "
+                            + (SystemClock.uptimeMillis() - start) + "ms");
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to read the class index, the dexes are looked up as usual", e);
                 }
             }
 
-        } catch (Exception e) {
-            Log.e(TAG, "MultiDex installation failure", e);
-            throw new RuntimeException("MultiDex installation failed (" + e.getMessage() + ").");
+            if (lazy && index != null && LazyDexClassLoader.install(loader, optimizedDirectory, files,
+                    index, indexed && Build.VERSION.SDK_INT >= 14)) {
+                return;
+            }
+            installSecondaryDexes(loader, optimizedDirectory, files, pipeline);
+            if (indexed && index != null) {
+                IndexedDexClassLoader.install(loader, files, index);
+            }
+        }
+    }
+
+    private static Object getDexDirLock(File dexDir) {
+        synchronized (dexDirLocks) {
+            Object lock = dexDirLocks.get(dexDir.getPath());
+            if (lock == null) {
+                lock = new Object();
+                dexDirLocks.put(dexDir.getPath(), lock);
+            }
+            return lock;
         }
-        Log.i(TAG, "install done, all time is: " + (SystemClock.uptimeMillis() - startTime));
     }
 
     public static File getOptDexDir(File rawDexDir) throws IOException {
@@ -305,16 +555,30 @@ public class MultiDex {
         return isMultidexCapable;
     }
 
-    private static void installSecondaryDexes(ClassLoader loader, File dexDir,
-                                              List<? extends File> files)
+    /**
+     * @return the pipeline making the elements of each dex as soon as it is extracted, null before
+     * API 14 where dexes are not added as elements.
+     */
+    private static DexElementsPipeline newDexElementsPipeline(ClassLoader loader, File optimizedDirectory)
+            throws IllegalAccessException, NoSuchFieldException, NoSuchMethodException {
+        if (Build.VERSION.SDK_INT >= 19) {
+            return V19.newPipeline(loader, optimizedDirectory);
+        } else if (Build.VERSION.SDK_INT >= 14) {
+            return V14.newPipeline(loader, optimizedDirectory);
+        }
+        return null;
+    }
+
+    static void installSecondaryDexes(ClassLoader loader, File dexDir,
+                                      List<? extends File> files, DexElementsPipeline pipeline)
             throws IllegalArgumentException, IllegalAccessException, NoSuchFieldException,
             InvocationTargetException, NoSuchMethodException, IOException, SecurityException,
             ClassNotFoundException, InstantiationException {
         if (!files.isEmpty()) {
             if (Build.VERSION.SDK_INT >= 19) {
-                V19.install(loader, files, dexDir);
+                V19.install(loader, files, dexDir, pipeline);
             } else if (Build.VERSION.SDK_INT >= 14) {
-                V14.install(loader, files, dexDir);
+                V14.install(loader, files, dexDir, pipeline);
             } else {
                 V4.install(loader, files);
             }
@@ -329,7 +593,7 @@ public class MultiDex {
      * @return a field object
      * @throws NoSuchFieldException if the field cannot be located
      */
-    private static Field findField(Object instance, String name) throws NoSuchFieldException {
+    static Field findField(Object instance, String name) throws NoSuchFieldException {
         for (Class<?> clazz = instance.getClass(); clazz != null; clazz = clazz.getSuperclass()) {
             try {
                 Field field = clazz.getDeclaredField(name);
@@ -357,7 +621,7 @@ public class MultiDex {
      * @return a method object
      * @throws NoSuchMethodException if the method cannot be located
      */
-    private static Method findMethod(Object instance, String name, Class<?>... parameterTypes)
+    static Method findMethod(Object instance, String name, Class<?>... parameterTypes)
             throws NoSuchMethodException {
         for (Class<?> clazz = instance.getClass(); clazz != null; clazz = clazz.getSuperclass()) {
             try {
@@ -464,9 +728,20 @@ public class MultiDex {
      */
     private static final class V19 {
 
+        static DexElementsPipeline newPipeline(ClassLoader loader, File optimizedDirectory)
+                throws IllegalAccessException, NoSuchFieldException, NoSuchMethodException {
+            Object dexPathList = findField(loader, "pathList").get(loader);
+            Method makeDexElements =
+                    findMethod(dexPathList, "makeDexElements", ArrayList.class, File.class,
+                            ArrayList.class);
+            ArrayList<IOException> suppressedExceptions = new ArrayList<>();
+            return new DexElementsPipeline(new HookDexElementsMethodInvokerV19(dexPathList,
+                    optimizedDirectory, makeDexElements, suppressedExceptions), suppressedExceptions);
+        }
+
         static void install(ClassLoader loader,
                             List<? extends File> additionalClassPathEntries,
-                            File optimizedDirectory)
+                            File optimizedDirectory, DexElementsPipeline pipeline)
                 throws IllegalArgumentException, IllegalAccessException,
                 NoSuchFieldException, InvocationTargetException, NoSuchMethodException,
                 IOException {
@@ -477,35 +752,48 @@ public class MultiDex {
              */
             Field pathListField = findField(loader, "pathList");
             Object dexPathList = pathListField.get(loader);
-            ArrayList<IOException> suppressedExceptions = new ArrayList<>();
-            expandFieldArray(dexPathList, "dexElements", makeDexElements(dexPathList,
-                    new ArrayList<File>(additionalClassPathEntries), optimizedDirectory,
-                    suppressedExceptions));
+            Object[] elements;
+            ArrayList<IOException> suppressedExceptions;
+            if (pipeline != null && pipeline.isStarted()) {
+                // the pipeline invoker collects into its own list
+                elements = pipeline.make(additionalClassPathEntries);
+                suppressedExceptions = pipeline.getSuppressedExceptions();
+            } else {
+                suppressedExceptions = new ArrayList<>();
+                elements = makeDexElements(dexPathList,
+                        new ArrayList<File>(additionalClassPathEntries), optimizedDirectory,
+                        suppressedExceptions);
+            }
+            synchronized (CLASS_LOADER_LOCK) {
+                expandFieldArray(dexPathList, "dexElements", elements);
+            }
             if (suppressedExceptions.size() > 0) {
                 for (IOException e : suppressedExceptions) {
                     Log.w(TAG, "Exception in makeDexElement", e);
                 }
                 Field suppressedExceptionsField =
                         findField(dexPathList, "dexElementsSuppressedExceptions");
-                IOException[] dexElementsSuppressedExceptions =
-                        (IOException[]) suppressedExceptionsField.get(dexPathList);
-
-                if (dexElementsSuppressedExceptions == null) {
-                    dexElementsSuppressedExceptions =
-                            suppressedExceptions.toArray(
-                                    new IOException[suppressedExceptions.size()]);
-                } else {
-                    IOException[] combined =
-                            new IOException[suppressedExceptions.size() +
-                                    dexElementsSuppressedExceptions.length];
-                    suppressedExceptions.toArray(combined);
-                    System.arraycopy(dexElementsSuppressedExceptions, 0, combined,
-                            suppressedExceptions.size(), dexElementsSuppressedExceptions.length);
-                    dexElementsSuppressedExceptions = combined;
+                synchronized (CLASS_LOADER_LOCK) {
+                    IOException[] dexElementsSuppressedExceptions =
+                            (IOException[]) suppressedExceptionsField.get(dexPathList);
+
+                    if (dexElementsSuppressedExceptions == null) {
+                        dexElementsSuppressedExceptions =
+                                suppressedExceptions.toArray(
+                                        new IOException[suppressedExceptions.size()]);
+                    } else {
+                        IOException[] combined =
+                                new IOException[suppressedExceptions.size() +
+                                        dexElementsSuppressedExceptions.length];
+                        suppressedExceptions.toArray(combined);
+                        System.arraycopy(dexElementsSuppressedExceptions, 0, combined,
+                                suppressedExceptions.size(), dexElementsSuppressedExceptions.length);
+                        dexElementsSuppressedExceptions = combined;
+                    }
+
+                    suppressedExceptionsField.set(dexPathList, dexElementsSuppressedExceptions);
                 }
 
-                suppressedExceptionsField.set(dexPathList, dexElementsSuppressedExceptions);
-
                 IOException exception = new IOException("I/O exception during makeDexElement");
                 exception.initCause(suppressedExceptions.get(0));
                 throw exception;
@@ -622,9 +910,17 @@ public class MultiDex {
 
         private final ElementConstructor elementConstructor;
 
+        static DexElementsPipeline newPipeline(ClassLoader loader, File optimizedDirectory)
+                throws IllegalAccessException, NoSuchFieldException, NoSuchMethodException {
+            Object dexPathList = findField(loader, "pathList").get(loader);
+            Method makeElements = findMethod(dexPathList, "makeDexElements", ArrayList.class, File.class);
+            return new DexElementsPipeline(new HookDexElementsMethodInvokerV14(dexPathList,
+                    optimizedDirectory, makeElements), null);
+        }
+
         static void install(ClassLoader loader,
                             List<? extends File> additionalClassPathEntries,
-                            File optimizedDirectory)
+                            File optimizedDirectory, DexElementsPipeline pipeline)
                 throws  IOException, SecurityException, IllegalArgumentException,
                 ClassNotFoundException, NoSuchMethodException, InstantiationException,
                 IllegalAccessException, InvocationTargetException, NoSuchFieldException {
@@ -635,14 +931,21 @@ public class MultiDex {
              */
             Field pathListField = findField(loader, "pathList");
             Object dexPathList = pathListField.get(loader);
-            Object[] elements = new V14().makeDexElements(dexPathList, new ArrayList<File>(additionalClassPathEntries), optimizedDirectory);
-            try {
-                expandFieldArray(dexPathList, "dexElements", elements);
-            } catch (NoSuchFieldException e) {
-                // dexElements was renamed pathElements for a short period during JB development,
-                // eventually it was renamed back shortly after.
-                Log.w(TAG, "Failed find field 'dexElements' attempting 'pathElements'", e);
-                expandFieldArray(dexPathList, "pathElements", elements);
+            Object[] elements;
+            if (pipeline != null && pipeline.isStarted()) {
+                elements = pipeline.make(additionalClassPathEntries);
+            } else {
+                elements = new V14().makeDexElements(dexPathList, new ArrayList<File>(additionalClassPathEntries), optimizedDirectory);
+            }
+            synchronized (CLASS_LOADER_LOCK) {
+                try {
+                    expandFieldArray(dexPathList, "dexElements", elements);
+                } catch (NoSuchFieldException e) {
+                    // dexElements was renamed pathElements for a short period during JB development,
+                    // eventually it was renamed back shortly after.
+                    Log.w(TAG, "Failed find field 'dexElements' attempting 'pathElements'", e);
+                    expandFieldArray(dexPathList, "pathElements", elements);
+                }
             }
         }
 
@@ -718,7 +1021,7 @@ public class MultiDex {
 
             Field pathField = findField(loader, "path");
 
-            StringBuilder path = new StringBuilder((String) pathField.get(loader));
+            StringBuilder path = new StringBuilder();
             String[] extraPaths = new String[extraSize];
             File[] extraFiles = new File[extraSize];
             ZipFile[] extraZips = new ZipFile[extraSize];
@@ -735,11 +1038,13 @@ public class MultiDex {
                 extraDexs[index] = DexFile.loadDex(entryPath, entryPath + ".dex", 0);
             }
 
-            pathField.set(loader, path.toString());
-            expandFieldArray(loader, "mPaths", extraPaths);
-            expandFieldArray(loader, "mFiles", extraFiles);
-            expandFieldArray(loader, "mZips", extraZips);
-            expandFieldArray(loader, "mDexs", extraDexs);
+            synchronized (CLASS_LOADER_LOCK) {
+                pathField.set(loader, pathField.get(loader) + path.toString());
+                expandFieldArray(loader, "mPaths", extraPaths);
+                expandFieldArray(loader, "mFiles", extraFiles);
+                expandFieldArray(loader, "mZips", extraZips);
+                expandFieldArray(loader, "mDexs", extraDexs);
+            }
         }
     }
 }
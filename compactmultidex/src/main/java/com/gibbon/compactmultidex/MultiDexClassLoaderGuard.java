@@ -0,0 +1,172 @@
+package com.gibbon.compactmultidex;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Parent of the application class loader while an installation started by
+ * {@link MultiDex#installAsync} runs. The class loader asks its parent first for every class: a
+ * class unknown to the original parent and to the dexes already in the class loader, the main dex,
+ * is in a secondary dex or does not exist, the guard waits for the installation before the class
+ * loader looks for it again in its dexes. Early uses of secondary dex classes then block instead of
+ * failing with a {@link NoClassDefFoundError}.
+ * <p>
+ * Such a class is looked up twice in the main dex, and the loading thread waits for the whole
+ * installation. It never runs the installation itself, see {@link MultiDexInstallation#waitFor()}.
+ * <p>
+ * The original parent is put back once the installation is over. The class loader hooks installed
+ * meanwhile go beneath the guard, see {@link #getParent} and {@link #setParent}.
+ *
+ * @author zhipeng.zhuo
+ * @date 2020-03-07
+ */
+final class MultiDexClassLoaderGuard extends ClassLoader {
+
+    private static final String TAG = MultiDex.TAG;
+
+    /* held while the parent of a class loader is replaced, by the guard or by a hook */
+    static final Object PARENT_LOCK = new Object();
+
+    private final ClassLoader loader;
+    /* the original parent, or the hook installed beneath the guard */
+    private volatile ClassLoader parent;
+    private final Method findClass;
+    private final MultiDexInstallation installation;
+
+    private MultiDexClassLoaderGuard(ClassLoader loader, ClassLoader parent, Method findClass,
+                                     MultiDexInstallation installation) {
+        super(parent);
+        this.loader = loader;
+        this.parent = parent;
+        this.findClass = findClass;
+        this.installation = installation;
+    }
+
+    /**
+     * Guard {@code loader} until {@code installation} is over. Nothing is guarded if the class loader
+     * fields are not found, the classes of the secondary dexes must then wait for
+     * {@link MultiDexInstallation#await()}.
+     */
+    static void install(ClassLoader loader, MultiDexInstallation installation) {
+        final Field parentField;
+        final MultiDexClassLoaderGuard guard;
+        try {
+            parentField = MultiDex.findField(loader, "parent");
+            Method findClass = MultiDex.findMethod(loader, "findClass", String.class);
+            synchronized (PARENT_LOCK) {
+                ClassLoader parent = (ClassLoader) parentField.get(loader);
+                if (parent == null) {
+                    Log.w(TAG, "Class loader without parent, secondary dex classes must wait for"
+                            + " the installation");
+                    return;
+                }
+                guard = new MultiDexClassLoaderGuard(loader, parent, findClass, installation);
+                parentField.set(loader, guard);
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to guard the class loader, secondary dex classes must wait for the"
+                    + " installation", e);
+            return;
+        }
+        installation.addCallback(new IInstallCallback() {
+            @Override
+            public void onInstalled() {
+                guard.uninstall(parentField);
+            }
+
+            @Override
+            public void onInstallFailed(RuntimeException e) {
+                guard.uninstall(parentField);
+            }
+        });
+    }
+
+    private void uninstall(Field parentField) {
+        try {
+            synchronized (PARENT_LOCK) {
+                // another library may have set its own parent meanwhile, then the guard stays in
+                // the chain and only delegates
+                if (parentField.get(loader) == this) {
+                    parentField.set(loader, parent);
+                }
+            }
+        } catch (IllegalAccessException e) {
+            Log.w(TAG, "Failed to remove the class loader guard", e);
+        }
+    }
+
+    /**
+     * @return the parent of {@code loader}, or the parent beneath its guard while an installation
+     * runs. Must be called with {@link #PARENT_LOCK} held.
+     */
+    static ClassLoader getParent(ClassLoader loader, Field parentField)
+            throws IllegalAccessException {
+        ClassLoader parent = (ClassLoader) parentField.get(loader);
+        if (parent instanceof MultiDexClassLoaderGuard) {
+            return ((MultiDexClassLoaderGuard) parent).parent;
+        }
+        return parent;
+    }
+
+    /**
+     * Replace the parent {@link #getParent} returned. Beneath a guard, the new parent becomes the
+     * parent of the class loader when the guard is removed. Must be called with
+     * {@link #PARENT_LOCK} held.
+     */
+    static void setParent(ClassLoader loader, Field parentField, ClassLoader parent)
+            throws IllegalAccessException {
+        ClassLoader current = (ClassLoader) parentField.get(loader);
+        if (current instanceof MultiDexClassLoaderGuard) {
+            ((MultiDexClassLoaderGuard) current).parent = parent;
+        } else {
+            parentField.set(loader, parent);
+        }
+    }
+
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        try {
+            return parent.loadClass(name);
+        } catch (ClassNotFoundException e) {
+            // not a class of the boot class path, nor of a hook beneath
+        }
+        if (installation.isDone() || MultiDexExecutor.isInstallThread()) {
+            throw new ClassNotFoundException(name);
+        }
+        Class<?> clazz = findLoadedDexClass(name);
+        if (clazz != null) {
+            return clazz;
+        }
+        long start = SystemClock.uptimeMillis();
+        installation.waitFor();
+        Log.i(TAG, "class " + name + " waited " + (SystemClock.uptimeMillis() - start)
+                + "ms for the installation");
+        // the class loader looks for it in its dexes, the secondary ones included now
+        throw new ClassNotFoundException(name);
+    }
+
+    /**
+     * @return the class {@code name} of the dexes already in the class loader, defined by it, or
+     * null if none of them has it.
+     */
+    private Class<?> findLoadedDexClass(String name) throws ClassNotFoundException {
+        try {
+            return (Class<?>) findClass.invoke(loader, name);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ClassNotFoundException) {
+                return null;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new ClassNotFoundException(name, cause);
+        } catch (IllegalAccessException e) {
+            throw new ClassNotFoundException(name, e);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.gibbon.compactmultidex;
+
+import android.os.Build;
+import android.util.Log;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads of extraction, crc verification and dexopt. They all go through one executor created
+ * the first time it is needed, or the one given by the application with
+ * {@link MultiDex#setExecutor}, so threads are created once and their number stays bounded when
+ * the phases overlap.
+ *
+ * @author zhipeng.zhuo
+ * @date 2020-03-07
+ */
+final class MultiDexExecutor {
+
+    private static final String TAG = MultiDex.TAG;
+
+    /**
+     * Most tasks of one phase run at the same time, the calling thread included.
+     */
+    static final int MAX_THREADS = MultiDex.CPU_COUNT == 1 ? MultiDex.CPU_COUNT * 2 + 1
+            : MultiDex.CPU_COUNT == 2 ? MultiDex.CPU_COUNT * 2 : MultiDex.CPU_COUNT + 1;
+
+    private static final int KEEP_ALIVE_SECONDS = 30;
+
+    private static volatile Executor appExecutor;
+    private static Executor executor;
+
+    private static final ThreadLocal<Boolean> installThread = new ThreadLocal<>();
+
+    private MultiDexExecutor() {}
+
+    static void setExecutor(Executor executor) {
+        appExecutor = executor;
+    }
+
+    /**
+     * Run {@code tasks[0]} on the calling thread and the others on the executor. Returns once every
+     * task is done: the tasks no worker has started yet by then are run by the calling thread, so
+     * waiting never depends on a free worker, even for tasks submitted from a worker. The tasks
+     * still running on a worker are waited for, an interrupt does not stop the wait and is kept
+     * for the caller, whose {@link FutureTask#get()} then returns at once.
+     */
+    static void runAll(FutureTask<?>[] tasks) {
+        Executor executor = getExecutor();
+        for (int i = 1; i < tasks.length; i++) {
+            try {
+                executor.execute(onInstallThread(tasks[i]));
+            } catch (RejectedExecutionException e) {
+                Log.w(TAG, "Task " + i + " rejected, running it on the calling thread");
+            }
+        }
+        // run() does nothing on a task already started
+        for (FutureTask<?> task : tasks) {
+            task.run();
+        }
+        boolean interrupted = false;
+        for (FutureTask<?> task : tasks) {
+            while (true) {
+                try {
+                    task.get();
+                    break;
+                } catch (InterruptedException e) {
+                    // the task may still use what the caller releases once this returns
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    // reported by the caller
+                    break;
+                } catch (CancellationException e) {
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Start {@code task} on the executor without waiting for it. The caller must run it later with
+     * {@link FutureTask#run()} before waiting, in case it was rejected or no worker got to it.
+     */
+    static void execute(FutureTask<?> task) {
+        try {
+            getExecutor().execute(onInstallThread(task));
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Task rejected, it will run on the waiting thread");
+        }
+    }
+
+    /**
+     * @return true on a thread running the installation or one of its tasks. Such a thread must
+     * never wait for the installation to complete.
+     */
+    static boolean isInstallThread() {
+        return installThread.get() != null;
+    }
+
+    /**
+     * Call {@code callable} with the current thread marked as an installation thread.
+     */
+    static <V> V callOnInstallThread(Callable<V> callable) throws Exception {
+        if (installThread.get() != null) {
+            return callable.call();
+        }
+        installThread.set(Boolean.TRUE);
+        try {
+            return callable.call();
+        } finally {
+            installThread.remove();
+        }
+    }
+
+    private static Runnable onInstallThread(final Runnable task) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                if (installThread.get() != null) {
+                    task.run();
+                    return;
+                }
+                installThread.set(Boolean.TRUE);
+                try {
+                    task.run();
+                } finally {
+                    installThread.remove();
+                }
+            }
+        };
+    }
+
+    private static Executor getExecutor() {
+        Executor executor = appExecutor;
+        if (executor != null) {
+            return executor;
+        }
+        synchronized (MultiDexExecutor.class) {
+            if (MultiDexExecutor.executor == null) {
+                // the calling thread runs one task of each phase
+                int workers = Math.max(1, MAX_THREADS - 1);
+                ThreadPoolExecutor pool = new ThreadPoolExecutor(workers, workers,
+                        KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                        new NamedThreadFactory());
+                if (Build.VERSION.SDK_INT >= 9 /* Build.VERSION_CODES.GINGERBREAD */) {
+                    // the threads are only needed while installing
+                    pool.allowCoreThreadTimeOut(true);
+                }
+                MultiDexExecutor.executor = pool;
+            }
+            return MultiDexExecutor.executor;
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, "CompactMultiDex #" + count.getAndIncrement());
+        }
+    }
+}
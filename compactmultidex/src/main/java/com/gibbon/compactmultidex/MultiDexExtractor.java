@@ -24,12 +24,22 @@ public class MultiDexExtractor {
      */
     public static List<? extends File> load(Context context, ApplicationInfo applicationInfo, File dexDir, boolean forceReload)
             throws IOException {
-        IHookMultiDexExtractor extractor;
+        return load(context, applicationInfo, dexDir, forceReload, null);
+    }
+
+    /**
+     * Same as {@link #load(Context, ApplicationInfo, File, boolean)}, {@code listener} receives each
+     * dex as soon as it is extracted when extraction is needed.
+     */
+    public static List<? extends File> load(Context context, ApplicationInfo applicationInfo, File dexDir, boolean forceReload,
+                                            IExtractedDexListener listener) throws IOException {
+        DexElementsExtractor extractor;
         if ((MultiDex.DEFAULT_FLAG & MultiDex.FLAG_EXTRACT_CONCURRENT) != 0) {
             extractor = new ConcurrentMultiDexExtractor();
         } else {
             extractor = new SerialMultiDexExtractor();
         }
+        extractor.setExtractedDexListener(listener);
         return extractor.load(context, applicationInfo, dexDir, forceReload);
     }
 }
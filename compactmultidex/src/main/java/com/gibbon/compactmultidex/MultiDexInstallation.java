@@ -0,0 +1,212 @@
+package com.gibbon.compactmultidex;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * The installation of one apk, run once whatever the number of {@link MultiDex#install} and
+ * {@link MultiDex#installAsync} calls for it. Returned by {@link MultiDex#installAsync}: the
+ * application goes on with the code of the main dex and passes the barrier {@link #await()} before
+ * using classes of the secondary dexes, or is told by an {@link IInstallCallback}.
+ *
+ * @author zhipeng.zhuo
+ * @date 2020-03-07
+ */
+public final class MultiDexInstallation {
+
+    private static final String TAG = MultiDex.TAG;
+
+    private final String apkPath;
+    private final FutureTask<Void> task;
+    private final List<IInstallCallback> callbacks = new ArrayList<>();
+    private boolean notified;
+    private volatile Thread installingThread;
+
+    MultiDexInstallation(String apkPath, final Callable<Void> install) {
+        this.apkPath = apkPath;
+        this.task = new FutureTask<Void>(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                installingThread = Thread.currentThread();
+                try {
+                    return MultiDexExecutor.callOnInstallThread(install);
+                } catch (Exception e) {
+                    Log.e(TAG, "MultiDex installation failure", e);
+                    throw e;
+                }
+            }
+        }) {
+            @Override
+            protected void done() {
+                notifyCallbacks();
+            }
+        };
+    }
+
+    /**
+     * @return an installation with nothing to install, already done.
+     */
+    static MultiDexInstallation completed(String apkPath) {
+        MultiDexInstallation installation = new MultiDexInstallation(apkPath, new Callable<Void>() {
+            @Override
+            public Void call() {
+                return null;
+            }
+        });
+        installation.task.run();
+        return installation;
+    }
+
+    /**
+     * Start the installation on the library threads, it runs on the first thread to wait for it if
+     * no thread is free before.
+     */
+    void start() {
+        MultiDexExecutor.execute(task);
+    }
+
+    /**
+     * Run the installation on the calling thread unless it is started already.
+     *
+     * @return true if it ran on the calling thread, false if another thread ran it or runs it.
+     */
+    boolean run() {
+        if (task.isDone()) {
+            return false;
+        }
+        task.run();
+        return installingThread == Thread.currentThread();
+    }
+
+    /**
+     * Wait for the installation, running it on the calling thread if no thread started it yet.
+     * Not interrupted: the installation may not be left half visible to this thread.
+     *
+     * @return the exception the installation failed with, null on success.
+     */
+    Throwable join() {
+        long start = SystemClock.uptimeMillis();
+        boolean done = task.isDone();
+        task.run();
+        Throwable failure = waitForTask();
+        if (!done && installingThread != Thread.currentThread()) {
+            Log.i(TAG, "waited " + (SystemClock.uptimeMillis() - start)
+                    + "ms for the installation of " + apkPath + " by another thread");
+        }
+        return failure;
+    }
+
+    /**
+     * Wait for the installation without ever running it on the calling thread, for a thread that
+     * only needs it to go on, such as the main thread loading a class of a secondary dex. When no
+     * thread started it yet, a new thread runs it rather than waiting for a free worker. Not
+     * interrupted, like {@link #join()}.
+     *
+     * @return the exception the installation failed with, null on success.
+     */
+    Throwable waitFor() {
+        if (installingThread == null && !task.isDone()) {
+            // a worker may start it meanwhile, run() then does nothing on the new thread
+            new Thread(task, "CompactMultiDex install").start();
+        }
+        return waitForTask();
+    }
+
+    private Throwable waitForTask() {
+        Throwable failure;
+        boolean interrupted = false;
+        while (true) {
+            try {
+                task.get();
+                failure = null;
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            } catch (ExecutionException e) {
+                failure = e.getCause();
+                break;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return failure;
+    }
+
+    /**
+     * @return true once the installation is over, successful or not.
+     */
+    public boolean isDone() {
+        return task.isDone();
+    }
+
+    /**
+     * Block until the secondary dexes are added to the class loader. Classes of the secondary dexes
+     * must not be used before. Returns at once when the installation is done.
+     *
+     * @throws RuntimeException if the installation failed.
+     */
+    public void await() {
+        long start = SystemClock.uptimeMillis();
+        Throwable failure = join();
+        Log.i(TAG, "install barrier passed, blocked " + (SystemClock.uptimeMillis() - start) + "ms");
+        if (failure != null) {
+            throw newFailure(failure);
+        }
+    }
+
+    /**
+     * Register {@code callback} to be called once the installation is over. Called at once on the
+     * calling thread if it is over already.
+     */
+    public void addCallback(IInstallCallback callback) {
+        synchronized (callbacks) {
+            if (!notified) {
+                callbacks.add(callback);
+                return;
+            }
+        }
+        notifyCallback(callback);
+    }
+
+    private void notifyCallbacks() {
+        List<IInstallCallback> pending;
+        synchronized (callbacks) {
+            notified = true;
+            pending = new ArrayList<>(callbacks);
+            callbacks.clear();
+        }
+        for (IInstallCallback callback : pending) {
+            notifyCallback(callback);
+        }
+    }
+
+    private void notifyCallback(IInstallCallback callback) {
+        Throwable failure;
+        try {
+            task.get();
+            failure = null;
+        } catch (ExecutionException e) {
+            failure = e.getCause();
+        } catch (InterruptedException e) {
+            // not waiting, the task is done
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (failure == null) {
+            callback.onInstalled();
+        } else {
+            callback.onInstallFailed(newFailure(failure));
+        }
+    }
+
+    private static RuntimeException newFailure(Throwable failure) {
+        return new RuntimeException("MultiDex installation failed (" + failure.getMessage() + ").");
+    }
+}
@@ -0,0 +1,391 @@
+package com.gibbon.compactmultidex;
+
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Binary replacement of the {@link IHookMultiDexExtractor#PREFS_FILE} preferences, see
+ * {@link MultiDex#FLAG_BINARY_MANIFEST}. It holds the same keys, the apk time stamp and crc, the
+ * dex count and the crc and modification time of each dex, in one small file of the dex directory
+ * read with a single mapped read and rewritten to a temp file renamed over it on each commit,
+ * instead of an xml file parsed on every process start and rewritten by a synchronous commit.
+ * <p>
+ * Only accessed while owning the lock on {@link IHookMultiDexExtractor#LOCK_FILENAME}, several
+ * threads of one load may use it at the same time. Listeners are not notified.
+ *
+ * @author zhipeng.zhuo
+ * @date 2020-03-07
+ */
+final class MultiDexManifest implements SharedPreferences {
+
+    private static final String TAG = MultiDex.TAG;
+
+    private static final int MANIFEST_MAGIC = 0x4D44584D; // "MDXM"
+    private static final int MANIFEST_VERSION = 1;
+
+    private static final byte TYPE_LONG = 1;
+    private static final byte TYPE_INT = 2;
+    private static final byte TYPE_STRING = 3;
+    private static final byte TYPE_BOOLEAN = 4;
+    private static final byte TYPE_FLOAT = 5;
+    private static final byte TYPE_STRING_SET = 6;
+
+    private final File file;
+    private final Map<String, Object> values;
+
+    private MultiDexManifest(File file, Map<String, Object> values) {
+        this.file = file;
+        this.values = values;
+    }
+
+    /**
+     * @return the manifest of {@code file}, or null if it does not exist or is not readable by this
+     * version, the caller then migrates the preferences with {@link #migrate}.
+     */
+    static MultiDexManifest read(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        long start = SystemClock.uptimeMillis();
+        try {
+            Map<String, Object> values = parse(readMapped(file));
+            if (values == null) {
+                return null;
+            }
+            Log.i(TAG, "manifest read, need " + (SystemClock.uptimeMillis() - start) + "ms");
+            return new MultiDexManifest(file, values);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read manifest " + file.getPath(), e);
+            return null;
+        }
+    }
+
+    /**
+     * @return a manifest holding the values of {@code legacy}, written to {@code file}.
+     */
+    static MultiDexManifest migrate(File file, SharedPreferences legacy) {
+        long start = SystemClock.uptimeMillis();
+        Map<String, Object> values = new HashMap<>();
+        for (Map.Entry<String, ?> entry : legacy.getAll().entrySet()) {
+            Object value = entry.getValue();
+            if (value instanceof Set) {
+                // not shared with the legacy preferences
+                values.put(entry.getKey(), copyStringSet((Set<?>) value));
+            } else if (value != null) {
+                values.put(entry.getKey(), value);
+            }
+        }
+        MultiDexManifest manifest = new MultiDexManifest(file, values);
+        manifest.write();
+        Log.i(TAG, "manifest migrated from " + values.size() + " preferences, need "
+                + (SystemClock.uptimeMillis() - start) + "ms");
+        return manifest;
+    }
+
+    private static byte[] readMapped(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            return bytes;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return the values, or null if the magic, the version or the checksum do not match.
+     */
+    private static Map<String, Object> parse(byte[] bytes) throws IOException {
+        // magic, version, count and the trailing crc
+        if (bytes.length < 20) {
+            return null;
+        }
+        int length = bytes.length - 8;
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, length);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (in.readInt() != MANIFEST_MAGIC || in.readInt() != MANIFEST_VERSION) {
+            return null;
+        }
+        int count = in.readInt();
+        Map<String, Object> values = new HashMap<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            byte type = in.readByte();
+            String key = in.readUTF();
+            switch (type) {
+                case TYPE_LONG:
+                    values.put(key, in.readLong());
+                    break;
+                case TYPE_INT:
+                    values.put(key, in.readInt());
+                    break;
+                case TYPE_STRING:
+                    values.put(key, in.readUTF());
+                    break;
+                case TYPE_BOOLEAN:
+                    values.put(key, in.readBoolean());
+                    break;
+                case TYPE_FLOAT:
+                    values.put(key, in.readFloat());
+                    break;
+                case TYPE_STRING_SET:
+                    int size = in.readInt();
+                    Set<String> set = new HashSet<String>(size * 2);
+                    for (int j = 0; j < size; j++) {
+                        set.add(in.readUTF());
+                    }
+                    values.put(key, set);
+                    break;
+                default:
+                    return null;
+            }
+        }
+        if (bytes.length - in.available() != length || in.readLong() != crc.getValue()) {
+            return null;
+        }
+        return values;
+    }
+
+    private synchronized boolean write() {
+        long start = SystemClock.uptimeMillis();
+        File tmp = null;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MANIFEST_MAGIC);
+            out.writeInt(MANIFEST_VERSION);
+            out.writeInt(values.size());
+            for (Map.Entry<String, Object> entry : values.entrySet()) {
+                Object value = entry.getValue();
+                if (value instanceof Long) {
+                    out.writeByte(TYPE_LONG);
+                    out.writeUTF(entry.getKey());
+                    out.writeLong((Long) value);
+                } else if (value instanceof Integer) {
+                    out.writeByte(TYPE_INT);
+                    out.writeUTF(entry.getKey());
+                    out.writeInt((Integer) value);
+                } else if (value instanceof String) {
+                    out.writeByte(TYPE_STRING);
+                    out.writeUTF(entry.getKey());
+                    out.writeUTF((String) value);
+                } else if (value instanceof Boolean) {
+                    out.writeByte(TYPE_BOOLEAN);
+                    out.writeUTF(entry.getKey());
+                    out.writeBoolean((Boolean) value);
+                } else if (value instanceof Float) {
+                    out.writeByte(TYPE_FLOAT);
+                    out.writeUTF(entry.getKey());
+                    out.writeFloat((Float) value);
+                } else {
+                    Set<?> set = (Set<?>) value;
+                    out.writeByte(TYPE_STRING_SET);
+                    out.writeUTF(entry.getKey());
+                    out.writeInt(set.size());
+                    for (Object string : set) {
+                        out.writeUTF((String) string);
+                    }
+                }
+            }
+            CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray());
+            out.writeLong(crc.getValue());
+
+            // Temp files must not start with the extracted file prefix to get cleaned up in
+            // prepareDexDir()
+            tmp = File.createTempFile("tmp-" + file.getName(), "", file.getParentFile());
+            FileOutputStream fileOut = new FileOutputStream(tmp);
+            try {
+                bytes.writeTo(fileOut);
+                // the rename must not be visible before the content
+                fileOut.getFD().sync();
+            } finally {
+                fileOut.close();
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Failed to rename \"" + tmp.getAbsolutePath() + "\" to \""
+                        + file.getAbsolutePath() + "\"");
+            }
+            Log.i(TAG, "manifest written, need " + (SystemClock.uptimeMillis() - start) + "ms");
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write manifest " + file.getPath(), e);
+            return false;
+        } finally {
+            if (tmp != null) {
+                tmp.delete(); // return status ignored
+            }
+        }
+    }
+
+    private synchronized Object get(String key) {
+        return values.get(key);
+    }
+
+    @Override
+    public synchronized Map<String, ?> getAll() {
+        return new HashMap<>(values);
+    }
+
+    @Override
+    public String getString(String key, String defValue) {
+        Object value = get(key);
+        return value != null ? (String) value : defValue;
+    }
+
+    @Override
+    public Set<String> getStringSet(String key, Set<String> defValues) {
+        Object value = get(key);
+        return value != null ? copyStringSet((Set<?>) value) : defValues;
+    }
+
+    /**
+     * @return a copy of {@code set}, checking each element is a string.
+     */
+    private static Set<String> copyStringSet(Set<?> set) {
+        Set<String> copy = new HashSet<String>(set.size() * 2);
+        for (Object string : set) {
+            copy.add((String) string);
+        }
+        return copy;
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        Object value = get(key);
+        return value != null ? (Integer) value : defValue;
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        Object value = get(key);
+        return value != null ? (Long) value : defValue;
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        Object value = get(key);
+        return value != null ? (Float) value : defValue;
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        Object value = get(key);
+        return value != null ? (Boolean) value : defValue;
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public Editor edit() {
+        return new ManifestEditor();
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+    }
+
+    private class ManifestEditor implements Editor {
+        private final Map<String, Object> modified = new HashMap<>();
+        private final Set<String> removed = new HashSet<>();
+        private boolean clear;
+
+        private Editor put(String key, Object value) {
+            if (value == null) {
+                return remove(key);
+            }
+            removed.remove(key);
+            modified.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putString(String key, String value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putStringSet(String key, Set<String> values) {
+            return put(key, values == null ? null : new HashSet<String>(values));
+        }
+
+        @Override
+        public Editor putInt(String key, int value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putLong(String key, long value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putFloat(String key, float value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putBoolean(String key, boolean value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor remove(String key) {
+            modified.remove(key);
+            removed.add(key);
+            return this;
+        }
+
+        @Override
+        public Editor clear() {
+            clear = true;
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            synchronized (MultiDexManifest.this) {
+                if (clear) {
+                    values.clear();
+                }
+                for (String key : removed) {
+                    values.remove(key);
+                }
+                values.putAll(modified);
+                return write();
+            }
+        }
+
+        @Override
+        public void apply() {
+            commit();
+        }
+    }
+}
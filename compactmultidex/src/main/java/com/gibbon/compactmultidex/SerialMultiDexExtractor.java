@@ -7,8 +7,6 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
 /**
  * @author zhipeng.zhuo
@@ -26,20 +24,15 @@ public class SerialMultiDexExtractor extends DexElementsExtractor {
         // contains a secondary dex file in there is not consistent with the latest apk.  Otherwise,
         // multi-process race conditions can cause a crash loop where one process deletes the zip
         // while another had created it.
-        prepareDexDir(dexDir, extractedFilePrefix);
-        if((MultiDex.DEFAULT_FLAG & MultiDex.FLAG_EXTRACT_RAW_DEX_NOT_ZIP) != 0){
-            prepareDexDir(MultiDex.getOptDexDir(dexDir), extractedFilePrefix);
-        }
+        prepareDexDirs(dexDir, extractedFilePrefix);
 
         List<ExtractedDex> files = new ArrayList<ExtractedDex>();
 
-        final ZipFile apk = new ZipFile(sourceApk);
+        final ApkReader apk = new ApkReader(sourceApk);
         try {
 
             int secondaryNumber = 2;
-
-            ZipEntry dexFile = apk.getEntry(DEX_PREFIX + secondaryNumber + DEX_SUFFIX);
-            while (dexFile != null) {
+            for (ZipUtil.DexEntry dexFile : getApkDexIndex(sourceApk, dexDir).getSecondaryDexEntries()) {
                 long start2 = SystemClock.uptimeMillis();
                 String suffix;
                 if((MultiDex.DEFAULT_FLAG & MultiDex.FLAG_EXTRACT_RAW_DEX_NOT_ZIP) != 0){
@@ -50,6 +43,11 @@ public class SerialMultiDexExtractor extends DexElementsExtractor {
                 String fileName = extractedFilePrefix + secondaryNumber + suffix;
                 ExtractedDex extractedFile = new ExtractedDex(dexDir, fileName);
                 files.add(extractedFile);
+                if (reuseExtracted(secondaryNumber, extractedFile, MultiDex.CPU_COUNT)) {
+                    onExtracted(secondaryNumber, extractedFile);
+                    secondaryNumber++;
+                    continue;
+                }
 
                 Log.i(TAG, "Extraction is needed for file " + extractedFile);
                 int numAttempts = 0;
@@ -58,32 +56,15 @@ public class SerialMultiDexExtractor extends DexElementsExtractor {
                     numAttempts++;
 
                     // Create a zip file (extractedFile) containing only the secondary dex file
-                    // (dexFile) from the apk.
-                    extract(apk, dexFile, extractedFile, extractedFilePrefix);
-
-                    // Read zip crc of extracted dex
+                    // (dexFile) from the apk, its crc is computed on the way.
                     try {
                         long start3 = SystemClock.uptimeMillis();
-                        if((MultiDex.DEFAULT_FLAG & MultiDex.FLAG_EXTRACT_RAW_DEX_NOT_ZIP) != 0){
-                            if((MultiDex.DEFAULT_FLAG & MultiDex.FLAG_NOT_DEX_CRC)  != 0){
-                                Log.i(TAG, suffix.substring(1)  + " \"" + extractedFile.getAbsolutePath() + "\" crc verify disabled");
-                            }else {
-                                Log.i(TAG, suffix.substring(1)  + " \"" + extractedFile.getAbsolutePath() + "\" crc verify enabled");
-                                extractedFile.crc = getDexCrc(extractedFile);
-                            }
-                        }else {
-                            if((MultiDex.DEFAULT_FLAG & MultiDex.FLAG_NOT_DEX_CRC)  != 0){
-                                Log.i(TAG, suffix.substring(1)  + " \"" + extractedFile.getAbsolutePath() + "\" crc verify disabled");
-                            }else {
-                                Log.i(TAG, suffix.substring(1)  + " \"" + extractedFile.getAbsolutePath() + "\" crc verify enabled");
-                                extractedFile.crc = getZipCrc(extractedFile);
-                            }
-                        }
+                        extract(apk, dexFile, extractedFile, extractedFilePrefix);
                         isExtractionSuccessful = true;
-                        Log.i(TAG, "\"" + extractedFile.getAbsolutePath() + "\" , getCrc need " +  (SystemClock.uptimeMillis() - start3) + "ms");
+                        Log.i(TAG, "\"" + extractedFile.getAbsolutePath() + "\" , extract with crc need " +  (SystemClock.uptimeMillis() - start3) + "ms");
                     } catch (IOException e) {
                         isExtractionSuccessful = false;
-                        Log.w(TAG, "Failed to read crc from " + extractedFile.getAbsolutePath(), e);
+                        Log.w(TAG, "Failed to extract " + extractedFile.getAbsolutePath(), e);
                     }
                     Log.i(TAG, "extractDex apk Entry(classes" + secondaryNumber+ ".dex) to \"" + extractedFile.getAbsolutePath() + "\" need " + (SystemClock.uptimeMillis() - start2) + "ms");
                     // Log size and crc of the extracted zip file
@@ -104,15 +85,11 @@ public class SerialMultiDexExtractor extends DexElementsExtractor {
                             extractedFile.getAbsolutePath() + " for secondary dex (" +
                             secondaryNumber + ")");
                 }
+                onExtracted(secondaryNumber, extractedFile);
                 secondaryNumber++;
-                dexFile = apk.getEntry(DEX_PREFIX + secondaryNumber + DEX_SUFFIX);
             }
         } finally {
-            try {
-                apk.close();
-            } catch (IOException e) {
-                Log.w(TAG, "Failed to close resource", e);
-            }
+            closeQuietly(apk);
         }
         Log.i(TAG, "extract apk " + sourceApk.getAbsolutePath() + " need " + (SystemClock.uptimeMillis() - start) + "ms");
         return files;
@@ -21,10 +21,29 @@ package com.gibbon.compactmultidex;
  * ZipConstants from android libcore.
  */
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 import java.util.zip.ZipException;
 
 /**
@@ -38,21 +57,93 @@ final class ZipUtil {
         long size;
     }
 
+    /**
+     * Central directory record of a {@code classesN.dex} entry.
+     */
+    static class DexEntry {
+        String name;
+        int method;
+        long time;
+        long crc;
+        long compressedSize;
+        long size;
+        long localHeaderOffset;
+    }
+
     /* redefine those constant here because of bug 13721174 preventing to compile using the
      * constants defined in ZipFile */
     private static final int ENDHDR = 22;
     private static final int ENDSIG = 0x6054b50;
+    /* ".ZIP file comment"'s max length */
+    private static final int MAX_COMMENT_LENGTH = 0xFFFF;
+    private static final int ZIP64_LOCHDR = 20;
+    private static final int ZIP64_LOCSIG = 0x7064b50;
+    private static final int ZIP64_ENDHDR = 56;
+    private static final int ZIP64_ENDSIG = 0x6064b50;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final long ZIP64_MAGICVAL = 0xFFFFFFFFL;
+    private static final int CENHDR = 46;
+    private static final int CENSIG = 0x2014b50;
+    private static final int LOCHDR = 30;
+    private static final int LOCSIG = 0x4034b50;
+
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+
+    private static final byte[] DEX_PREFIX = {'c', 'l', 'a', 's', 's', 'e', 's'};
+    private static final byte[] DEX_SUFFIX = {'.', 'd', 'e', 'x'};
 
     /**
      * Size of reading buffers.
      */
     private static final int BUFFER_SIZE = 0x4000;
 
+    /**
+     * Ranges smaller than this are read, mapping them costs more than it saves.
+     */
+    private static final long MIN_MAP_SIZE = 0x200000;
+
+    /**
+     * Ranges are mapped by windows of this size to bound the address space in use, which matters
+     * on 32 bits devices.
+     */
+    private static final long MAP_WINDOW_SIZE = 0x800000;
+
+    /**
+     * Smallest chunk worth a thread of its own when checksumming a file in parallel.
+     */
+    private static final long MIN_CHUNK_SIZE = 0x200000;
+
+    /* dimension of GF(2) vectors (length of CRC) */
+    private static final int GF2_DIM = 32;
+
+    /**
+     * Reading buffers are reused by each thread instead of being allocated for every checksum.
+     */
+    private static final ThreadLocal<byte[]> BUFFERS = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+    /**
+     * {@code CRC32.update(ByteBuffer)}, only available from API 26 so looked up by reflection.
+     */
+    private static final Method CRC_UPDATE_BYTE_BUFFER = findMethod(CRC32.class, "update",
+            ByteBuffer.class);
+
+    /**
+     * {@code java.nio.NioUtils.freeDirectBuffer(ByteBuffer)} of android libcore, unmaps a window as
+     * soon as it has been checksummed instead of waiting for the GC.
+     */
+    private static final Method FREE_DIRECT_BUFFER = findMethod(
+            findClass("java.nio.NioUtils"), "freeDirectBuffer", ByteBuffer.class);
+
     /**
      * Compute crc32 of the central directory of an apk. The central directory contains
      * the crc32 of each entries in the zip so the computed result is considered valid for the whole
-     * zip file. Does not support zip64 nor multidisk but it should be OK for now since ZipFile does
-     * not either.
+     * zip file. Supports zip64 but not multidisk, which should be OK since apks are never split.
      */
     static long getZipCrc(File apk) throws IOException {
         RandomAccessFile raf = new RandomAccessFile(apk, "r");
@@ -77,54 +168,324 @@ final class ZipUtil {
         }
     }
 
+    /**
+     * Same value as {@link #getDexCrc(File)}, computed by splitting the file into up to
+     * {@code parallelism} chunks checksummed on {@link MultiDexExecutor} threads, the calling
+     * thread taking the first one. Chunk crcs are merged with {@link #crc32Combine}.
+     */
+    static long getDexCrc(File dex, int parallelism) throws IOException {
+        long length = dex.length();
+        int chunkCount = (int) Math.min(parallelism, length / MIN_CHUNK_SIZE);
+        if (chunkCount <= 1) {
+            return getDexCrc(dex);
+        }
+        long chunkSize = length / chunkCount;
+        long[] sizes = new long[chunkCount];
+        FutureTask<Long>[] tasks = new FutureTask[chunkCount];
+        for (int i = 0; i < chunkCount; i++) {
+            long offset = i * chunkSize;
+            sizes[i] = i == chunkCount - 1 ? length - offset : chunkSize;
+            tasks[i] = new FutureTask<Long>(new RangeCrcCallable(dex, offset, sizes[i]));
+        }
+        MultiDexExecutor.runAll(tasks);
+
+        long crc = getChunkCrc(tasks[0]);
+        for (int i = 1; i < chunkCount; i++) {
+            crc = crc32Combine(crc, getChunkCrc(tasks[i]), sizes[i]);
+        }
+        return crc;
+    }
+
+    private static long getChunkCrc(FutureTask<Long> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while computing crc");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Failed to compute crc: " + cause);
+        }
+    }
+
+    private static class RangeCrcCallable implements Callable<Long> {
+        private final File file;
+        private final long offset;
+        private final long size;
+
+        RangeCrcCallable(File file, long offset, long size) {
+            this.file = file;
+            this.offset = offset;
+            this.size = size;
+        }
+
+        @Override
+        public Long call() throws IOException {
+            // each chunk has its own file so that reads do not share a position
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                CentralDirectory range = new CentralDirectory();
+                range.offset = offset;
+                range.size = size;
+                return computeCrcOfCentralDir(raf, range);
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+    /**
+     * Given crc1 of a first block and crc2 of a second block of length len2, returns the crc of
+     * the two blocks concatenated. Port of zlib's crc32_combine, working on the GF(2) matrix of
+     * the crc-32 polynomial.
+     */
+    static long crc32Combine(long crc1, long crc2, long len2) {
+        if (len2 <= 0) {
+            return crc1;
+        }
+        long[] even = new long[GF2_DIM]; // even-power-of-two zeros operator
+        long[] odd = new long[GF2_DIM]; // odd-power-of-two zeros operator
+
+        // put operator for one zero bit in odd
+        odd[0] = 0xEDB88320L; // CRC-32 polynomial
+        long row = 1;
+        for (int n = 1; n < GF2_DIM; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        // put operator for two zero bits in even, then four zero bits in odd
+        gf2MatrixSquare(even, odd);
+        gf2MatrixSquare(odd, even);
+
+        // apply len2 zeros to crc1 (first square will put the operator for one zero byte, eight
+        // zero bits, in even)
+        do {
+            gf2MatrixSquare(even, odd);
+            if ((len2 & 1) != 0) {
+                crc1 = gf2MatrixTimes(even, crc1);
+            }
+            len2 >>= 1;
+            if (len2 == 0) {
+                break;
+            }
+            gf2MatrixSquare(odd, even);
+            if ((len2 & 1) != 0) {
+                crc1 = gf2MatrixTimes(odd, crc1);
+            }
+            len2 >>= 1;
+        } while (len2 != 0);
+        return crc1 ^ crc2;
+    }
+
+    private static long gf2MatrixTimes(long[] mat, long vec) {
+        long sum = 0;
+        int i = 0;
+        while (vec != 0) {
+            if ((vec & 1) != 0) {
+                sum ^= mat[i];
+            }
+            vec >>>= 1;
+            i++;
+        }
+        return sum;
+    }
+
+    private static void gf2MatrixSquare(long[] square, long[] mat) {
+        for (int n = 0; n < GF2_DIM; n++) {
+            square[n] = gf2MatrixTimes(mat, mat[n]);
+        }
+    }
+
     /* Package visible for testing */
     static CentralDirectory findCentralDirectory(RandomAccessFile raf) throws IOException,
             ZipException {
-        long scanOffset = raf.length() - ENDHDR;
+        long length = raf.length();
+        long scanOffset = length - ENDHDR;
         if (scanOffset < 0) {
-            throw new ZipException("File too short to be a zip file: " + raf.length());
+            throw new ZipException("File too short to be a zip file: " + length);
         }
 
-        long stopOffset = scanOffset - 0x10000 /* ".ZIP file comment"'s max length */;
-        if (stopOffset < 0) {
-            stopOffset = 0;
+        // Most zips have no comment: try the last ENDHDR bytes first to keep the common case to a
+        // single small read. Reads go to the reusable buffer of the thread.
+        // A signature is only taken when its comment length ends the record at the end of the
+        // file, the comment itself may contain the signature. When none does, as with bytes
+        // appended after the archive, the signature closest to the end is used.
+        byte[] buffer = BUFFERS.get();
+        long fallbackOffset = -1;
+        raf.seek(scanOffset);
+        raf.readFully(buffer, 0, ENDHDR);
+        if (readInt(buffer, 0) == ENDSIG) {
+            if (readShort(buffer, 20) == 0) {
+                return readCentralDirectory(raf, buffer, 0, scanOffset);
+            }
+            fallbackOffset = scanOffset;
         }
 
-        int endSig = Integer.reverseBytes(ENDSIG);
-        while (true) {
-            raf.seek(scanOffset);
-            if (raf.readInt() == endSig) {
-                break;
+        // A short comment is in the last BUFFER_SIZE bytes, read in one go.
+        long tailOffset = Math.max(0, length - buffer.length);
+        int tailLength = (int) (length - tailOffset);
+        raf.seek(tailOffset);
+        raf.readFully(buffer, 0, tailLength);
+        for (int i = tailLength - ENDHDR; i >= 0; i--) {
+            if (readInt(buffer, i) == ENDSIG) {
+                if (tailOffset + i + ENDHDR + readShort(buffer, i + 20) == length) {
+                    return readCentralDirectory(raf, buffer, i, tailOffset + i);
+                }
+                if (fallbackOffset < 0) {
+                    fallbackOffset = tailOffset + i;
+                }
             }
+        }
+        if (tailOffset == 0 || tailLength - ENDHDR >= MAX_COMMENT_LENGTH) {
+            return readCentralDirectory(raf, fallbackOffset);
+        }
 
-            scanOffset--;
-            if (scanOffset < stopOffset) {
-                throw new ZipException("End Of Central Directory signature not found");
+        // Otherwise read the rest of the area the End Of Central Directory can be in at once and
+        // scan it in memory rather than seeking and reading at each candidate offset.
+        long stopOffset = scanOffset - MAX_COMMENT_LENGTH;
+        if (stopOffset < 0) {
+            stopOffset = 0;
+        }
+        // the scanned tail overlaps by ENDHDR - 1 bytes so a signature across its start is found
+        buffer = new byte[(int) (tailOffset + ENDHDR - 1 - stopOffset)];
+        raf.seek(stopOffset);
+        raf.readFully(buffer);
+        for (int i = buffer.length - ENDHDR; i >= 0; i--) {
+            if (readInt(buffer, i) == ENDSIG) {
+                if (stopOffset + i + ENDHDR + readShort(buffer, i + 20) == length) {
+                    return readCentralDirectory(raf, buffer, i, stopOffset + i);
+                }
+                if (fallbackOffset < 0) {
+                    fallbackOffset = stopOffset + i;
+                }
             }
         }
-        // Read the End Of Central Directory. ENDHDR includes the signature
-        // bytes,
-        // which we've already read.
+        return readCentralDirectory(raf, fallbackOffset);
+    }
+
+    /**
+     * Read the End Of Central Directory at {@code endOffset}, -1 when no signature was found.
+     */
+    private static CentralDirectory readCentralDirectory(RandomAccessFile raf, long endOffset)
+            throws IOException {
+        if (endOffset < 0) {
+            throw new ZipException("End Of Central Directory signature not found");
+        }
+        byte[] end = new byte[ENDHDR];
+        raf.seek(endOffset);
+        raf.readFully(end);
+        return readCentralDirectory(raf, end, 0, endOffset);
+    }
 
-        // Pull out the information we need.
-        raf.skipBytes(2); // diskNumber
-        raf.skipBytes(2); // diskWithCentralDir
-        raf.skipBytes(2); // numEntries
-        raf.skipBytes(2); // totalNumEntries
+    /**
+     * Pull out the information we need from the End Of Central Directory found at
+     * {@code buffer[offset]}, ENDHDR includes the signature bytes. When the size or the offset
+     * overflows 32 bits the real values are in the zip64 End Of Central Directory record.
+     *
+     * @param endOffset the position of the End Of Central Directory in the file
+     */
+    private static CentralDirectory readCentralDirectory(RandomAccessFile raf, byte[] buffer,
+                                                         int offset, long endOffset)
+            throws IOException {
+        // skip diskNumber, diskWithCentralDir, numEntries and totalNumEntries
         CentralDirectory dir = new CentralDirectory();
-        dir.size = Integer.reverseBytes(raf.readInt()) & 0xFFFFFFFFL;
-        dir.offset = Integer.reverseBytes(raf.readInt()) & 0xFFFFFFFFL;
+        dir.size = readInt(buffer, offset + 12) & 0xFFFFFFFFL;
+        dir.offset = readInt(buffer, offset + 16) & 0xFFFFFFFFL;
+        if (dir.size == ZIP64_MAGICVAL || dir.offset == ZIP64_MAGICVAL) {
+            readZip64CentralDirectory(raf, endOffset, dir);
+        }
         return dir;
     }
 
+    /**
+     * Follow the zip64 End Of Central Directory locator, which immediately precedes the End Of
+     * Central Directory, to the zip64 End Of Central Directory record.
+     */
+    private static void readZip64CentralDirectory(RandomAccessFile raf, long endOffset,
+                                                  CentralDirectory dir) throws IOException {
+        long locatorOffset = endOffset - ZIP64_LOCHDR;
+        if (locatorOffset < 0) {
+            throw new ZipException("Zip64 End Of Central Directory locator not found");
+        }
+        byte[] locator = new byte[ZIP64_LOCHDR];
+        raf.seek(locatorOffset);
+        raf.readFully(locator);
+        if (readInt(locator, 0) != ZIP64_LOCSIG) {
+            throw new ZipException("Zip64 End Of Central Directory locator not found");
+        }
+        // skip diskWithZip64End
+        long zip64EndOffset = readLong(locator, 8);
+
+        byte[] zip64End = new byte[ZIP64_ENDHDR];
+        raf.seek(zip64EndOffset);
+        raf.readFully(zip64End);
+        if (readInt(zip64End, 0) != ZIP64_ENDSIG) {
+            throw new ZipException("Zip64 End Of Central Directory signature not found");
+        }
+        // skip recordSize, versions, diskNumber, diskWithCentralDir, numEntries and totalNumEntries
+        dir.size = readLong(zip64End, 40);
+        dir.offset = readLong(zip64End, 48);
+    }
+
     /* Package visible for testing */
     static long computeCrcOfCentralDir(RandomAccessFile raf, CentralDirectory dir)
             throws IOException {
+        // offset and size are 64 bits with zip64, make sure a bad value is not hashed silently
+        if (dir.offset < 0 || dir.size < 0 || dir.offset + dir.size > raf.length()) {
+            throw new ZipException("Central Directory out of bounds, offset: " + dir.offset
+                    + ", size: " + dir.size + ", file length: " + raf.length());
+        }
+        if (dir.size >= MIN_MAP_SIZE) {
+            try {
+                return computeCrcMapped(raf.getChannel(), dir.offset, dir.size);
+            } catch (IOException e) {
+                // Mapping failed, typically when running out of address space: fall back to reads
+            }
+        }
+        return computeCrcRead(raf, dir.offset, dir.size);
+    }
+
+    /**
+     * Checksum the range through {@link FileChannel#map} windows: bytes come from page faults on the
+     * page cache instead of read syscalls.
+     */
+    private static long computeCrcMapped(FileChannel channel, long offset, long size)
+            throws IOException {
         CRC32 crc = new CRC32();
-        long stillToRead = dir.size;
-        raf.seek(dir.offset);
+        byte[] buffer = CRC_UPDATE_BYTE_BUFFER == null ? BUFFERS.get() : null;
+        long stillToRead = size;
+        while (stillToRead > 0) {
+            long windowSize = Math.min(MAP_WINDOW_SIZE, stillToRead);
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, offset,
+                    windowSize);
+            try {
+                if (buffer == null) {
+                    updateCrc(crc, window);
+                } else {
+                    while (window.hasRemaining()) {
+                        int length = Math.min(buffer.length, window.remaining());
+                        window.get(buffer, 0, length);
+                        crc.update(buffer, 0, length);
+                    }
+                }
+            } finally {
+                unmap(window);
+            }
+            offset += windowSize;
+            stillToRead -= windowSize;
+        }
+        return crc.getValue();
+    }
+
+    private static long computeCrcRead(RandomAccessFile raf, long offset, long size)
+            throws IOException {
+        CRC32 crc = new CRC32();
+        long stillToRead = size;
+        raf.seek(offset);
         int length = (int) Math.min(BUFFER_SIZE, stillToRead);
-        byte[] buffer = new byte[BUFFER_SIZE];
+        byte[] buffer = BUFFERS.get();
         length = raf.read(buffer, 0, length);
         while (length != -1) {
             crc.update(buffer, 0, length);
@@ -137,5 +498,335 @@ final class ZipUtil {
         }
         return crc.getValue();
     }
-}
 
+    private static void updateCrc(CRC32 crc, ByteBuffer buffer) throws IOException {
+        try {
+            CRC_UPDATE_BYTE_BUFFER.invoke(crc, buffer);
+        } catch (IllegalAccessException e) {
+            throw new IOException("Failed to update crc: " + e);
+        } catch (InvocationTargetException e) {
+            throw new IOException("Failed to update crc: " + e.getCause());
+        }
+    }
+
+    private static void unmap(MappedByteBuffer buffer) {
+        if (FREE_DIRECT_BUFFER != null) {
+            try {
+                FREE_DIRECT_BUFFER.invoke(null, buffer);
+            } catch (Exception e) {
+                // ignore, the window is unmapped when collected
+            }
+        }
+    }
+
+    private static Class<?> findClass(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+
+    private static Method findMethod(Class<?> clazz, String name, Class<?>... parameterTypes) {
+        if (clazz == null) {
+            return null;
+        }
+        try {
+            Method method = clazz.getDeclaredMethod(name, parameterTypes);
+            method.setAccessible(true);
+            return method;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the dex records of the central directory of {@code apk}, see {@link #readDexEntries}.
+     */
+    static List<DexEntry> getDexEntries(File apk) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(apk, "r");
+        try {
+            return readDexEntries(raf, findCentralDirectory(raf));
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Compute a crc over the name, compression method, crc and sizes of each dex record. Unlike
+     * {@link #getZipCrc(File)} it ignores the resources and every other entry, so it only changes
+     * when the dex files do.
+     */
+    static long getDexEntriesCrc(List<DexEntry> entries) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer record = ByteBuffer.allocate(2 + 8 * 3).order(ByteOrder.LITTLE_ENDIAN);
+        for (DexEntry entry : entries) {
+            crc.update(entry.name.getBytes("UTF-8"));
+            record.clear();
+            record.putShort((short) entry.method);
+            record.putLong(entry.crc);
+            record.putLong(entry.compressedSize);
+            record.putLong(entry.size);
+            crc.update(record.array(), 0, record.position());
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Lists the {@code classes.dex}, {@code classes2.dex}... records of the central directory,
+     * skipping over every other entry without decoding its name.
+     */
+    static List<DexEntry> readDexEntries(RandomAccessFile raf, CentralDirectory dir)
+            throws IOException {
+        List<DexEntry> entries = new ArrayList<DexEntry>();
+        raf.seek(dir.offset);
+        // Not closed on purpose: closing the stream would close the channel of raf.
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Channels.newInputStream(raf.getChannel()), BUFFER_SIZE));
+        byte[] header = new byte[CENHDR];
+        byte[] name = new byte[256];
+        long stillToRead = dir.size;
+        while (stillToRead >= CENHDR) {
+            in.readFully(header);
+            if (readInt(header, 0) != CENSIG) {
+                throw new ZipException("Central Directory Entry not found");
+            }
+            int nameLength = readShort(header, 28);
+            int extraLength = readShort(header, 30);
+            int commentLength = readShort(header, 32);
+            if (nameLength > name.length) {
+                name = new byte[nameLength];
+            }
+            in.readFully(name, 0, nameLength);
+            stillToRead -= CENHDR + nameLength + extraLength + commentLength;
+
+            if (!isDexName(name, nameLength)) {
+                skipFully(in, extraLength + commentLength);
+                continue;
+            }
+            DexEntry entry = new DexEntry();
+            entry.name = new String(name, 0, nameLength, "UTF-8");
+            entry.method = readShort(header, 10);
+            entry.time = readInt(header, 12) & 0xFFFFFFFFL;
+            entry.crc = readInt(header, 16) & 0xFFFFFFFFL;
+            entry.compressedSize = readInt(header, 20) & 0xFFFFFFFFL;
+            entry.size = readInt(header, 24) & 0xFFFFFFFFL;
+            entry.localHeaderOffset = readInt(header, 42) & 0xFFFFFFFFL;
+            byte[] extra = new byte[extraLength];
+            in.readFully(extra);
+            skipFully(in, commentLength);
+            readZip64Extra(entry, extra);
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    /**
+     * Replace the 32 bits values of the record that overflowed by the ones of the zip64 extended
+     * information extra field. Only overflowed values are present in the field, in this order.
+     */
+    private static void readZip64Extra(DexEntry entry, byte[] extra) throws ZipException {
+        if (entry.size != ZIP64_MAGICVAL && entry.compressedSize != ZIP64_MAGICVAL
+                && entry.localHeaderOffset != ZIP64_MAGICVAL) {
+            return;
+        }
+        int offset = 0;
+        while (offset + 4 <= extra.length) {
+            int headerId = readShort(extra, offset);
+            int dataSize = readShort(extra, offset + 2);
+            offset += 4;
+            if (headerId == ZIP64_EXTRA_ID) {
+                int dataEnd = Math.min(offset + dataSize, extra.length);
+                if (entry.size == ZIP64_MAGICVAL && offset + 8 <= dataEnd) {
+                    entry.size = readLong(extra, offset);
+                    offset += 8;
+                }
+                if (entry.compressedSize == ZIP64_MAGICVAL && offset + 8 <= dataEnd) {
+                    entry.compressedSize = readLong(extra, offset);
+                    offset += 8;
+                }
+                if (entry.localHeaderOffset == ZIP64_MAGICVAL && offset + 8 <= dataEnd) {
+                    entry.localHeaderOffset = readLong(extra, offset);
+                }
+                return;
+            }
+            offset += dataSize;
+        }
+        throw new ZipException("Zip64 extended information missing for " + entry.name);
+    }
+
+    /**
+     * Reads the local file header of the entry to find where its data starts. The name and extra
+     * field lengths of the local header may differ from the central directory ones.
+     */
+    static long getEntryDataOffset(FileChannel channel, DexEntry entry) throws IOException {
+        byte[] header = new byte[LOCHDR];
+        ByteBuffer buffer = ByteBuffer.wrap(header);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, entry.localHeaderOffset + buffer.position()) < 0) {
+                throw new ZipException("Unexpected end of file reading Local File Header of "
+                        + entry.name);
+            }
+        }
+        if (readInt(header, 0) != LOCSIG) {
+            throw new ZipException("Local File Header not found for " + entry.name);
+        }
+        return entry.localHeaderOffset + LOCHDR + readShort(header, 26) + readShort(header, 28);
+    }
+
+    /**
+     * Opens the uncompressed content of a STORED or DEFLATED entry with positional reads of
+     * {@code channel}, which can be shared by several threads each reading its own entry. Deflated
+     * data goes through {@code inflater}, a nowrap {@link Inflater} owned by the caller, ready to
+     * use and not ended when the stream is closed. Closing the stream does not close
+     * {@code channel}.
+     */
+    static InputStream getInputStream(FileChannel channel, DexEntry entry, Inflater inflater)
+            throws IOException {
+        long dataOffset = getEntryDataOffset(channel, entry);
+        if (entry.method == METHOD_STORED) {
+            return new EntryInputStream(channel, dataOffset, entry.size, false);
+        }
+        if (entry.method != METHOD_DEFLATED) {
+            throw new ZipException("Unsupported compression method " + entry.method + " for "
+                    + entry.name);
+        }
+        // a nowrap Inflater may need one dummy byte past the end of the data
+        return new InflaterInputStream(
+                new EntryInputStream(channel, dataOffset, entry.compressedSize, true),
+                inflater, BUFFER_SIZE);
+    }
+
+    /**
+     * Converts the raw DOS time and date of {@link DexEntry#time} to java time, as
+     * {@link java.util.zip.ZipEntry#getTime()} does.
+     */
+    static long dosToJavaTime(long dosTime) {
+        int time = (int) (dosTime & 0xFFFF);
+        int date = (int) ((dosTime >> 16) & 0xFFFF);
+        GregorianCalendar calendar = new GregorianCalendar();
+        calendar.set(Calendar.MILLISECOND, 0);
+        calendar.set(1980 + ((date >> 9) & 0x7f), ((date >> 5) & 0xf) - 1, date & 0x1f,
+                (time >> 11) & 0x1f, (time >> 5) & 0x3f, (time & 0x1f) << 1);
+        return calendar.getTimeInMillis();
+    }
+
+    /**
+     * Reads a range of a file with positional reads, leaving the channel position alone.
+     */
+    private static class EntryInputStream extends InputStream {
+        private final FileChannel channel;
+        private long position;
+        private long remaining;
+        private boolean dummyByte;
+
+        EntryInputStream(FileChannel channel, long position, long length, boolean dummyByte) {
+            this.channel = channel;
+            this.position = position;
+            this.remaining = length;
+            this.dummyByte = dummyByte;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (remaining == 0) {
+                if (dummyByte) {
+                    dummyByte = false;
+                    b[off] = 0;
+                    return 1;
+                }
+                return -1;
+            }
+            int count = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, remaining)),
+                    position);
+            if (count <= 0) {
+                throw new ZipException("Unexpected end of entry data, " + remaining
+                        + " bytes missing");
+            }
+            position += count;
+            remaining -= count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, remaining);
+        }
+    }
+
+    /**
+     * Copies {@code count} bytes starting at {@code position} of {@code in} to {@code out} with
+     * {@link FileChannel#transferTo}, letting the kernel move the bytes without any java buffer.
+     */
+    static void transferEntryData(FileChannel in, long position, long count, FileChannel out)
+            throws IOException {
+        long stillToTransfer = count;
+        while (stillToTransfer > 0) {
+            long transferred = in.transferTo(position, stillToTransfer, out);
+            if (transferred <= 0) {
+                throw new ZipException("Unexpected end of entry data, " + stillToTransfer
+                        + " bytes missing");
+            }
+            position += transferred;
+            stillToTransfer -= transferred;
+        }
+    }
+
+    private static boolean isDexName(byte[] name, int length) {
+        if (length < DEX_PREFIX.length + DEX_SUFFIX.length) {
+            return false;
+        }
+        for (int i = 0; i < DEX_PREFIX.length; i++) {
+            if (name[i] != DEX_PREFIX[i]) {
+                return false;
+            }
+        }
+        int suffixStart = length - DEX_SUFFIX.length;
+        for (int i = 0; i < DEX_SUFFIX.length; i++) {
+            if (name[suffixStart + i] != DEX_SUFFIX[i]) {
+                return false;
+            }
+        }
+        for (int i = DEX_PREFIX.length; i < suffixStart; i++) {
+            if (name[i] < '0' || name[i] > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void skipFully(DataInputStream in, int count) throws IOException {
+        while (count > 0) {
+            int skipped = in.skipBytes(count);
+            if (skipped <= 0) {
+                throw new ZipException("Unexpected end of central directory");
+            }
+            count -= skipped;
+        }
+    }
+
+    private static int readInt(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xFF)
+                | ((buffer[offset + 1] & 0xFF) << 8)
+                | ((buffer[offset + 2] & 0xFF) << 16)
+                | ((buffer[offset + 3] & 0xFF) << 24);
+    }
+
+    private static long readLong(byte[] buffer, int offset) {
+        return (readInt(buffer, offset) & 0xFFFFFFFFL)
+                | ((readInt(buffer, offset + 4) & 0xFFFFFFFFL) << 32);
+    }
+
+    private static int readShort(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xFF) | ((buffer[offset + 1] & 0xFF) << 8);
+    }
+}
@@ -0,0 +1,173 @@
+package com.gibbon.compactmultidex;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link DexPartitioner} on the host: every dex lands in exactly one group and the largest group
+ * stays within the list scheduling bound, {@code total / k + (1 - 1 / k) * largest dex}, which both
+ * LPT and the differencing method meet.
+ */
+public class DexPartitionerTest {
+
+    private static final int[] DEX_COUNTS = {1, 2, 3, 7, 50, 200, 500, 1000};
+    private static final int[] GROUP_COUNTS = {1, 2, 3, 4, 8, 16};
+
+    @Test
+    public void lptAssignsEveryDexOnceWithinBound() {
+        Random random = new Random(15);
+        for (int n : DEX_COUNTS) {
+            for (int k : GROUP_COUNTS) {
+                long[] sizes = randomSizes(random, n);
+                checkGroupOfDex(sizes, k, DexPartitioner.lpt(sizes, k));
+            }
+        }
+    }
+
+    @Test
+    public void karmarkarKarpAssignsEveryDexOnceWithinBound() {
+        Random random = new Random(16);
+        for (int n : DEX_COUNTS) {
+            for (int k : GROUP_COUNTS) {
+                long[] sizes = randomSizes(random, n);
+                checkGroupOfDex(sizes, k, DexPartitioner.karmarkarKarp(sizes, k));
+            }
+        }
+    }
+
+    @Test
+    public void partitionPicksTheStrategyFromTheDexCount() {
+        Random random = new Random(17);
+        for (int n : DEX_COUNTS) {
+            for (int k : GROUP_COUNTS) {
+                long[] sizes = randomSizes(random, n);
+                int[][] groups = DexPartitioner.partition(sizes, k);
+                int count = Math.min(k, n);
+                assertEquals("group count", count, groups.length);
+
+                int[] groupOfDex = new int[n];
+                long[] groupSums = new long[count];
+                boolean[] seen = new boolean[n];
+                for (int g = 0; g < count; g++) {
+                    assertTrue("empty group " + g, groups[g].length > 0);
+                    for (int i = 0; i < groups[g].length; i++) {
+                        int index = groups[g][i];
+                        assertTrue("dex " + index + " in two groups", !seen[index]);
+                        assertTrue("group " + g + " not in dex order",
+                                i == 0 || groups[g][i - 1] < index);
+                        seen[index] = true;
+                        groupOfDex[index] = g;
+                        groupSums[g] += sizes[index];
+                    }
+                    assertTrue("group " + g + " not largest first",
+                            g == 0 || groupSums[g - 1] >= groupSums[g]);
+                }
+                for (int i = 0; i < n; i++) {
+                    assertTrue("dex " + i + " in no group", seen[i]);
+                }
+
+                int[] expected = n <= 2 * count ? DexPartitioner.lpt(sizes, k)
+                        : DexPartitioner.karmarkarKarp(sizes, k);
+                assertEquals(n + " dexes in " + k + " groups", makespan(sizes, k, expected),
+                        groupSums[0]);
+                checkGroupOfDex(sizes, k, groupOfDex);
+            }
+        }
+    }
+
+    @Test
+    public void lptNoWorseWithTwoDexesPerGroup() {
+        Random random = new Random(18);
+        for (int k : GROUP_COUNTS) {
+            for (int n = 1; n <= 2 * k; n++) {
+                for (int round = 0; round < 50; round++) {
+                    long[] sizes = randomSizes(random, n);
+                    assertTrue(n + " dexes in " + k + " groups",
+                            makespan(sizes, k, DexPartitioner.lpt(sizes, k))
+                                    <= makespan(sizes, k, DexPartitioner.karmarkarKarp(sizes, k)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void differencingBeatsLpt() {
+        // LPT ends with 8 + 5 + 4 against 7 + 6, the differencing method with 16 against 14
+        long[] sizes = {8, 7, 6, 5, 4};
+        assertEquals(17, makespan(sizes, 2, DexPartitioner.lpt(sizes, 2)));
+        assertEquals(16, makespan(sizes, 2, DexPartitioner.karmarkarKarp(sizes, 2)));
+        assertEquals(16, sum(sizes, DexPartitioner.partition(sizes, 2)[0]));
+    }
+
+    @Test
+    public void equalSizes() {
+        long[] sizes = new long[64];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = 1 << 20;
+        }
+        int[][] groups = DexPartitioner.partition(sizes, 8);
+        for (int[] group : groups) {
+            assertEquals(8, group.length);
+        }
+    }
+
+    /**
+     * Sizes of real secondary dexes, 100 KB to 9 MB, most of them close to full.
+     */
+    private static long[] randomSizes(Random random, int n) {
+        long[] sizes = new long[n];
+        for (int i = 0; i < n; i++) {
+            sizes[i] = random.nextInt(4) == 0 ? 100000 + random.nextInt(9000000)
+                    : 7000000 + random.nextInt(2000000);
+        }
+        return sizes;
+    }
+
+    private static void checkGroupOfDex(long[] sizes, int k, int[] groupOfDex) {
+        int n = sizes.length;
+        int count = Math.min(k, n);
+        assertEquals(n, groupOfDex.length);
+        long total = 0;
+        long largest = 0;
+        for (int i = 0; i < n; i++) {
+            assertTrue("dex " + i + " in group " + groupOfDex[i],
+                    groupOfDex[i] >= 0 && groupOfDex[i] < count);
+            total += sizes[i];
+            largest = Math.max(largest, sizes[i]);
+        }
+        if (count == 0) {
+            return;
+        }
+        long makespan = makespan(sizes, k, groupOfDex);
+        assertTrue(n + " dexes in " + k + " groups: " + makespan + " below the largest dex",
+                makespan >= largest);
+        assertTrue(n + " dexes in " + k + " groups: " + makespan + " below the average",
+                makespan * count >= total);
+        assertTrue(n + " dexes in " + k + " groups: " + makespan + " above the bound",
+                makespan * count <= total + (count - 1) * largest);
+    }
+
+    private static long makespan(long[] sizes, int k, int[] groupOfDex) {
+        long[] sums = new long[Math.max(1, Math.min(k, sizes.length))];
+        for (int i = 0; i < groupOfDex.length; i++) {
+            sums[groupOfDex[i]] += sizes[i];
+        }
+        long max = 0;
+        for (long sum : sums) {
+            max = Math.max(max, sum);
+        }
+        return max;
+    }
+
+    private static long sum(long[] sizes, int[] group) {
+        long sum = 0;
+        for (int index : group) {
+            sum += sizes[index];
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,515 @@
+package com.gibbon.compactmultidex;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link ZipUtil} on the host, against archives written byte by byte: zip64 End Of Central
+ * Directory records and extra fields, and archive comments holding an End Of Central Directory
+ * signature. Where the JDK reads the archive too, the results are checked against
+ * {@link ZipFile}. Crcs combined from pieces or computed on several threads are checked against a
+ * single {@link CRC32}.
+ */
+public class ZipUtilTest {
+
+    private static final long MAGIC = 0xFFFFFFFFL;
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("ZipUtilTest", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void zip64EndOfCentralDirectory() throws Exception {
+        Archive archive = new Archive();
+        archive.add("classes.dex", 300, false);
+        archive.add("res/raw/a.bin", 100, false);
+        archive.add("classes2.dex", 200, false);
+        File apk = archive.write(new File(dir, "zip64end.apk"), true, true, null);
+
+        ZipUtil.CentralDirectory centralDirectory = findCentralDirectory(apk);
+        assertEquals(archive.centralDirectoryOffset, centralDirectory.offset);
+        assertEquals(archive.centralDirectorySize, centralDirectory.size);
+        checkDexEntries(archive, apk, "classes.dex", "classes2.dex");
+    }
+
+    @Test
+    public void zip64SizeOnlyInEndOfCentralDirectory() throws Exception {
+        Archive archive = new Archive();
+        archive.add("classes2.dex", 200, false);
+        File apk = archive.write(new File(dir, "zip64size.apk"), true, false, null);
+
+        ZipUtil.CentralDirectory centralDirectory = findCentralDirectory(apk);
+        assertEquals(archive.centralDirectoryOffset, centralDirectory.offset);
+        assertEquals(archive.centralDirectorySize, centralDirectory.size);
+    }
+
+    @Test
+    public void zip64ExtraFieldSizesAndOffset() throws Exception {
+        Archive archive = new Archive();
+        archive.add("res/raw/a.bin", 100, false);
+        archive.add("classes2.dex", 200, true);
+        archive.add("classes3.dex", 300, true);
+        File apk = archive.write(new File(dir, "zip64extra.apk"), true, true, null);
+
+        checkDexEntries(archive, apk, "classes2.dex", "classes3.dex");
+    }
+
+    @Test
+    public void zip64ExtraFieldOffsetOnly() throws Exception {
+        Archive archive = new Archive();
+        archive.add("classes2.dex", 200, false);
+        archive.add("classes3.dex", 300, false);
+        archive.offsetOnlyInExtra = true;
+        File apk = archive.write(new File(dir, "zip64offset.apk"), false, false, null);
+
+        checkDexEntries(archive, apk, "classes2.dex", "classes3.dex");
+    }
+
+    @Test
+    public void zip64ExtraFieldMissing() throws Exception {
+        Archive archive = new Archive();
+        archive.add("classes2.dex", 200, true);
+        archive.withoutExtra = true;
+        File apk = archive.write(new File(dir, "noextra.apk"), false, false, null);
+
+        try {
+            ZipUtil.getDexEntries(apk);
+            fail("zip64 values without extended information");
+        } catch (ZipException expected) {
+        }
+    }
+
+    @Test
+    public void zip64LocatorMissing() throws Exception {
+        Archive archive = new Archive();
+        archive.add("classes2.dex", 200, false);
+        archive.withoutLocator = true;
+        File apk = archive.write(new File(dir, "nolocator.apk"), true, true, null);
+
+        try {
+            findCentralDirectory(apk);
+            fail("zip64 End Of Central Directory without locator");
+        } catch (ZipException expected) {
+        }
+    }
+
+    @Test
+    public void zip64LocatorBeforeStartOfFile() throws Exception {
+        // an End Of Central Directory alone, pointing to a zip64 record that cannot exist
+        File apk = write(new File(dir, "short.apk"), endOfCentralDirectory(MAGIC, MAGIC, 0, null));
+
+        try {
+            findCentralDirectory(apk);
+            fail("zip64 End Of Central Directory without locator");
+        } catch (ZipException expected) {
+        }
+    }
+
+    @Test
+    public void commentContainingEndSignature() throws Exception {
+        Archive archive = new Archive();
+        archive.add("classes.dex", 300, false);
+        archive.add("classes2.dex", 200, false);
+        // an End Of Central Directory of an archive with no entry, followed by a few bytes
+        byte[] fake = endOfCentralDirectory(0, 0, 0, null);
+        byte[] comment = concat("comment ".getBytes("UTF-8"), fake, " end".getBytes("UTF-8"));
+        File apk = archive.write(new File(dir, "comment.apk"), false, false, comment);
+
+        ZipUtil.CentralDirectory centralDirectory = findCentralDirectory(apk);
+        assertEquals(archive.centralDirectoryOffset, centralDirectory.offset);
+        assertEquals(archive.centralDirectorySize, centralDirectory.size);
+        checkDexEntries(archive, apk, "classes.dex", "classes2.dex");
+    }
+
+    @Test
+    public void commentEndingWithEndSignature() throws Exception {
+        Archive archive = new Archive();
+        archive.add("classes2.dex", 200, false);
+        // the last ENDHDR bytes look like an End Of Central Directory with a comment
+        byte[] fake = endOfCentralDirectory(0, 0, 0, null);
+        fake[20] = 5;
+        for (int commentLength : new int[]{fake.length, 20000}) {
+            byte[] comment = new byte[commentLength];
+            System.arraycopy(fake, 0, comment, commentLength - fake.length, fake.length);
+            File apk = archive.write(new File(dir, "comment" + commentLength + ".apk"), false,
+                    false, comment);
+
+            ZipUtil.CentralDirectory centralDirectory = findCentralDirectory(apk);
+            assertEquals(archive.centralDirectoryOffset, centralDirectory.offset);
+            assertEquals(archive.centralDirectorySize, centralDirectory.size);
+        }
+    }
+
+    @Test
+    public void bytesAfterArchive() throws Exception {
+        Archive archive = new Archive();
+        archive.add("classes2.dex", 200, false);
+        File apk = archive.write(new File(dir, "trailing.apk"), false, false, null);
+        FileOutputStream out = new FileOutputStream(apk, true);
+        try {
+            out.write(new byte[100]);
+        } finally {
+            out.close();
+        }
+
+        ZipUtil.CentralDirectory centralDirectory = findCentralDirectory(apk);
+        assertEquals(archive.centralDirectoryOffset, centralDirectory.offset);
+        assertEquals(archive.centralDirectorySize, centralDirectory.size);
+    }
+
+    @Test
+    public void crc32CombineMatchesSingleCrc() {
+        Random random = new Random(8);
+        byte[] content = new byte[1 << 16];
+        random.nextBytes(content);
+        for (int round = 0; round < 2000; round++) {
+            int length = round < 20 ? round : random.nextInt(content.length + 1);
+            // even rounds have a zero-length piece at either end
+            int split = round % 2 == 0 ? (round % 4 == 0 ? 0 : length) : random.nextInt(length + 1);
+            long crc1 = crc(content, 0, split);
+            long crc2 = crc(content, split, length - split);
+            assertEquals("length " + length + " split at " + split, crc(content, 0, length),
+                    ZipUtil.crc32Combine(crc1, crc2, length - split));
+        }
+    }
+
+    @Test
+    public void crc32CombineOfManyPieces() {
+        Random random = new Random(9);
+        byte[] content = new byte[1 << 16];
+        random.nextBytes(content);
+        for (int round = 0; round < 200; round++) {
+            // random cuts, several of them at the same offset
+            int[] cuts = new int[1 + random.nextInt(16)];
+            for (int i = 0; i < cuts.length; i++) {
+                cuts[i] = random.nextInt(4) == 0 && i > 0 ? cuts[i - 1]
+                        : random.nextInt(content.length + 1);
+            }
+            Arrays.sort(cuts);
+            long crc = crc(content, 0, cuts[0]);
+            for (int i = 1; i <= cuts.length; i++) {
+                int end = i == cuts.length ? content.length : cuts[i];
+                crc = ZipUtil.crc32Combine(crc, crc(content, cuts[i - 1], end - cuts[i - 1]),
+                        end - cuts[i - 1]);
+            }
+            assertEquals(crc(content, 0, content.length), crc);
+        }
+    }
+
+    @Test
+    public void parallelDexCrcMatchesSequential() throws Exception {
+        Random random = new Random(10);
+        // below two chunks of 2 MB the crc is computed on the calling thread only
+        int[] sizes = {0, 1, 3 << 20, (9 << 20) + 7, 17 << 20};
+        for (int size : sizes) {
+            byte[] content = new byte[size];
+            random.nextBytes(content);
+            File dex = write(new File(dir, "classes" + size + ".dex"), content);
+            long expected = crc(content, 0, size);
+            assertEquals(size + " bytes", expected, ZipUtil.getDexCrc(dex));
+            for (int parallelism = 1; parallelism <= 8; parallelism++) {
+                assertEquals(size + " bytes on " + parallelism + " threads", expected,
+                        ZipUtil.getDexCrc(dex, parallelism));
+            }
+        }
+    }
+
+    private static ZipUtil.CentralDirectory findCentralDirectory(File apk) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(apk, "r");
+        try {
+            return ZipUtil.findCentralDirectory(raf);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Check the dex records {@link ZipUtil} lists, and the content it reads, against the ones
+     * written and against the entries of {@link ZipFile}.
+     */
+    private static void checkDexEntries(Archive archive, File apk, String... names)
+            throws IOException {
+        List<ZipUtil.DexEntry> entries = ZipUtil.getDexEntries(apk);
+        assertEquals(names.length, entries.size());
+        RandomAccessFile raf = new RandomAccessFile(apk, "r");
+        ZipFile zipFile = new ZipFile(apk);
+        try {
+            for (int i = 0; i < names.length; i++) {
+                ZipUtil.DexEntry entry = entries.get(i);
+                assertEquals(names[i], entry.name);
+                byte[] content = archive.content(names[i]);
+                assertEquals(names[i], content.length, entry.size);
+                assertEquals(names[i], content.length, entry.compressedSize);
+                assertEquals(names[i], archive.localHeaderOffset(names[i]),
+                        entry.localHeaderOffset);
+                assertEquals(names[i], crc(content), entry.crc);
+
+                assertArrayEquals(names[i], content, read(ZipUtil.getInputStream(raf.getChannel(),
+                        entry, new Inflater(true))));
+
+                java.util.zip.ZipEntry zipEntry = zipFile.getEntry(names[i]);
+                assertEquals(names[i], zipEntry.getSize(), entry.size);
+                assertEquals(names[i], zipEntry.getCrc(), entry.crc);
+                // the native zip of JDK 8 ignores a local header offset of the zip64 extra field
+                if (!archive.offsetInExtra(names[i])) {
+                    assertArrayEquals(names[i], content, read(zipFile.getInputStream(zipEntry)));
+                }
+            }
+        } finally {
+            zipFile.close();
+            raf.close();
+        }
+    }
+
+    /**
+     * Stored entries written into an archive, the central directory and end records only built by
+     * {@link #write}.
+     */
+    private static class Archive {
+        private final Random random = new Random(6);
+        private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        private final List<String> names = new ArrayList<String>();
+        private final List<byte[]> contents = new ArrayList<byte[]>();
+        private final List<Long> offsets = new ArrayList<Long>();
+        private final List<Boolean> zip64Entries = new ArrayList<Boolean>();
+
+        /* the local header offsets overflow, the sizes do not, every entry */
+        boolean offsetOnlyInExtra;
+        /* zip64 values are written without their extra field */
+        boolean withoutExtra;
+        /* the zip64 End Of Central Directory record is written without its locator */
+        boolean withoutLocator;
+
+        long centralDirectoryOffset;
+        long centralDirectorySize;
+
+        /**
+         * @param zip64 write 0xFFFFFFFF sizes and offset in the central directory, the real
+         *              values in the zip64 extra field.
+         */
+        void add(String name, int size, boolean zip64) throws IOException {
+            byte[] content = new byte[size];
+            random.nextBytes(content);
+            names.add(name);
+            contents.add(content);
+            offsets.add(Long.valueOf(data.size()));
+            zip64Entries.add(Boolean.valueOf(zip64));
+
+            byte[] nameBytes = name.getBytes("UTF-8");
+            ByteBuffer header = buffer(30 + nameBytes.length);
+            header.putInt(0x4034b50);
+            header.putShort((short) 20); // version needed
+            header.putShort((short) 0); // flags
+            header.putShort((short) 0); // stored
+            header.putInt(0); // time and date
+            header.putInt((int) crc(content));
+            header.putInt(size);
+            header.putInt(size);
+            header.putShort((short) nameBytes.length);
+            header.putShort((short) 0); // extra length
+            header.put(nameBytes);
+            data.write(header.array());
+            data.write(content);
+        }
+
+        byte[] content(String name) {
+            return contents.get(names.indexOf(name));
+        }
+
+        long localHeaderOffset(String name) {
+            return offsets.get(names.indexOf(name)).longValue();
+        }
+
+        boolean offsetInExtra(String name) {
+            return offsetOnlyInExtra && !withoutExtra
+                    || zip64Entries.get(names.indexOf(name)).booleanValue();
+        }
+
+        /**
+         * @param zip64Size     write the central directory size as 0xFFFFFFFF in the End Of
+         *                      Central Directory, the real one in a zip64 record.
+         * @param zip64Offset   the same for the central directory offset.
+         * @param comment       the archive comment, null for none.
+         */
+        File write(File file, boolean zip64Size, boolean zip64Offset, byte[] comment)
+                throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(data.toByteArray());
+            centralDirectoryOffset = out.size();
+            for (int i = 0; i < names.size(); i++) {
+                out.write(centralDirectoryRecord(i));
+            }
+            centralDirectorySize = out.size() - centralDirectoryOffset;
+
+            if (zip64Size || zip64Offset) {
+                long zip64EndOffset = out.size();
+                ByteBuffer zip64End = buffer(56);
+                zip64End.putInt(0x6064b50);
+                zip64End.putLong(44); // size of the rest of the record
+                zip64End.putShort((short) 45); // version made by
+                zip64End.putShort((short) 45); // version needed
+                zip64End.putInt(0); // disk number
+                zip64End.putInt(0); // disk with the central directory
+                zip64End.putLong(names.size());
+                zip64End.putLong(names.size());
+                zip64End.putLong(centralDirectorySize);
+                zip64End.putLong(centralDirectoryOffset);
+                out.write(zip64End.array());
+
+                if (!withoutLocator) {
+                    ByteBuffer locator = buffer(20);
+                    locator.putInt(0x7064b50);
+                    locator.putInt(0); // disk with the zip64 End Of Central Directory
+                    locator.putLong(zip64EndOffset);
+                    locator.putInt(1); // disk count
+                    out.write(locator.array());
+                }
+            }
+            out.write(endOfCentralDirectory(zip64Size ? MAGIC : centralDirectorySize,
+                    zip64Offset ? MAGIC : centralDirectoryOffset, names.size(), comment));
+            return ZipUtilTest.write(file, out.toByteArray());
+        }
+
+        private byte[] centralDirectoryRecord(int index) throws IOException {
+            byte[] nameBytes = names.get(index).getBytes("UTF-8");
+            byte[] content = contents.get(index);
+            long offset = offsets.get(index).longValue();
+            boolean zip64 = zip64Entries.get(index).booleanValue();
+
+            ByteBuffer extra = buffer(withoutExtra ? 0
+                    : zip64 ? 4 + 24 : offsetOnlyInExtra ? 4 + 8 : 0);
+            if (extra.capacity() > 0) {
+                extra.putShort((short) 0x0001);
+                extra.putShort((short) (extra.capacity() - 4));
+                if (zip64) {
+                    extra.putLong(content.length);
+                    extra.putLong(content.length);
+                }
+                extra.putLong(offset);
+            }
+
+            ByteBuffer record = buffer(46 + nameBytes.length + extra.capacity());
+            record.putInt(0x2014b50);
+            record.putShort((short) 45); // version made by
+            record.putShort((short) 45); // version needed
+            record.putShort((short) 0); // flags
+            record.putShort((short) 0); // stored
+            record.putInt(0); // time and date
+            record.putInt((int) crc(content));
+            record.putInt((int) (zip64 ? MAGIC : content.length));
+            record.putInt((int) (zip64 ? MAGIC : content.length));
+            record.putShort((short) nameBytes.length);
+            record.putShort((short) extra.capacity());
+            record.putShort((short) 0); // comment length
+            record.putShort((short) 0); // disk number
+            record.putShort((short) 0); // internal attributes
+            record.putInt(0); // external attributes
+            record.putInt((int) (zip64 || offsetOnlyInExtra ? MAGIC : offset));
+            record.put(nameBytes);
+            record.put(extra.array());
+            return record.array();
+        }
+    }
+
+    private static byte[] endOfCentralDirectory(long size, long offset, int entryCount,
+                                                byte[] comment) {
+        int commentLength = comment == null ? 0 : comment.length;
+        ByteBuffer end = buffer(22 + commentLength);
+        end.putInt(0x6054b50);
+        end.putShort((short) 0); // disk number
+        end.putShort((short) 0); // disk with the central directory
+        end.putShort((short) entryCount);
+        end.putShort((short) entryCount);
+        end.putInt((int) size);
+        end.putInt((int) offset);
+        end.putShort((short) commentLength);
+        if (comment != null) {
+            end.put(comment);
+        }
+        return end.array();
+    }
+
+    private static ByteBuffer buffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static File write(File file, byte[] content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int length;
+            while ((length = in.read(buffer)) != -1) {
+                out.write(buffer, 0, length);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static long crc(byte[] content) {
+        return crc(content, 0, content.length);
+    }
+
+    private static long crc(byte[] content, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(content, offset, length);
+        return crc.getValue();
+    }
+}